@@ -0,0 +1,231 @@
+import com.google.cloud.storage.BlobInfo;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ServerCallStreamObserver;
+import ipl.isel.cn.group2.benchmarks.ServerPaths;
+import ipl.isel.cn.group2.contract.Image;
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.metrics.StageTimings;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.store.KeyValueStore;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Wires the server's upload and publishing paths to in-memory fakes: the embedded store, a blob store that discards
+// what it's given and in-memory topics drained by a subscriber that acks everything.
+public class ServerFixture implements ServerPaths
+{
+    private static final int TOPIC_CAPACITY = 100_000;
+
+    private KeyValueStore keyValueStore;
+    private EmbeddedSubmissionStore submissionStore;
+    private StorageServices storageServices;
+    private InMemoryTopics topics;
+    private PublisherServices publisherServices;
+    private DeduplicationIndex deduplicationIndex;
+    private ResumableUploads resumableUploads;
+
+    private SubmissionStore.SessionInfo sessionInfo;
+    private String completedSubmissionId;
+
+    private final List<Image> messages = new ArrayList<>();
+    private final Map<String, String> attributes = new HashMap<>();
+
+    private static class DiscardingBlobStore implements BlobStore
+    {
+        @Override
+        public void storeImage(BlobInfo imageInfo, byte[] image, int length) { }
+
+        @Override
+        public WritableByteChannel openWriter(BlobInfo imageInfo, int chunkSize)
+        {
+            return new WritableByteChannel() {
+                private boolean open = true;
+
+                @Override
+                public int write(ByteBuffer source)
+                {
+                    int written = source.remaining();
+                    source.position(source.limit());
+
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+            };
+        }
+    }
+
+    // Stands in for gRPC's call, keeping only the submission the observer answers with.
+    private static class ResponseObserver extends ServerCallStreamObserver<Submission>
+    {
+        private Submission submission;
+        private Throwable error;
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) { }
+
+        @Override
+        public void setCompression(String compression) { }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) { }
+
+        @Override
+        public void disableAutoInboundFlowControl() { }
+
+        @Override
+        public void request(int count) { }
+
+        @Override
+        public void setMessageCompression(boolean enable) { }
+
+        @Override
+        public void onNext(Submission submission) {
+            this.submission = submission;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onCompleted() { }
+    }
+
+    @Override
+    public void setUp(int imageSize, int chunkSize) throws Exception
+    {
+        keyValueStore = KeyValueStore.inMemory();
+        submissionStore = new EmbeddedSubmissionStore(keyValueStore);
+        submissionStore.storeUser("benchmark", "premium");
+        sessionInfo = submissionStore.storeSession("benchmark");
+
+        storageServices = new StorageServices("benchmark", new DiscardingBlobStore(), StorageServices.DEFAULT_AGGREGATION_THRESHOLD_BYTES, StorageServices.DEFAULT_UPLOAD_CHUNK_SIZE_BYTES);
+
+        topics = new InMemoryTopics();
+        topics.create(PublisherServices.FREE_OCR_TOPIC_ID, TOPIC_CAPACITY, 1);
+        topics.create(PublisherServices.PREMIUM_OCR_TOPIC_ID, TOPIC_CAPACITY, 1);
+        topics.subscribe(PublisherServices.FREE_OCR_TOPIC_ID, (message, consumer) -> consumer.ack());
+        topics.subscribe(PublisherServices.PREMIUM_OCR_TOPIC_ID, (message, consumer) -> consumer.ack());
+
+        publisherServices = new PublisherServices(topics);
+        deduplicationIndex = new DeduplicationIndex(submissionStore, DeduplicationIndex.DEFAULT_MAXIMUM_SIZE);
+        resumableUploads = new ResumableUploads(submissionStore, ResumableUploads.DEFAULT_MAXIMUM_SIZE, ResumableUploads.DEFAULT_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+
+        // The image is built once, so only the server's own work is measured.
+        byte[] image = new byte[imageSize];
+        new Random(0).nextBytes(image);
+
+        Image.Metadata metadata = Image.Metadata
+            .newBuilder()
+            .setSession(Session.newBuilder().setId(sessionInfo.getId()).build())
+            .setName("image.png")
+            .setSize(imageSize)
+            .setTranslateTo("en")
+            .build();
+
+        messages.clear();
+        messages.add(Image.newBuilder().setMetadata(metadata).build());
+
+        for (int offset = 0; offset < imageSize; offset += chunkSize)
+            messages.add(Image.newBuilder().setChunk(UnsafeByteOperations.unsafeWrap(image, offset, Math.min(chunkSize, imageSize - offset))).build());
+
+        attributes.put("submissionId", submissionStore.newSubmissionId());
+        attributes.put("to", "en");
+        attributes.put("hash", "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+        attributes.put(StageTimings.UPLOAD_STARTED_AT, String.valueOf(System.currentTimeMillis()));
+        attributes.put(StageTimings.OCR_ENQUEUED_AT, String.valueOf(System.currentTimeMillis()));
+
+        completedSubmissionId = submissionStore.storeSubmission(sessionInfo);
+
+        Map<String, String> completed = new HashMap<>();
+        completed.put("state", "completed");
+        completed.put("text", "Bom dia");
+        completed.put("textTranslated", "Good morning");
+        completed.put("translatedFrom", "pt");
+        completed.put("translatedTo", "en");
+
+        for (String key : StageTimings.KEYS)
+            completed.put(EmbeddedSubmissionStore.TIMINGS_PREFIX + key, String.valueOf(System.currentTimeMillis()));
+
+        keyValueStore.update("submissions", completedSubmissionId, completed);
+    }
+
+    // Every stage runs on the calling thread, so the upload is done when onCompleted returns.
+    @Override
+    public String uploadImage() throws Exception
+    {
+        ResponseObserver responseObserver = new ResponseObserver();
+
+        ImageObserver imageObserver = new ImageObserver(
+            responseObserver,
+            submissionStore,
+            storageServices,
+            submissionStore::validateSession,
+            publisherServices,
+            deduplicationIndex,
+            resumableUploads,
+            Runnable::run,
+            ImageObserver.DEFAULT_INBOUND_WINDOW,
+            StorageServices.DEFAULT_BUCKET_ID
+        );
+
+        for (Image message : messages)
+            imageObserver.onNext(message);
+
+        imageObserver.onCompleted();
+
+        if (responseObserver.submission == null)
+            throw new IllegalStateException("The upload didn't complete.", responseObserver.error);
+
+        // Keeps the store from growing across millions of invocations.
+        String submissionId = responseObserver.submission.getId();
+        keyValueStore.delete("submissions", submissionId);
+
+        return submissionId;
+    }
+
+    @Override
+    public String publish() throws Exception {
+        return publisherServices.publish(PublisherServices.PREMIUM_OCR_TOPIC_ID, "image.png", attributes).get();
+    }
+
+    @Override
+    public Object readSubmission() throws Exception {
+        return submissionStore.getSubmissionInfo(sessionInfo, completedSubmissionId);
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        topics.shutdown();
+        keyValueStore.close();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,56 @@
+package ipl.isel.cn.group2.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import ipl.isel.cn.group2.contract.Image;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// How the client turns each chunk it reads into a message. Copying allocates a new array for every chunk, wrapping
+// doesn't, but is only safe while the array isn't reused before the message is serialized.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkWrappingBenchmark
+{
+    // The client's CHUNK_MAX_SIZE_BYTES.
+    private static final int CHUNK_MAX_SIZE_BYTES = 1_000_000;
+
+    // The last chunk of an image is usually shorter than the rest.
+    @Param({ "1000000", "65536" })
+    public int bytesRead;
+
+    private final byte[] chunk = new byte[CHUNK_MAX_SIZE_BYTES];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        new Random(0).nextBytes(chunk);
+    }
+
+    @Benchmark
+    public Image copy() {
+        return Image.newBuilder().setChunk(ByteString.copyFrom(ByteBuffer.wrap(chunk), bytesRead)).build();
+    }
+
+    @Benchmark
+    public Image wrap() {
+        return Image.newBuilder().setChunk(UnsafeByteOperations.unsafeWrap(chunk, 0, bytesRead)).build();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package ipl.isel.cn.group2.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// PublisherServices.publish against an in-memory topic, next to building the same message alone, so the cost of the
+// message itself can be told apart from the cost of handing it over.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PublishBenchmark
+{
+    private ServerPaths server;
+
+    private final Map<String, String> attributes = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        server = ServerPaths.load();
+        server.setUp(0, 1);
+
+        attributes.put("submissionId", "AAAAAAAAAAAAAAAAAAAA");
+        attributes.put("to", "en");
+        attributes.put("hash", "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+        attributes.put("uploadStartedAt", String.valueOf(System.currentTimeMillis()));
+        attributes.put("ocrEnqueuedAt", String.valueOf(System.currentTimeMillis()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.tearDown();
+    }
+
+    @Benchmark
+    public String publish() throws Exception {
+        return server.publish();
+    }
+
+    @Benchmark
+    public PubsubMessage buildMessage()
+    {
+        return PubsubMessage
+            .newBuilder()
+            .setData(ByteString.copyFromUtf8("image.png"))
+            .putAllAttributes(attributes)
+            .build();
+    }
+}
\ No newline at end of file
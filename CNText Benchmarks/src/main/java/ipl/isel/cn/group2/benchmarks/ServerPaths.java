@@ -0,0 +1,21 @@
+package ipl.isel.cn.group2.benchmarks;
+
+// The server's classes have no package, so they can't be named from here. The benchmarks reach them through this
+// interface, implemented by ServerFixture in the default package.
+public interface ServerPaths
+{
+    void setUp(int imageSize, int chunkSize) throws Exception;
+
+    // Streams a whole image through an ImageObserver and returns the id of its submission.
+    String uploadImage() throws Exception;
+
+    String publish() throws Exception;
+
+    Object readSubmission() throws Exception;
+
+    void tearDown() throws Exception;
+
+    static ServerPaths load() throws ReflectiveOperationException {
+        return (ServerPaths) Class.forName("ServerFixture").getDeclaredConstructor().newInstance();
+    }
+}
\ No newline at end of file
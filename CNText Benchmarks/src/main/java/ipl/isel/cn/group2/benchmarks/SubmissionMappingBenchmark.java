@@ -0,0 +1,46 @@
+package ipl.isel.cn.group2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Reading a completed submission, with its result and every stage timing, into a SubmissionInfo, as each
+// GetTranslationResult and GetSubmissionTimings call does.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SubmissionMappingBenchmark
+{
+    private ServerPaths server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        server = ServerPaths.load();
+        server.setUp(0, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.tearDown();
+    }
+
+    @Benchmark
+    public Object readSubmission() throws Exception {
+        return server.readSubmission();
+    }
+}
\ No newline at end of file
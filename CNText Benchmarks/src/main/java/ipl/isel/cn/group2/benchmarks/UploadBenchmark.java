@@ -0,0 +1,53 @@
+package ipl.isel.cn.group2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// A whole upload through ImageObserver: creating the submission, hashing and storing every chunk, the deduplication
+// lookup and publishing. Images up to the aggregation threshold are buffered, larger ones are streamed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UploadBenchmark
+{
+    @Param({ "65536", "1048576", "4194304" })
+    public int imageSize;
+
+    @Param({ "65536", "1000000" })
+    public int chunkSize;
+
+    private ServerPaths server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        server = ServerPaths.load();
+        server.setUp(imageSize, chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.tearDown();
+    }
+
+    @Benchmark
+    public String upload() throws Exception {
+        return server.uploadImage();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.sdk.CNTextAsyncClient;
+import ipl.isel.cn.group2.sdk.TranslationResult;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Translates every image at once, as far as the client's in-flight bound allows, and writes a JSON line for each as
+// soon as its result is known, so lines come out in the order the images finish.
+public class BatchTranslation
+{
+    private final CNTextAsyncClient client;
+    private final PrintStream out;
+
+    public BatchTranslation(CNTextAsyncClient client, PrintStream out) {
+        this.client = client;
+        this.out = out;
+    }
+
+    // Returns how many images couldn't be translated.
+    public int run(String username, List<Path> images, String translateTo) throws Exception
+    {
+        Session session = client.signIn(username).get();
+        AtomicInteger failures = new AtomicInteger();
+
+        try {
+            List<CompletableFuture<Void>> translations = new ArrayList<>();
+
+            for (Path image : images) {
+                long startedAt = System.nanoTime();
+
+                translations.add(client.translate(session, image, translateTo).handle((result, throwable) -> {
+                    if (throwable != null || !result.isCompleted())
+                        failures.incrementAndGet();
+
+                    writeLine(image, result, throwable, (System.nanoTime() - startedAt) / 1_000_000);
+                    return null;
+                }));
+            }
+
+            CompletableFuture.allOf(translations.toArray(new CompletableFuture[0])).join();
+        } finally {
+            client.signOut(session).get();
+        }
+
+        return failures.get();
+    }
+
+    // Directories stand for the files directly in them, anything else is taken as an image.
+    public static List<Path> expand(String paths) throws IOException
+    {
+        List<Path> images = new ArrayList<>();
+
+        for (String name : paths.split(",")) {
+            Path path = Paths.get(name);
+
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    images.addAll(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            } else
+                images.add(path);
+        }
+
+        return images;
+    }
+
+    private synchronized void writeLine(Path image, TranslationResult result, Throwable throwable, long millis)
+    {
+        StringBuilder line = new StringBuilder("{");
+
+        field(line, "file", image.toString());
+
+        if (throwable != null) {
+            Throwable cause = throwable.getCause() != null ? throwable.getCause() : throwable;
+
+            field(line.append(','), "state", "error");
+            field(line.append(','), "error", cause.toString());
+        } else {
+            field(line.append(','), "submissionId", result.getSubmissionId());
+            field(line.append(','), "state", result.getState());
+
+            if (result.isCompleted()) {
+                field(line.append(','), "translatedFrom", result.getTranslatedFrom());
+                field(line.append(','), "translatedTo", result.getTranslatedTo());
+                field(line.append(','), "translatedText", result.getTranslatedText());
+            } else
+                field(line.append(','), "error", result.getError());
+        }
+
+        line.append(",\"millis\":").append(millis).append('}');
+
+        out.println(line);
+        out.flush();
+    }
+
+    private static void field(StringBuilder line, String name, String value)
+    {
+        line.append('"').append(name).append("\":");
+
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+
+        line.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        line.append(String.format("\\u%04x", (int) c));
+                    else
+                        line.append(c);
+            }
+        }
+
+        line.append('"');
+    }
+}
\ No newline at end of file
@@ -1,19 +1,28 @@
-import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusException;
-import io.grpc.stub.StreamObserver;
 import ipl.isel.cn.group2.contract.*;
 import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceBlockingStub;
-import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceStub;
+import ipl.isel.cn.group2.sdk.CNTextAsyncClient;
+import ipl.isel.cn.group2.sdk.ImagePreprocessor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.ByteBuffer;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,19 +33,19 @@ public class CNTextClient
     private static final Logger translations = LogManager.getLogger("TRANSLATIONS");
 
     private final CNTextServiceBlockingStub blockingStub;
-    private final CNTextServiceStub stub;
+    private final CNTextAsyncClient asyncClient;
 
     public static int DEFAULT_SERVER_PORT = 8000;
     public static String DEFAULT_SERVER_IP = "localhost";
 
-    private static final int CHUNK_MAX_SIZE_BYTES = 1_000_000;
+    private static final String DEFAULT_BATCH_TRANSLATE_TO = "en";
 
     public CNTextClient(
         CNTextServiceBlockingStub blockingStub,
-        CNTextServiceStub stub
+        CNTextAsyncClient asyncClient
     ) {
         this.blockingStub = blockingStub;
-        this.stub = stub;
+        this.asyncClient = asyncClient;
     }
 
     public void signIn() throws StatusException
@@ -75,19 +84,12 @@ public class CNTextClient
         if(sessionId.isEmpty())
             throw Status.INVALID_ARGUMENT.withDescription("session id can't be empty").asException();
 
-        SubmissionObserver response = new SubmissionObserver();
-        StreamObserver<Image> request = stub.submitImageTextTranslationRequest(response);
+        System.out.print("Please input the filenames of the images that you want to translate, separated by spaces: ");
+        String imageNames = scanner.nextLine().trim();
 
-        System.out.print("Please input the filename of the image that you want to translate: ");
-        String imageName = scanner.nextLine();
-
-        if(imageName.isEmpty())
+        if(imageNames.isEmpty())
             throw Status.INVALID_ARGUMENT.withDescription("image name can't be empty").asException();
 
-        File imageFile = new File("images/" + imageName);
-
-        long size = imageFile.length();
-
         System.out.print("Please input the ISO-639-1 code of the language that you want to translate the image text to: ");
         String translateTo = scanner.nextLine();
 
@@ -96,48 +98,46 @@ public class CNTextClient
             .setId(sessionId)
             .build();
 
-        Image.Metadata metadata = Image.Metadata
-            .newBuilder()
-            .setSession(session)
-            .setName(imageName)
-            .setSize(size)
-            .setTranslateTo(translateTo)
-            .build();
+        // Every image is uploaded at the same time, each in its own stream over the same channel.
+        Map<String, CompletableFuture<Submission>> uploads = new LinkedHashMap<>();
 
-        Image imageMetadata = Image
-            .newBuilder()
-            .setMetadata(metadata)
-            .build();
+        for (String imageName : imageNames.split("\\s+"))
+            uploads.put(imageName, asyncClient.submit(session, resolveImage(imageName), translateTo));
 
-        request.onNext(imageMetadata);
+        System.out.println();
 
-        try(FileInputStream imgReader = new FileInputStream(imageFile))
-        {
-            int numberOfBytesRead;
+        for (Map.Entry<String, CompletableFuture<Submission>> upload : uploads.entrySet()) {
+            try {
+                String submissionId = upload.getValue().join().getId();
 
-            byte[] chunk = new byte[CHUNK_MAX_SIZE_BYTES];
+                System.out.println("Here's your submission id for " + upload.getKey() + ": " + submissionId + ".");
 
-            while((numberOfBytesRead = imgReader.read(chunk)) != -1) {
-                Image imageChunk = Image.newBuilder().setChunk(ByteString.copyFrom(ByteBuffer.wrap(chunk), numberOfBytesRead)).build();
-                request.onNext(imageChunk);
+                logger.info("Submission of " + upload.getKey() + " published successfully. Submission id is " + submissionId + ".");
+            } catch (CompletionException ex) {
+                String message = ex.getCause().getMessage();
+
+                System.out.println("Couldn't submit " + upload.getKey() + ". " + message);
+
+                logger.error("Couldn't submit " + upload.getKey() + ". " + message);
             }
-        } catch (Exception ex) {
-            request.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
-            throw ex;
         }
 
-        request.onCompleted();
-
-        while(!response.isDone()) {}
+        if(asyncClient.getPreprocessor() != null) {
+            System.out.println(asyncClient.getPreprocessor());
 
-        if(response.hasError())
-            throw Status.fromThrowable(response.getMessage()).asException();
+            logger.info(asyncClient.getPreprocessor().toString());
+        }
+    }
 
-        String submissionId = response.getSubmissionId().getId();
+    // A name that isn't a path to an existing file is looked up in images/, as before.
+    private static Path resolveImage(String imageName)
+    {
+        Path path = Paths.get(imageName);
 
-        System.out.println("\nHere's your submission id: " + submissionId + ".");
+        if(!Files.exists(path))
+            path = Paths.get("images", imageName);
 
-        logger.info("Submission published successfully. Submission id is " + submissionId + ".");
+        return path;
     }
 
     private void getTranslationResult() throws StatusException
@@ -170,6 +170,78 @@ public class CNTextClient
         translations.info(message);
     }
 
+    private void watchTranslationResult() throws StatusException
+    {
+        System.out.print("Please input the session id: ");
+        String sessionId = scanner.nextLine();
+
+        if(sessionId.isEmpty())
+            throw Status.INVALID_ARGUMENT.withDescription("session id can't be empty").asException();
+
+        System.out.print("Please input the submission id: ");
+        String submissionId = scanner.nextLine();
+
+        if(submissionId.isEmpty())
+            throw Status.INVALID_ARGUMENT.withDescription("submission id can't be empty").asException();
+
+        Session session = Session.newBuilder().setId(sessionId).build();
+        Submission submission = Submission.newBuilder().setId(submissionId).build();
+
+        Request request = Request.newBuilder().setSession(session).setSubmission(submission).build();
+        Iterator<SubmissionState> states = blockingStub.watchSubmission(request);
+
+        System.out.println();
+
+        while(states.hasNext())
+        {
+            SubmissionState state = states.next();
+
+            System.out.println("Submission is now " + state.getState() + ".");
+
+            if(state.getState().compareToIgnoreCase("error") == 0)
+                throw Status.UNAVAILABLE.withDescription("Submission encountered an error. " + state.getError()).asException();
+
+            if(state.hasResult())
+            {
+                ImageTextTranslated translation = state.getResult();
+
+                String message = translation.getTranslatedText() + ", FROM: " + translation.getTranslatedFrom() + ", TO: " + translation.getTranslatedTo();
+                System.out.println("\n" + message);
+
+                translations.info(message);
+            }
+        }
+    }
+
+    private void getSubmissionTimings() throws StatusException
+    {
+        System.out.print("Please input the session id: ");
+        String sessionId = scanner.nextLine();
+
+        if(sessionId.isEmpty())
+            throw Status.INVALID_ARGUMENT.withDescription("session id can't be empty").asException();
+
+        System.out.print("Please input the submission id: ");
+        String submissionId = scanner.nextLine();
+
+        if(submissionId.isEmpty())
+            throw Status.INVALID_ARGUMENT.withDescription("submission id can't be empty").asException();
+
+        Session session = Session.newBuilder().setId(sessionId).build();
+        Submission submission = Submission.newBuilder().setId(submissionId).build();
+
+        Request request = Request.newBuilder().setSession(session).setSubmission(submission).build();
+        SubmissionTimings timings = blockingStub.getSubmissionTimings(request);
+
+        System.out.println();
+
+        for(StageTiming stage : timings.getStagesList())
+            System.out.println(stage.getStage() + ": waited " + stage.getQueueWaitMillis() + " ms, worked " + stage.getServiceMillis() + " ms");
+
+        if(timings.getTotalMillis() > 0)
+            System.out.println("Total: " + timings.getTotalMillis() + " ms");
+    }
+
     public void start()
     {
         logger.info("Application started.");
@@ -188,7 +260,9 @@ public class CNTextClient
             System.out.println("2: Sign out");
             System.out.println("3: Submit translation request");
             System.out.println("4: Get translation result");
-            System.out.println("5: Quit");
+            System.out.println("5: Wait for translation result");
+            System.out.println("6: Show submission timings");
+            System.out.println("7: Quit");
             System.out.println();
 
             System.out.print("Enter here your option: ");
@@ -212,6 +286,12 @@ public class CNTextClient
                         getTranslationResult();
                         break;
                     case 5:
+                        watchTranslationResult();
+                        break;
+                    case 6:
+                        getSubmissionTimings();
+                        break;
+                    case 7:
                         done = true;
                         break;
                     default:
@@ -228,19 +308,77 @@ public class CNTextClient
     {
         String serverIp = DEFAULT_SERVER_IP;
         int serverPort = DEFAULT_SERVER_PORT;
+        int maximumInFlight = CNTextAsyncClient.DEFAULT_MAXIMUM_IN_FLIGHT;
+
+        // Given images to translate, the client runs them as a batch instead of showing the menu.
+        String batchPaths = null;
+        String batchUsername = null;
+        String batchTranslateTo = DEFAULT_BATCH_TRANSLATE_TO;
+        String batchOutput = null;
+
+        // Images are only preprocessed when any of these is given.
+        boolean preprocess = false;
+        int maximumLongEdge = 0;
+        boolean grayscale = false;
+        String format = null;
+        int quality = ImagePreprocessor.DEFAULT_QUALITY;
 
         Pattern serverIpPattern = Pattern.compile("^-ip=((?:\\d{1,3}\\.){3}\\d+)$");
         Pattern portPattern = Pattern.compile("^-p=(\\d{1,5})$");
+        Pattern maximumInFlightPattern = Pattern.compile("^-c=(\\d+)$");
+        Pattern batchPathsPattern = Pattern.compile("^-b=(.+)$");
+        Pattern batchUsernamePattern = Pattern.compile("^-u=([\\w.@-]+)$");
+        Pattern batchTranslateToPattern = Pattern.compile("^-to=([a-z]{2})$");
+        Pattern batchOutputPattern = Pattern.compile("^-o=(.+)$");
+        Pattern maximumLongEdgePattern = Pattern.compile("^-pe=(\\d+)$");
+        Pattern grayscalePattern = Pattern.compile("^-pg$");
+        Pattern formatPattern = Pattern.compile("^-pf=(jpeg|png)$");
+        Pattern qualityPattern = Pattern.compile("^-pq=(\\d{1,3})$");
 
         for (String arg : args)
         {
             Matcher portMatcher = portPattern.matcher(arg);
             Matcher serverIpMatcher = serverIpPattern.matcher(arg);
+            Matcher maximumInFlightMatcher = maximumInFlightPattern.matcher(arg);
+            Matcher batchPathsMatcher = batchPathsPattern.matcher(arg);
+            Matcher batchUsernameMatcher = batchUsernamePattern.matcher(arg);
+            Matcher batchTranslateToMatcher = batchTranslateToPattern.matcher(arg);
+            Matcher batchOutputMatcher = batchOutputPattern.matcher(arg);
+            Matcher maximumLongEdgeMatcher = maximumLongEdgePattern.matcher(arg);
+            Matcher grayscaleMatcher = grayscalePattern.matcher(arg);
+            Matcher formatMatcher = formatPattern.matcher(arg);
+            Matcher qualityMatcher = qualityPattern.matcher(arg);
 
             if(portMatcher.matches())
                 serverPort = Integer.parseInt(portMatcher.group(1));
             else if(serverIpMatcher.matches())
                 serverIp = serverIpMatcher.group(1);
+            else if(maximumInFlightMatcher.matches())
+                maximumInFlight = Integer.parseInt(maximumInFlightMatcher.group(1));
+            else if(batchPathsMatcher.matches())
+                batchPaths = batchPathsMatcher.group(1);
+            else if(batchUsernameMatcher.matches())
+                batchUsername = batchUsernameMatcher.group(1);
+            else if(batchTranslateToMatcher.matches())
+                batchTranslateTo = batchTranslateToMatcher.group(1);
+            else if(batchOutputMatcher.matches())
+                batchOutput = batchOutputMatcher.group(1);
+            else if(maximumLongEdgeMatcher.matches()) {
+                maximumLongEdge = Integer.parseInt(maximumLongEdgeMatcher.group(1));
+                preprocess = true;
+            }
+            else if(grayscaleMatcher.matches()) {
+                grayscale = true;
+                preprocess = true;
+            }
+            else if(formatMatcher.matches()) {
+                format = formatMatcher.group(1);
+                preprocess = true;
+            }
+            else if(qualityMatcher.matches()) {
+                quality = Integer.parseInt(qualityMatcher.group(1));
+                preprocess = true;
+            }
         }
 
         ManagedChannel channel = ManagedChannelBuilder
@@ -248,11 +386,51 @@ public class CNTextClient
             .usePlaintext()
             .build();
 
+        ImagePreprocessor preprocessor = preprocess ? new ImagePreprocessor(maximumLongEdge, grayscale, format, quality) : null;
+
+        CNTextAsyncClient asyncClient = new CNTextAsyncClient(channel, maximumInFlight, CNTextAsyncClient.DEFAULT_CHUNK_SIZE_BYTES, CNTextAsyncClient.DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS, preprocessor);
+
+        if(batchPaths != null) {
+            System.exit(runBatch(asyncClient, batchPaths, batchUsername, batchTranslateTo, batchOutput));
+            return;
+        }
+
         CNTextServiceBlockingStub blockingStub = CNTextServiceGrpc.newBlockingStub(channel);
-        CNTextServiceStub stub = CNTextServiceGrpc.newStub(channel);
 
-        CNTextClient client = new CNTextClient(blockingStub, stub);
+        CNTextClient client = new CNTextClient(blockingStub, asyncClient);
 
         client.start();
     }
+
+    // Results go to standard output unless a file is given, the exit status is 1 if any image wasn't translated.
+    private static int runBatch(CNTextAsyncClient asyncClient, String paths, String username, String translateTo, String output)
+    {
+        if(username == null) {
+            System.err.println("A batch needs the username to sign in with, given as -u=<username>.");
+            return 2;
+        }
+
+        try (PrintStream out = output == null ? new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8") : new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+            List<Path> images = BatchTranslation.expand(paths);
+            int failures = new BatchTranslation(asyncClient, out).run(username, images, translateTo);
+
+            logger.info("Batch of " + images.size() + " images finished, " + failures + " couldn't be translated.");
+
+            // Standard output only has the results.
+            if(asyncClient.getPreprocessor() != null) {
+                System.err.println(asyncClient.getPreprocessor());
+
+                logger.info(asyncClient.getPreprocessor().toString());
+            }
+
+            asyncClient.shutdown();
+
+            return failures == 0 ? 0 : 1;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            logger.error(e.getMessage());
+
+            return 2;
+        }
+    }
 }
@@ -0,0 +1,221 @@
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.store.KeyValueStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs the server, OCR and translation modules in a single process, joined by in-memory queues instead of Pub/Sub.
+public class CNTextLauncher
+{
+    private static final Logger logger = LogManager.getLogger(CNTextLauncher.class);
+
+    private static final String DEFAULT_SERVER_JAR = "cntext-server-1.0-jar-with-dependencies.jar";
+    private static final String DEFAULT_OCR_JAR = "cntext-ocr-1.0-jar-with-dependencies.jar";
+    private static final String DEFAULT_TRANSLATION_JAR = "cntext-translation-1.0-jar-with-dependencies.jar";
+
+    // The same topic ids the server and the workers publish to and subscribe from.
+    private static final String FREE_OCR_TOPIC_ID = "free-ocr";
+    private static final String PREMIUM_OCR_TOPIC_ID = "premium-ocr";
+    private static final String FREE_TRANSLATE_TOPIC_ID = "free-translate";
+    private static final String PREMIUM_TRANSLATE_TOPIC_ID = "premium-translate";
+
+    // Free workers handle a single message at a time, like their single threaded subscribers do.
+    private static final int DEFAULT_FREE_CONCURRENCY = 1;
+    private static final int DEFAULT_PREMIUM_CONCURRENCY = 8;
+
+    // The threads of a module scheduling both levels itself, it's launched with -p and so sized like a premium worker.
+    private static final int DEFAULT_SCHEDULER_THREADS = 5;
+    private static final Pattern SCHEDULER_THREADS_PATTERN = Pattern.compile("^-tc=([\\d]+)$");
+
+    private static final long STATS_PERIOD_MINUTES = 1L;
+
+    // Every module gets its own class loader, since their classes share the default package and some of their names.
+    // Classes the modules hand to each other, the queues, the store and Pub/Sub's, are only found in the parent.
+    private static Method loadLaunch(String jar, String mainClass) throws Exception
+    {
+        URL url = Paths.get(jar).toUri().toURL();
+        ClassLoader loader = new URLClassLoader(new URL[] { url }, CNTextLauncher.class.getClassLoader());
+
+        return loader
+            .loadClass(mainClass)
+            .getMethod("launch", InMemoryTopics.class, KeyValueStore.class, String[].class);
+    }
+
+    // Threads started by a module inherit the class loader of the module.
+    private static void launch(Method launch, InMemoryTopics topics, KeyValueStore keyValueStore, List<String> args, String... extraArgs) throws Exception
+    {
+        List<String> moduleArgs = new ArrayList<>(args);
+
+        for (String arg : extraArgs)
+            moduleArgs.add(arg);
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+
+        thread.setContextClassLoader(launch.getDeclaringClass().getClassLoader());
+
+        try {
+            launch.invoke(null, topics, keyValueStore, moduleArgs.toArray(new String[0]));
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private static int getSchedulerThreads(List<String> moduleArgs)
+    {
+        int threads = DEFAULT_SCHEDULER_THREADS;
+
+        for (String arg : moduleArgs) {
+            Matcher schedulerThreadsMatcher = SCHEDULER_THREADS_PATTERN.matcher(arg);
+
+            if(schedulerThreadsMatcher.matches() && Integer.parseInt(schedulerThreadsMatcher.group(1)) > 0)
+                threads = Integer.parseInt(schedulerThreadsMatcher.group(1));
+        }
+
+        return threads;
+    }
+
+    public static void main(String... args)
+    {
+        String serverJar = DEFAULT_SERVER_JAR;
+        String ocrJar = DEFAULT_OCR_JAR;
+        String translationJar = DEFAULT_TRANSLATION_JAR;
+        int queueCapacity = InMemoryTopics.DEFAULT_CAPACITY;
+        String keyValueStoreDirectory = null;
+
+        Map<String, Integer> concurrency = new HashMap<>();
+        concurrency.put(FREE_OCR_TOPIC_ID, DEFAULT_FREE_CONCURRENCY);
+        concurrency.put(PREMIUM_OCR_TOPIC_ID, DEFAULT_PREMIUM_CONCURRENCY);
+        concurrency.put(FREE_TRANSLATE_TOPIC_ID, DEFAULT_FREE_CONCURRENCY);
+        concurrency.put(PREMIUM_TRANSLATE_TOPIC_ID, DEFAULT_PREMIUM_CONCURRENCY);
+
+        // Topics whose concurrency was given with -qc, which is kept as given.
+        Set<String> configuredTopics = new HashSet<>();
+
+        // Arguments prefixed with s:, o: or t: only go to the server, OCR or translation, any other goes to all of them.
+        List<String> serverArgs = new ArrayList<>();
+        List<String> ocrArgs = new ArrayList<>();
+        List<String> translationArgs = new ArrayList<>();
+
+        Pattern serverJarPattern = Pattern.compile("^-sj=(.+)$");
+        Pattern ocrJarPattern = Pattern.compile("^-oj=(.+)$");
+        Pattern translationJarPattern = Pattern.compile("^-tj=(.+)$");
+        Pattern queueCapacityPattern = Pattern.compile("^-qs=([\\d]+)$");
+        Pattern concurrencyPattern = Pattern.compile("^-qc=([\\w-]+:[\\d]+(,[\\w-]+:[\\d]+)*)$");
+        Pattern keyValueStoreDirectoryPattern = Pattern.compile("^-ks=(.+)$");
+        Pattern moduleArgPattern = Pattern.compile("^([sot]):(.+)$");
+
+        for (String arg : args) {
+            Matcher serverJarMatcher = serverJarPattern.matcher(arg);
+            Matcher ocrJarMatcher = ocrJarPattern.matcher(arg);
+            Matcher translationJarMatcher = translationJarPattern.matcher(arg);
+            Matcher queueCapacityMatcher = queueCapacityPattern.matcher(arg);
+            Matcher concurrencyMatcher = concurrencyPattern.matcher(arg);
+            Matcher keyValueStoreDirectoryMatcher = keyValueStoreDirectoryPattern.matcher(arg);
+            Matcher moduleArgMatcher = moduleArgPattern.matcher(arg);
+
+            if(serverJarMatcher.matches())
+                serverJar = serverJarMatcher.group(1);
+            else if(ocrJarMatcher.matches())
+                ocrJar = ocrJarMatcher.group(1);
+            else if(translationJarMatcher.matches())
+                translationJar = translationJarMatcher.group(1);
+            else if(queueCapacityMatcher.matches())
+                queueCapacity = Integer.parseInt(queueCapacityMatcher.group(1));
+            else if(concurrencyMatcher.matches()) {
+                for (String queue : concurrencyMatcher.group(1).split(",")) {
+                    concurrency.put(queue.split(":")[0], Integer.parseInt(queue.split(":")[1]));
+                    configuredTopics.add(queue.split(":")[0]);
+                }
+            }
+            else if(keyValueStoreDirectoryMatcher.matches())
+                keyValueStoreDirectory = keyValueStoreDirectoryMatcher.group(1);
+            else if(moduleArgMatcher.matches()) {
+                if(moduleArgMatcher.group(1).equals("s"))
+                    serverArgs.add(moduleArgMatcher.group(2));
+                else if(moduleArgMatcher.group(1).equals("o"))
+                    ocrArgs.add(moduleArgMatcher.group(2));
+                else
+                    translationArgs.add(moduleArgMatcher.group(2));
+            }
+            else {
+                serverArgs.add(arg);
+                ocrArgs.add(arg);
+                translationArgs.add(arg);
+            }
+        }
+
+        // A module scheduling both levels is only handed as many free messages at once as the free topic lets through, at
+        // one the threads premium leaves idle would wait while free work queues. So the topic lets one through per thread.
+        if(ocrArgs.contains("-ts") && !configuredTopics.contains(FREE_OCR_TOPIC_ID))
+            concurrency.put(FREE_OCR_TOPIC_ID, Math.max(DEFAULT_FREE_CONCURRENCY, getSchedulerThreads(ocrArgs)));
+
+        if(translationArgs.contains("-ts") && !configuredTopics.contains(FREE_TRANSLATE_TOPIC_ID))
+            concurrency.put(FREE_TRANSLATE_TOPIC_ID, Math.max(DEFAULT_FREE_CONCURRENCY, getSchedulerThreads(translationArgs)));
+
+        try {
+            InMemoryTopics topics = new InMemoryTopics();
+
+            for (Map.Entry<String, Integer> queue : concurrency.entrySet())
+                topics.create(queue.getKey(), queueCapacity, queue.getValue());
+
+            // Without a store directory every module keeps using Firestore.
+            KeyValueStore keyValueStore = null;
+
+            if(keyValueStoreDirectory != null) {
+                KeyValueStore store = KeyValueStore.open(Paths.get(keyValueStoreDirectory));
+                keyValueStore = store;
+
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        store.close();
+                    } catch (Exception e) {
+                        logger.error(e.getMessage());
+                    }
+                }));
+            }
+
+            Method ocr = loadLaunch(ocrJar, "CNTextOCR");
+            Method translation = loadLaunch(translationJar, "CNTextTranslation");
+            Method server = loadLaunch(serverJar, "CNTextServer");
+
+            // Workers share the server's metrics endpoint, so their own is turned off. Each level gets its own receivers,
+            // unless a module schedules both levels itself, then it's launched once and reads both queues.
+            if(!translationArgs.contains("-ts"))
+                launch(translation, topics, keyValueStore, translationArgs, "-mp=0");
+            launch(translation, topics, keyValueStore, translationArgs, "-mp=0", "-p");
+
+            if(!ocrArgs.contains("-ts"))
+                launch(ocr, topics, keyValueStore, ocrArgs, "-mp=0");
+            launch(ocr, topics, keyValueStore, ocrArgs, "-mp=0", "-p");
+
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "launcher-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            stats.scheduleAtFixedRate(() -> logger.info(topics.toString()), STATS_PERIOD_MINUTES, STATS_PERIOD_MINUTES, TimeUnit.MINUTES);
+
+            // Returns once the server stops.
+            launch(server, topics, keyValueStore, serverArgs);
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,332 @@
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceBlockingStub;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceStub;
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.contract.Username;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Simulates users signing in, submitting an image, waiting for its translation and signing out. In closed loop each
+// user starts a new session as soon as the last one ends, in open loop sessions start at a fixed rate however long
+// the ones before them take.
+public class CNTextLoadGenerator
+{
+    private static final Logger logger = LogManager.getLogger(CNTextLoadGenerator.class);
+
+    public static final String DEFAULT_SERVER_IP = "localhost";
+    public static final int DEFAULT_SERVER_PORT = 8000;
+
+    private static final int DEFAULT_USERS = 10;
+    private static final long DEFAULT_DURATION_SECONDS = 60L;
+    private static final long DEFAULT_WARM_UP_SECONDS = 10L;
+    private static final long DEFAULT_TIMEOUT_SECONDS = 60L;
+    private static final long DEFAULT_REPORT_PERIOD_SECONDS = 10L;
+    private static final String DEFAULT_USERNAME_PREFIX = "load-user-";
+    private static final String DEFAULT_SERVICE_LEVEL = "premium";
+    private static final String DEFAULT_TRANSLATE_TO = "en";
+
+    private final CNTextServiceBlockingStub blockingStub;
+    private final CNTextServiceStub stub;
+    private final LoadStatistics statistics = new LoadStatistics();
+
+    private final int users;
+    private final String usernamePrefix;
+    private final ImageMix imageMix;
+    private final String translateTo;
+    private final int chunkSize;
+    private final long timeoutMillis;
+
+    public CNTextLoadGenerator(
+        CNTextServiceBlockingStub blockingStub,
+        CNTextServiceStub stub,
+        int users,
+        String usernamePrefix,
+        ImageMix imageMix,
+        String translateTo,
+        int chunkSize,
+        long timeoutMillis
+    ) {
+        this.blockingStub = blockingStub;
+        this.stub = stub;
+        this.users = users;
+        this.usernamePrefix = usernamePrefix;
+        this.imageMix = imageMix;
+        this.translateTo = translateTo;
+        this.chunkSize = chunkSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private VirtualUser newUser() {
+        return new VirtualUser(blockingStub, stub, statistics, imageMix, translateTo, chunkSize, timeoutMillis);
+    }
+
+    // Signs the first user in and out, waiting for the server to come up, so the run doesn't start with errors.
+    public void awaitServer()
+    {
+        Session session = blockingStub
+            .withWaitForReady()
+            .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+            .signIn(Username.newBuilder().setValue(usernamePrefix + 0).build());
+
+        blockingStub
+            .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+            .signOut(session);
+    }
+
+    public void runClosedLoop(long warmUpSeconds, long durationSeconds, long reportPeriodSeconds) throws InterruptedException
+    {
+        long endsAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmUpSeconds + durationSeconds);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < users; i++) {
+            String username = usernamePrefix + i;
+
+            Thread thread = new Thread(() -> {
+                VirtualUser user = newUser();
+
+                while (System.nanoTime() < endsAt)
+                    user.run(username, System.nanoTime());
+            }, "load-user-" + i);
+
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        report(warmUpSeconds, durationSeconds, reportPeriodSeconds);
+
+        for (Thread thread : threads)
+            thread.join(timeoutMillis);
+    }
+
+    // Sessions that can't start on time wait for a free user, and that wait counts in their end to end latency.
+    public void runOpenLoop(double sessionsPerSecond, long warmUpSeconds, long durationSeconds, long reportPeriodSeconds) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(users, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ThreadLocal<VirtualUser> user = ThreadLocal.withInitial(this::newUser);
+
+        ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+        long periodNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / sessionsPerSecond));
+        long startedAt = System.nanoTime();
+        AtomicLong sessions = new AtomicLong();
+
+        arrivals.scheduleAtFixedRate(() -> {
+            long session = sessions.getAndIncrement();
+            long intendedAt = startedAt + session * periodNanos;
+            String username = usernamePrefix + (session % users);
+
+            pool.execute(() -> user.get().run(username, intendedAt));
+        }, 0L, periodNanos, TimeUnit.NANOSECONDS);
+
+        report(warmUpSeconds, durationSeconds, reportPeriodSeconds);
+
+        arrivals.shutdownNow();
+        pool.shutdown();
+        pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void report(long warmUpSeconds, long durationSeconds, long reportPeriodSeconds) throws InterruptedException
+    {
+        TimeUnit.SECONDS.sleep(warmUpSeconds);
+        statistics.reset();
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(reportPeriodSeconds);
+        long endsAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        while (System.nanoTime() < endsAt) {
+            long startedAt = System.nanoTime();
+            TimeUnit.NANOSECONDS.sleep(Math.min(periodNanos, endsAt - startedAt));
+
+            String progress = statistics.reportInterval(System.nanoTime() - startedAt);
+            System.out.println(progress);
+            logger.info(progress);
+        }
+    }
+
+    public String getReport() {
+        return statistics.reportTotal();
+    }
+
+    public static void main(String... args)
+    {
+        String serverIp = DEFAULT_SERVER_IP;
+        int serverPort = DEFAULT_SERVER_PORT;
+        int users = DEFAULT_USERS;
+        double sessionsPerSecond = 0;
+        long durationSeconds = DEFAULT_DURATION_SECONDS;
+        long warmUpSeconds = DEFAULT_WARM_UP_SECONDS;
+        long timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+        long reportPeriodSeconds = DEFAULT_REPORT_PERIOD_SECONDS;
+        String imageMix = ImageMix.DEFAULT_MIX;
+        String translateTo = DEFAULT_TRANSLATE_TO;
+        int chunkSize = VirtualUser.DEFAULT_CHUNK_SIZE_BYTES;
+        String usernamePrefix = DEFAULT_USERNAME_PREFIX;
+
+        boolean local = false;
+        String serverJar = LocalBackends.DEFAULT_SERVER_JAR;
+        String serviceLevel = DEFAULT_SERVICE_LEVEL;
+        long ocrMillis = LocalBackends.DEFAULT_OCR_MILLIS;
+        long translationMillis = LocalBackends.DEFAULT_TRANSLATION_MILLIS;
+        int workerConcurrency = LocalBackends.DEFAULT_WORKER_CONCURRENCY;
+
+        // Arguments prefixed with s: go to the local server.
+        List<String> serverArgs = new ArrayList<>();
+
+        Pattern serverIpPattern = Pattern.compile("^-ip=((?:\\d{1,3}\\.){3}\\d+)$");
+        Pattern portPattern = Pattern.compile("^-p=(\\d{1,5})$");
+        Pattern usersPattern = Pattern.compile("^-u=([\\d]+)$");
+        Pattern ratePattern = Pattern.compile("^-r=([\\d]+(?:\\.[\\d]+)?)$");
+        Pattern durationPattern = Pattern.compile("^-d=([\\d]+)$");
+        Pattern warmUpPattern = Pattern.compile("^-wu=([\\d]+)$");
+        Pattern timeoutPattern = Pattern.compile("^-t=([\\d]+)$");
+        Pattern reportPeriodPattern = Pattern.compile("^-rp=([\\d]+)$");
+        Pattern imageMixPattern = Pattern.compile("^-m=([\\d]+:[\\d]+(,[\\d]+:[\\d]+)*)$");
+        Pattern translateToPattern = Pattern.compile("^-to=([a-z]{2})$");
+        Pattern chunkSizePattern = Pattern.compile("^-cs=([\\d]+)$");
+        Pattern usernamePrefixPattern = Pattern.compile("^-un=([\\w.@-]+)$");
+        Pattern localPattern = Pattern.compile("^-l$");
+        Pattern serverJarPattern = Pattern.compile("^-sj=(.+)$");
+        Pattern serviceLevelPattern = Pattern.compile("^-lv=(free|premium)$");
+        Pattern ocrMillisPattern = Pattern.compile("^-od=([\\d]+)$");
+        Pattern translationMillisPattern = Pattern.compile("^-td=([\\d]+)$");
+        Pattern workerConcurrencyPattern = Pattern.compile("^-wc=([\\d]+)$");
+        Pattern serverArgPattern = Pattern.compile("^s:(.+)$");
+
+        for (String arg : args) {
+            Matcher serverIpMatcher = serverIpPattern.matcher(arg);
+            Matcher portMatcher = portPattern.matcher(arg);
+            Matcher usersMatcher = usersPattern.matcher(arg);
+            Matcher rateMatcher = ratePattern.matcher(arg);
+            Matcher durationMatcher = durationPattern.matcher(arg);
+            Matcher warmUpMatcher = warmUpPattern.matcher(arg);
+            Matcher timeoutMatcher = timeoutPattern.matcher(arg);
+            Matcher reportPeriodMatcher = reportPeriodPattern.matcher(arg);
+            Matcher imageMixMatcher = imageMixPattern.matcher(arg);
+            Matcher translateToMatcher = translateToPattern.matcher(arg);
+            Matcher chunkSizeMatcher = chunkSizePattern.matcher(arg);
+            Matcher usernamePrefixMatcher = usernamePrefixPattern.matcher(arg);
+            Matcher localMatcher = localPattern.matcher(arg);
+            Matcher serverJarMatcher = serverJarPattern.matcher(arg);
+            Matcher serviceLevelMatcher = serviceLevelPattern.matcher(arg);
+            Matcher ocrMillisMatcher = ocrMillisPattern.matcher(arg);
+            Matcher translationMillisMatcher = translationMillisPattern.matcher(arg);
+            Matcher workerConcurrencyMatcher = workerConcurrencyPattern.matcher(arg);
+            Matcher serverArgMatcher = serverArgPattern.matcher(arg);
+
+            if(serverIpMatcher.matches())
+                serverIp = serverIpMatcher.group(1);
+            else if(portMatcher.matches())
+                serverPort = Integer.parseInt(portMatcher.group(1));
+            else if(usersMatcher.matches())
+                users = Math.max(1, Integer.parseInt(usersMatcher.group(1)));
+            else if(rateMatcher.matches())
+                sessionsPerSecond = Double.parseDouble(rateMatcher.group(1));
+            else if(durationMatcher.matches())
+                durationSeconds = Long.parseLong(durationMatcher.group(1));
+            else if(warmUpMatcher.matches())
+                warmUpSeconds = Long.parseLong(warmUpMatcher.group(1));
+            else if(timeoutMatcher.matches())
+                timeoutSeconds = Long.parseLong(timeoutMatcher.group(1));
+            else if(reportPeriodMatcher.matches())
+                reportPeriodSeconds = Math.max(1L, Long.parseLong(reportPeriodMatcher.group(1)));
+            else if(imageMixMatcher.matches())
+                imageMix = imageMixMatcher.group(1);
+            else if(translateToMatcher.matches())
+                translateTo = translateToMatcher.group(1);
+            else if(chunkSizeMatcher.matches())
+                chunkSize = Math.max(1, Integer.parseInt(chunkSizeMatcher.group(1)));
+            else if(usernamePrefixMatcher.matches())
+                usernamePrefix = usernamePrefixMatcher.group(1);
+            else if(localMatcher.matches())
+                local = true;
+            else if(serverJarMatcher.matches())
+                serverJar = serverJarMatcher.group(1);
+            else if(serviceLevelMatcher.matches())
+                serviceLevel = serviceLevelMatcher.group(1);
+            else if(ocrMillisMatcher.matches())
+                ocrMillis = Long.parseLong(ocrMillisMatcher.group(1));
+            else if(translationMillisMatcher.matches())
+                translationMillis = Long.parseLong(translationMillisMatcher.group(1));
+            else if(workerConcurrencyMatcher.matches())
+                workerConcurrency = Math.max(1, Integer.parseInt(workerConcurrencyMatcher.group(1)));
+            else if(serverArgMatcher.matches())
+                serverArgs.add(serverArgMatcher.group(1));
+        }
+
+        LocalBackends localBackends = null;
+
+        try {
+            // Locally the users are created up front, a remote server must already know them.
+            if(local) {
+                localBackends = new LocalBackends(ocrMillis, translationMillis);
+
+                for (int i = 0; i < users; i++)
+                    localBackends.storeUser(usernamePrefix + i, serviceLevel);
+
+                localBackends.start(serverJar, serverPort, workerConcurrency, serverArgs);
+            }
+
+            ManagedChannel channel = ManagedChannelBuilder
+                .forAddress(serverIp, serverPort)
+                .usePlaintext()
+                .build();
+
+            CNTextLoadGenerator generator = new CNTextLoadGenerator(
+                CNTextServiceGrpc.newBlockingStub(channel),
+                CNTextServiceGrpc.newStub(channel),
+                users,
+                usernamePrefix,
+                new ImageMix(imageMix),
+                translateTo,
+                chunkSize,
+                TimeUnit.SECONDS.toMillis(timeoutSeconds)
+            );
+
+            generator.awaitServer();
+
+            String mode = sessionsPerSecond > 0 ? "open loop at " + sessionsPerSecond + " sessions/s" : "closed loop";
+            System.out.println("Running " + users + " users in " + mode + " for " + durationSeconds + " s after " + warmUpSeconds + " s of warm up, images " + imageMix + ".");
+
+            if(sessionsPerSecond > 0)
+                generator.runOpenLoop(sessionsPerSecond, warmUpSeconds, durationSeconds, reportPeriodSeconds);
+            else
+                generator.runClosedLoop(warmUpSeconds, durationSeconds, reportPeriodSeconds);
+
+            String report = generator.getReport();
+            System.out.println();
+            System.out.print(report);
+            logger.info("\n" + report);
+
+            if(localBackends != null)
+                logger.info(localBackends.toString());
+
+            channel.shutdownNow();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            logger.error(e.getMessage());
+        } finally {
+            if(localBackends != null)
+                localBackends.shutdown();
+        }
+
+        // The local server keeps the process alive otherwise.
+        System.exit(0);
+    }
+}
\ No newline at end of file
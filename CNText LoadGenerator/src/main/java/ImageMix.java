@@ -0,0 +1,62 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Image sizes picked at random in proportion to their weights, written as size:weight,... e.g. 65536:70,1048576:30.
+public class ImageMix
+{
+    public static final String DEFAULT_MIX = "65536:70,1048576:25,4194304:5";
+
+    private final int[] sizes;
+    private final int[] cumulativeWeights;
+
+    public ImageMix(String mix)
+    {
+        String[] entries = mix.split(",");
+
+        sizes = new int[entries.length];
+        cumulativeWeights = new int[entries.length];
+
+        int total = 0;
+
+        for (int i = 0; i < entries.length; i++) {
+            sizes[i] = Integer.parseInt(entries[i].split(":")[0]);
+            total += Integer.parseInt(entries[i].split(":")[1]);
+            cumulativeWeights[i] = total;
+        }
+
+        if (total <= 0)
+            throw new IllegalArgumentException("The image mix " + mix + " has no weight.");
+    }
+
+    public int getSizeCount() {
+        return sizes.length;
+    }
+
+    public int getSize(int index) {
+        return sizes[index];
+    }
+
+    // The index of the size, so users can keep an image of each size around.
+    public int next()
+    {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int index = 0;
+
+        while (pick >= cumulativeWeights[index])
+            index++;
+
+        return index;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder out = new StringBuilder();
+
+        for (int i = 0; i < sizes.length; i++) {
+            int weight = cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]);
+            out.append(i == 0 ? "" : ",").append(sizes[i]).append(':').append(weight);
+        }
+
+        return out.toString();
+    }
+}
\ No newline at end of file
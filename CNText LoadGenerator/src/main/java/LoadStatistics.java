@@ -0,0 +1,133 @@
+import io.grpc.Status;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies of every operation, recorded in microseconds at three significant digits, so the tail is as precise as
+// the median. Recorders are lock free, each report swaps their interval out and adds it to the run's totals.
+public class LoadStatistics
+{
+    public static final String SIGN_IN = "SignIn";
+    public static final String SUBMIT = "Submit";
+    public static final String WAIT_FOR_RESULT = "WaitForResult";
+    public static final String SIGN_OUT = "SignOut";
+    public static final String END_TO_END = "EndToEnd";
+
+    private static final String[] OPERATIONS = { SIGN_IN, SUBMIT, WAIT_FOR_RESULT, SIGN_OUT, END_TO_END };
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static class Operation
+    {
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final LongAdder errors = new LongAdder();
+
+        private Histogram interval;
+    }
+
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+
+    // Errors by operation and status code, e.g. Submit RESOURCE_EXHAUSTED.
+    private final ConcurrentHashMap<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+
+    private long startedAt = System.nanoTime();
+
+    public LoadStatistics()
+    {
+        for (String operation : OPERATIONS)
+            operations.put(operation, new Operation());
+    }
+
+    public void record(String operation, long startedAt) {
+        record(operation, startedAt, System.nanoTime());
+    }
+
+    public void record(String operation, long startedAt, long finishedAt)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(finishedAt - startedAt);
+
+        operations.get(operation).recorder.recordValue(Math.min(Math.max(micros, 0L), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    public void recordError(String operation, Throwable throwable)
+    {
+        operations.get(operation).errors.increment();
+        errorCodes.computeIfAbsent(operation + " " + Status.fromThrowable(throwable).getCode(), key -> new LongAdder()).increment();
+    }
+
+    // Drops everything recorded so far, at the end of the warm up.
+    public synchronized void reset()
+    {
+        for (Operation operation : operations.values()) {
+            operation.recorder.reset();
+            operation.total.reset();
+            operation.errors.reset();
+        }
+
+        errorCodes.clear();
+        startedAt = System.nanoTime();
+    }
+
+    // The last interval only, for progress while the run goes on.
+    public synchronized String reportInterval(long intervalNanos)
+    {
+        StringBuilder out = new StringBuilder();
+
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation operation = entry.getValue();
+
+            operation.interval = operation.recorder.getIntervalHistogram(operation.interval);
+            operation.total.add(operation.interval);
+
+            Histogram interval = operation.interval;
+
+            out.append(String.format("%s %.1f/s p50=%.1fms p99=%.1fms  ",
+                entry.getKey(),
+                interval.getTotalCount() * 1e9 / intervalNanos,
+                interval.getValueAtPercentile(50) / 1e3,
+                interval.getValueAtPercentile(99) / 1e3
+            ));
+        }
+
+        return out.toString().trim();
+    }
+
+    public synchronized String reportTotal()
+    {
+        // Whatever was recorded since the last interval also counts.
+        reportInterval(1L);
+
+        double elapsedSeconds = (System.nanoTime() - startedAt) / 1e9;
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-14s %9s %7s %12s %10s %10s %10s %10s %10s%n", "Operation", "Count", "Errors", "Throughput/s", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "Max ms"));
+
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Histogram total = entry.getValue().total;
+
+            out.append(String.format("%-14s %9d %7d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                entry.getKey(),
+                total.getTotalCount(),
+                entry.getValue().errors.sum(),
+                total.getTotalCount() / elapsedSeconds,
+                total.getValueAtPercentile(50) / 1e3,
+                total.getValueAtPercentile(95) / 1e3,
+                total.getValueAtPercentile(99) / 1e3,
+                total.getValueAtPercentile(99.9) / 1e3,
+                total.getMaxValue() / 1e3
+            ));
+        }
+
+        for (Map.Entry<String, LongAdder> entry : errorCodes.entrySet())
+            out.append(String.format("%s: %d%n", entry.getKey(), entry.getValue().sum()));
+
+        return out.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,201 @@
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.pubsub.v1.PubsubMessage;
+import ipl.isel.cn.group2.metrics.StageTimings;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.store.KeyValueStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// The server loaded from its jar, with its store, topics and blobs in this process, and fake OCR and translation
+// workers that take a fixed time per image. Nothing leaves the machine.
+public class LocalBackends
+{
+    private static final Logger logger = LogManager.getLogger(LocalBackends.class);
+
+    public static final String DEFAULT_SERVER_JAR = "cntext-server-1.0-jar-with-dependencies.jar";
+
+    public static final long DEFAULT_OCR_MILLIS = 200L;
+    public static final long DEFAULT_TRANSLATION_MILLIS = 100L;
+    public static final int DEFAULT_WORKER_CONCURRENCY = 8;
+
+    private static final String FREE_OCR_TOPIC_ID = "free-ocr";
+    private static final String PREMIUM_OCR_TOPIC_ID = "premium-ocr";
+    private static final String FREE_TRANSLATE_TOPIC_ID = "free-translate";
+    private static final String PREMIUM_TRANSLATE_TOPIC_ID = "premium-translate";
+
+    // How the workers' embedded stores keep the stage timestamps of a submission.
+    private static final String TIMINGS_PREFIX = "timings.";
+
+    private final KeyValueStore store = KeyValueStore.inMemory();
+    private final InMemoryTopics topics = new InMemoryTopics();
+
+    private final long ocrMillis;
+    private final long translationMillis;
+
+    private Path blobs;
+
+    public LocalBackends(long ocrMillis, long translationMillis) {
+        this.ocrMillis = ocrMillis;
+        this.translationMillis = translationMillis;
+    }
+
+    public void storeUser(String username, String serviceLevel) throws IOException
+    {
+        Map<String, String> user = new HashMap<>();
+        user.put("serviceLevel", serviceLevel);
+
+        store.put("users", username, user);
+    }
+
+    public void start(String serverJar, int port, int workerConcurrency, List<String> serverArgs) throws Exception
+    {
+        blobs = Files.createTempDirectory("cntext-load-blobs");
+
+        topics.create(FREE_OCR_TOPIC_ID, InMemoryTopics.DEFAULT_CAPACITY, workerConcurrency);
+        topics.create(PREMIUM_OCR_TOPIC_ID, InMemoryTopics.DEFAULT_CAPACITY, workerConcurrency);
+        topics.create(FREE_TRANSLATE_TOPIC_ID, InMemoryTopics.DEFAULT_CAPACITY, workerConcurrency);
+        topics.create(PREMIUM_TRANSLATE_TOPIC_ID, InMemoryTopics.DEFAULT_CAPACITY, workerConcurrency);
+
+        topics.subscribe(FREE_OCR_TOPIC_ID, (message, consumer) -> detect(message, consumer, FREE_TRANSLATE_TOPIC_ID));
+        topics.subscribe(PREMIUM_OCR_TOPIC_ID, (message, consumer) -> detect(message, consumer, PREMIUM_TRANSLATE_TOPIC_ID));
+        topics.subscribe(FREE_TRANSLATE_TOPIC_ID, this::translate);
+        topics.subscribe(PREMIUM_TRANSLATE_TOPIC_ID, this::translate);
+
+        List<String> args = new ArrayList<>();
+        args.add("-p=" + port);
+        args.add("-mp=0");
+        args.add("-bs=" + blobs);
+        args.addAll(serverArgs);
+
+        // Like the launcher, the server gets a class loader of its own, and finds the queues and the store in ours.
+        URL url = Paths.get(serverJar).toUri().toURL();
+        ClassLoader loader = new URLClassLoader(new URL[] { url }, LocalBackends.class.getClassLoader());
+        Method launch = loader
+            .loadClass("CNTextServer")
+            .getMethod("launch", InMemoryTopics.class, KeyValueStore.class, String[].class);
+
+        // The server only returns once told to stop on its standard input, so it's left running on its own thread.
+        Thread server = new Thread(() -> {
+            try {
+                launch.invoke(null, topics, store, args.toArray(new String[0]));
+            } catch (Exception e) {
+                logger.error(e.getMessage());
+            }
+        }, "local-server");
+
+        server.setContextClassLoader(loader);
+        server.setDaemon(true);
+        server.start();
+    }
+
+    public void shutdown()
+    {
+        topics.shutdown();
+
+        try {
+            store.close();
+
+            try (Stream<Path> paths = Files.walk(blobs)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return topics.toString();
+    }
+
+    private void detect(PubsubMessage message, AckReplyConsumer consumer, String translateTopicId)
+    {
+        Map<String, String> attributes = new HashMap<>(message.getAttributesMap());
+        attributes.put(StageTimings.OCR_DEQUEUED_AT, String.valueOf(System.currentTimeMillis()));
+
+        try {
+            sleep(ocrMillis);
+            deleteImage(message.getData().toStringUtf8());
+
+            long finishedAt = System.currentTimeMillis();
+            attributes.put(StageTimings.OCR_FINISHED_AT, String.valueOf(finishedAt));
+            attributes.put(StageTimings.TRANSLATION_ENQUEUED_AT, String.valueOf(finishedAt));
+
+            Map<String, String> update = timings(attributes);
+            update.put("text", "Texto de teste");
+            update.put("state", "detected");
+
+            store.compareAndSet("submissions", attributes.get("submissionId"), "state", "in progress", update);
+
+            topics.publish(translateTopicId, PubsubMessage.newBuilder().setData(message.getData()).putAllAttributes(attributes).build());
+            consumer.ack();
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            consumer.nack();
+        }
+    }
+
+    private void translate(PubsubMessage message, AckReplyConsumer consumer)
+    {
+        Map<String, String> attributes = new HashMap<>(message.getAttributesMap());
+        attributes.put(StageTimings.TRANSLATION_DEQUEUED_AT, String.valueOf(System.currentTimeMillis()));
+
+        try {
+            sleep(translationMillis);
+
+            attributes.put(StageTimings.TRANSLATION_FINISHED_AT, String.valueOf(System.currentTimeMillis()));
+
+            Map<String, String> update = timings(attributes);
+            update.put("textTranslated", "Test text");
+            update.put("translatedFrom", "pt");
+            update.put("translatedTo", attributes.get("to"));
+            update.put("state", "completed");
+
+            store.compareAndSet("submissions", attributes.get("submissionId"), "state", "detected", update);
+            consumer.ack();
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            consumer.nack();
+        }
+    }
+
+    private static Map<String, String> timings(Map<String, String> attributes)
+    {
+        Map<String, String> update = new HashMap<>();
+
+        for (Map.Entry<String, Long> timing : StageTimings.fromAttributes(attributes).entrySet())
+            update.put(TIMINGS_PREFIX + timing.getKey(), String.valueOf(timing.getValue()));
+
+        return update;
+    }
+
+    // The fake OCR never reads the image, it's only deleted so a long run doesn't fill the disk.
+    private void deleteImage(String name) throws IOException
+    {
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(blobs)) {
+            for (Path bucket : buckets)
+                Files.deleteIfExists(bucket.resolve(name));
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedException
+    {
+        if (millis > 0)
+            Thread.sleep(millis);
+    }
+}
\ No newline at end of file
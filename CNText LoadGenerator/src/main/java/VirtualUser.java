@@ -0,0 +1,191 @@
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import ipl.isel.cn.group2.contract.*;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceBlockingStub;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceStub;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Signs in, submits an image, waits for its result and signs out, recording how long each step took. Not thread
+// safe, every thread keeps its own user, since the images are rewritten before each submission.
+public class VirtualUser
+{
+    public static final int DEFAULT_CHUNK_SIZE_BYTES = 1_000_000;
+
+    // Every image starts with a number never used before, so the server can't find any of them already translated.
+    private static final AtomicLong imageSequence = new AtomicLong();
+
+    private final CNTextServiceBlockingStub blockingStub;
+    private final CNTextServiceStub stub;
+    private final LoadStatistics statistics;
+    private final ImageMix imageMix;
+    private final String translateTo;
+    private final int chunkSize;
+    private final long timeoutMillis;
+
+    private final byte[][] images;
+
+    public VirtualUser(
+        CNTextServiceBlockingStub blockingStub,
+        CNTextServiceStub stub,
+        LoadStatistics statistics,
+        ImageMix imageMix,
+        String translateTo,
+        int chunkSize,
+        long timeoutMillis
+    ) {
+        this.blockingStub = blockingStub;
+        this.stub = stub;
+        this.statistics = statistics;
+        this.imageMix = imageMix;
+        this.translateTo = translateTo;
+        this.chunkSize = chunkSize;
+        this.timeoutMillis = timeoutMillis;
+        this.images = new byte[imageMix.getSizeCount()][];
+    }
+
+    private static class SubmissionFuture extends CompletableFuture<Submission> implements StreamObserver<Submission>
+    {
+        private Submission submission;
+
+        @Override
+        public void onNext(Submission submission) {
+            this.submission = submission;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onCompleted() {
+            complete(submission);
+        }
+    }
+
+    // intendedAt is when the session should have started, in open loop it may be well before it actually did, and that
+    // wait is part of the end to end latency.
+    public void run(String username, long intendedAt)
+    {
+        Session session = null;
+        String operation = LoadStatistics.SIGN_IN;
+
+        try {
+            long startedAt = System.nanoTime();
+            session = blockingStub
+                .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .signIn(Username.newBuilder().setValue(username).build());
+            statistics.record(operation, startedAt);
+
+            operation = LoadStatistics.SUBMIT;
+            startedAt = System.nanoTime();
+            Submission submission = submit(session);
+            statistics.record(operation, startedAt);
+
+            operation = LoadStatistics.WAIT_FOR_RESULT;
+            startedAt = System.nanoTime();
+            waitForResult(session, submission);
+            statistics.record(operation, startedAt);
+
+            operation = LoadStatistics.SIGN_OUT;
+            startedAt = System.nanoTime();
+            blockingStub
+                .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .signOut(session);
+            statistics.record(operation, startedAt);
+            session = null;
+
+            statistics.record(LoadStatistics.END_TO_END, intendedAt);
+        } catch (Exception e) {
+            statistics.recordError(operation, e);
+            statistics.recordError(LoadStatistics.END_TO_END, e);
+
+            if (session != null)
+                signOutQuietly(session);
+        }
+    }
+
+    private Submission submit(Session session) throws Exception
+    {
+        int index = imageMix.next();
+        int size = imageMix.getSize(index);
+        byte[] image = nextImage(index);
+
+        SubmissionFuture response = new SubmissionFuture();
+        StreamObserver<Image> request = stub
+            .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+            .submitImageTextTranslationRequest(response);
+
+        Image.Metadata metadata = Image.Metadata
+            .newBuilder()
+            .setSession(session)
+            .setName("load.png")
+            .setSize(size)
+            .setTranslateTo(translateTo)
+            .build();
+
+        request.onNext(Image.newBuilder().setMetadata(metadata).build());
+
+        // Messages are serialized as they are sent, so the image can be wrapped instead of copied for every chunk.
+        for (int offset = 0; offset < size; offset += chunkSize)
+            request.onNext(Image.newBuilder().setChunk(UnsafeByteOperations.unsafeWrap(image, offset, Math.min(chunkSize, size - offset))).build());
+
+        request.onCompleted();
+
+        return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void waitForResult(Session session, Submission submission) throws Exception
+    {
+        Request request = Request.newBuilder().setSession(session).setSubmission(submission).build();
+
+        Iterator<SubmissionState> states = blockingStub
+            .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+            .watchSubmission(request);
+
+        while (states.hasNext()) {
+            SubmissionState state = states.next();
+
+            if (state.getState().compareToIgnoreCase("error") == 0)
+                throw Status.ABORTED.withDescription(state.getError()).asException();
+
+            if (state.getState().compareToIgnoreCase("completed") == 0)
+                return;
+        }
+
+        throw Status.UNKNOWN.withDescription("The submission " + submission.getId() + " never completed.").asException();
+    }
+
+    private void signOutQuietly(Session session)
+    {
+        try {
+            blockingStub
+                .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .signOut(session);
+        } catch (Exception e) {
+            statistics.recordError(LoadStatistics.SIGN_OUT, e);
+        }
+    }
+
+    private byte[] nextImage(int index)
+    {
+        if (images[index] == null) {
+            images[index] = new byte[imageMix.getSize(index)];
+            new Random().nextBytes(images[index]);
+        }
+
+        byte[] image = images[index];
+
+        if (image.length >= Long.BYTES)
+            ByteBuffer.wrap(image).putLong(imageSequence.incrementAndGet());
+
+        return image;
+    }
+}
\ No newline at end of file
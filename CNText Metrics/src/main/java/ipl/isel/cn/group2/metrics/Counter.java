@@ -0,0 +1,32 @@
+package ipl.isel.cn.group2.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter implements Metric
+{
+    private final LongAdder value = new LongAdder();
+
+    Counter() { }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String getType() {
+        return "counter";
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        out.append(name).append(MetricsRegistry.braces(labels)).append(' ').append(value.sum()).append('\n');
+    }
+}
\ No newline at end of file
@@ -0,0 +1,36 @@
+package ipl.isel.cn.group2.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Gauge implements Metric
+{
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge() { }
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void decrement() {
+        value.decrementAndGet();
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        out.append(name).append(MetricsRegistry.braces(labels)).append(' ').append(value.get()).append('\n');
+    }
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package ipl.isel.cn.group2.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Durations are recorded in nanoseconds and exported in seconds.
+public class Histogram implements Metric
+{
+    // Upper bounds of the buckets, anything slower than the last one only shows up in the +Inf bucket.
+    private static final double[] BOUNDS_SECONDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++)
+            BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram()
+    {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos)
+    {
+        int bucket = 0;
+
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket])
+            bucket++;
+
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    // Records the time elapsed since startedAt, a value taken from System.nanoTime.
+    public void recordSince(long startedAt) {
+        record(System.nanoTime() - startedAt);
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+
+        return count;
+    }
+
+    @Override
+    public String getType() {
+        return "histogram";
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels)
+    {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BOUNDS_SECONDS.length ? String.valueOf(BOUNDS_SECONDS[i]) : "+Inf";
+
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+
+        out.append(name).append("_sum").append(MetricsRegistry.braces(labels)).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(MetricsRegistry.braces(labels)).append(' ').append(cumulative).append('\n');
+    }
+}
\ No newline at end of file
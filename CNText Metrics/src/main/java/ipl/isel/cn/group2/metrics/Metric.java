@@ -0,0 +1,9 @@
+package ipl.isel.cn.group2.metrics;
+
+interface Metric
+{
+    String getType();
+
+    // Appends the samples in the Prometheus text format, labels already formatted as name="value" pairs.
+    void writeTo(StringBuilder out, String name, String labels);
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package ipl.isel.cn.group2.metrics;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Records the latency, status code and number of calls in flight of every method it intercepts.
+public class MetricsInterceptor implements ServerInterceptor
+{
+    // Looked up once per method, so recording a call doesn't go through the registry.
+    private class MethodMetrics
+    {
+        private final String method;
+        private final Gauge inFlight;
+        private final Histogram latency;
+        private final AtomicReferenceArray<Counter> handled = new AtomicReferenceArray<>(Status.Code.values().length);
+
+        private MethodMetrics(String method) {
+            this.method = method;
+            this.inFlight = registry.gauge("grpc_server_in_flight_calls", "Calls started and not yet finished.", "method", method);
+            this.latency = registry.histogram("grpc_server_handling_seconds", "Time from the start of a call until it's closed.", "method", method);
+        }
+
+        private void record(Status.Code code, long startedAt)
+        {
+            Counter counter = handled.get(code.ordinal());
+
+            if (counter == null) {
+                counter = registry.counter("grpc_server_handled_total", "Calls finished, by status code.", "method", method, "code", code.name());
+                handled.set(code.ordinal(), counter);
+            }
+
+            latency.recordSince(startedAt);
+            counter.increment();
+            inFlight.decrement();
+        }
+    }
+
+    private final MetricsRegistry registry;
+    private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    public MetricsInterceptor(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next)
+    {
+        MethodMetrics metrics = methods.computeIfAbsent(call.getMethodDescriptor().getFullMethodName(), MethodMetrics::new);
+
+        long startedAt = System.nanoTime();
+        metrics.inFlight.increment();
+
+        // A call ends either when the server closes it or when the client cancels it, only the first is recorded.
+        AtomicBoolean finished = new AtomicBoolean();
+
+        ServerCall<ReqT, RespT> recordingCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (finished.compareAndSet(false, true))
+                    metrics.record(status.getCode(), startedAt);
+
+                super.close(status, trailers);
+            }
+        };
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(recordingCall, headers)) {
+            @Override
+            public void onCancel() {
+                if (finished.compareAndSet(false, true))
+                    metrics.record(Status.Code.CANCELLED, startedAt);
+
+                super.onCancel();
+            }
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+package ipl.isel.cn.group2.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+// Metrics are created once, usually into static fields, and recorded to without any lock.
+public class MetricsRegistry
+{
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private static class Family
+    {
+        private final String help;
+        private final String type;
+
+        // Keyed by the formatted labels, sorted so every scrape lists them in the same order.
+        private final ConcurrentSkipListMap<String, Metric> children = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    // Labels are given as name, value pairs.
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, labels, Counter::new);
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) register(name, help, labels, Gauge::new);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, labels, Histogram::new);
+    }
+
+    public String scrape()
+    {
+        StringBuilder out = new StringBuilder();
+
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            out.append("# HELP ").append(family.getKey()).append(' ').append(family.getValue().help).append('\n');
+            out.append("# TYPE ").append(family.getKey()).append(' ').append(family.getValue().type).append('\n');
+
+            for (Map.Entry<String, Metric> child : family.getValue().children.entrySet())
+                child.getValue().writeTo(out, family.getKey(), child.getKey());
+        }
+
+        return out.toString();
+    }
+
+    private Metric register(String name, String help, String[] labels, Supplier<Metric> factory)
+    {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels of " + name + " must come in name, value pairs.");
+
+        Metric metric = factory.get();
+        Family family = families.computeIfAbsent(name, id -> new Family(help, metric.getType()));
+
+        if (!family.type.equals(metric.getType()))
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type + ".");
+
+        return family.children.computeIfAbsent(formatLabels(labels), id -> metric);
+    }
+
+    private static String formatLabels(String[] labels)
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                builder.append(',');
+
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            builder.append(labels[i]).append("=\"").append(value).append('"');
+        }
+
+        return builder.toString();
+    }
+
+    static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+package ipl.isel.cn.group2.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Serves the registry on /metrics in the Prometheus text format.
+public class MetricsServer
+{
+    public static final int DEFAULT_PORT = 9090;
+
+    private final HttpServer server;
+
+    public MetricsServer(int port, MetricsRegistry registry) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        server.createContext("/metrics", exchange -> {
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,57 @@
+package ipl.isel.cn.group2.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Wall clock timestamps, in milliseconds, a submission collects in its Pub/Sub attributes on its way through the stages.
+public class StageTimings
+{
+    public static final String UPLOAD_STARTED_AT = "uploadStartedAt";
+    public static final String OCR_ENQUEUED_AT = "ocrEnqueuedAt";
+    public static final String OCR_DEQUEUED_AT = "ocrDequeuedAt";
+    public static final String OCR_FINISHED_AT = "ocrFinishedAt";
+    public static final String TRANSLATION_ENQUEUED_AT = "translationEnqueuedAt";
+    public static final String TRANSLATION_DEQUEUED_AT = "translationDequeuedAt";
+    public static final String TRANSLATION_FINISHED_AT = "translationFinishedAt";
+
+    public static final String[] KEYS = {
+        UPLOAD_STARTED_AT,
+        OCR_ENQUEUED_AT,
+        OCR_DEQUEUED_AT,
+        OCR_FINISHED_AT,
+        TRANSLATION_ENQUEUED_AT,
+        TRANSLATION_DEQUEUED_AT,
+        TRANSLATION_FINISHED_AT
+    };
+
+    private StageTimings() { }
+
+    // Picks the timestamps out of the attributes, ignoring everything else they carry.
+    public static Map<String, Long> fromAttributes(Map<String, String> attributes)
+    {
+        Map<String, Long> timings = new HashMap<>();
+
+        for (String key : KEYS) {
+            String value = attributes.get(key);
+
+            if (value != null)
+                timings.put(key, Long.parseLong(value));
+        }
+
+        return timings;
+    }
+
+    public static Histogram queueWait(MetricsRegistry registry, String stage) {
+        return registry.histogram("cntext_queue_wait_seconds", "Time submissions waited in a topic before a worker took them.", "stage", stage);
+    }
+
+    public static Histogram serviceTime(MetricsRegistry registry, String stage) {
+        return registry.histogram("cntext_service_seconds", "Time a stage spent working on a submission once it took it.", "stage", stage);
+    }
+
+    // Clocks of different machines may disagree slightly, so an interval never goes below 0.
+    public static void recordInterval(Histogram histogram, long fromMillis, long toMillis) {
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0L, toMillis - fromMillis)));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.vision.v1.Image;
+
+import java.nio.file.Path;
+
+// Where the server left the uploaded images.
+public interface BlobStore
+{
+    // The image as Vision should be given it, either a reference it can read by itself or the bytes inline.
+    Image getImage(BlobId imageId) throws Exception;
+
+    void downloadImage(BlobId imageId, Path filePath) throws Exception;
+
+    void deleteImage(BlobId imageId) throws Exception;
+}
\ No newline at end of file
@@ -1,3 +1,5 @@
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.auth.oauth2.GoogleCredentials;
@@ -7,14 +9,25 @@ import com.google.cloud.storage.BlobId;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Image;
 import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.PubsubMessage;
-import com.google.pubsub.v1.TopicName;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import ipl.isel.cn.group2.metrics.MetricsServer;
+import ipl.isel.cn.group2.metrics.StageTimings;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.queue.TierScheduler;
+import ipl.isel.cn.group2.store.KeyValueStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,99 +38,330 @@ public class CNTextOCR
     private final static String DEFAULT_PROJECT_ID = "g02-leirt61d-v1920";
     private final static String DEFAULT_SERVICE_LEVEL = "free";
 
+    // Threads of a worker scheduling both levels, as many as the subscriber of its own level used to have.
+    private final static int DEFAULT_PREMIUM_THREADS = 5;
+    private final static int DEFAULT_FREE_THREADS = 1;
+    private final static long STATS_PERIOD_MINUTES = 1L;
+
+    private final static MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final static String STAGE_METRIC_NAME = "cntext_stage_seconds";
+    private final static String STAGE_METRIC_HELP = "Time spent in each stage of processing a submission.";
+
+    private final static Histogram storageReadTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "gcs_read");
+    private final static Histogram visionTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "vision");
+    private final static Histogram firestoreTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "firestore");
+    private final static Histogram storageDeleteTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "gcs_delete");
+    private final static Histogram publishTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "pubsub");
+    private final static Histogram messageTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "total");
+
+    private final static Histogram queueWaitTime = StageTimings.queueWait(metrics, "ocr");
+    private final static Histogram serviceTime = StageTimings.serviceTime(metrics, "ocr");
+
     private static void processMessage (
         StorageServices storageServices,
         VisionServices visionServices,
-        FirestoreServices firestoreServices,
-        TopicName topicName,
+        SubmissionStore submissionStore,
+        PublisherServices publisherServices,
+        String topicId,
         PubsubMessage bytes,
         AckReplyConsumer acknowledge
     ) {
-        Map<String, String> attributes = bytes.getAttributesMap();
+        long receivedAt = System.nanoTime();
+        long dequeuedAt = System.currentTimeMillis();
+
+        // Timestamps of the earlier stages travel with the message, this stage adds its own before passing it on.
+        Map<String, String> attributes = new HashMap<>(bytes.getAttributesMap());
         String submissionId = attributes.get("submissionId");
 
+        attributes.put(StageTimings.OCR_DEQUEUED_AT, String.valueOf(dequeuedAt));
+
+        if (attributes.containsKey(StageTimings.OCR_ENQUEUED_AT))
+            StageTimings.recordInterval(queueWaitTime, Long.parseLong(attributes.get(StageTimings.OCR_ENQUEUED_AT)), dequeuedAt);
+
         String blobName = bytes.getData().toString(Charsets.UTF_8);
 
         BlobId blobId = StorageServices.getBlobId(StorageServices.DEFAULT_BUCKET_ID, blobName);
-        Image image = storageServices.getImage(blobId);
 
         Feature feature = Feature
             .newBuilder()
             .setType(VisionServices.DEFAULT_FEATURE_TYPE)
             .build();
 
-        String imageText = visionServices.detectImageText(image, feature);
-
         try {
-            firestoreServices.storeTextDetectionResult(submissionId, imageText);
+            long startedAt = System.nanoTime();
+            Image image = storageServices.getImage(blobId);
+            storageReadTime.recordSince(startedAt);
+
+            startedAt = System.nanoTime();
+            String imageText = visionServices.detectImageText(image, feature);
+            visionTime.recordSince(startedAt);
+
+            long finishedAt = System.currentTimeMillis();
+            attributes.put(StageTimings.OCR_FINISHED_AT, String.valueOf(finishedAt));
+            StageTimings.recordInterval(serviceTime, dequeuedAt, finishedAt);
+
+            startedAt = System.nanoTime();
+            submissionStore.storeTextDetectionResult(submissionId, imageText, StageTimings.fromAttributes(attributes));
+            firestoreTime.recordSince(startedAt);
+
+            startedAt = System.nanoTime();
             storageServices.deleteImage(blobId);
+            storageDeleteTime.recordSince(startedAt);
 
-            PublisherServices publisherServices = new PublisherServices(topicName);
-            publisherServices.publish(imageText, attributes);
+            long publishedAt = System.nanoTime();
+            attributes.put(StageTimings.TRANSLATION_ENQUEUED_AT, String.valueOf(System.currentTimeMillis()));
 
-            acknowledge.ack();
+            ApiFutureCallback<String> callback = new ApiFutureCallback<String>() {
+                @Override
+                public void onSuccess(String messageId) {
+                    publishTime.recordSince(publishedAt);
+                    messageTime.recordSince(receivedAt);
+                    acknowledge.ack();
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    logger.error(throwable.getMessage());
+                    setSubmissionErrorState(submissionStore, submissionId, "CNTextOCR module: " + throwable.getMessage());
+                    acknowledge.ack();
+                }
+            };
+
+            ApiFutures.addCallback(publisherServices.publish(topicId, imageText, attributes), callback, MoreExecutors.directExecutor());
         } catch (Exception e) {
             logger.error(e.getMessage());
-            setSubmissionErrorState(firestoreServices, submissionId, "CNTextOCR module: " + e.getMessage());
+            setSubmissionErrorState(submissionStore, submissionId, "CNTextOCR module: " + e.getMessage());
             acknowledge.ack();
         }
     }
 
-    private static void setSubmissionErrorState(FirestoreServices firestoreServices, String submissionId, String details) {
+    private static void setSubmissionErrorState(SubmissionStore submissionStore, String submissionId, String details) {
         try {
-            firestoreServices.setSubmissionErrorState(submissionId, details);
-        } catch (ExecutionException | InterruptedException | FirestoreServices.SubmissionNotFoundException ex) {
+            submissionStore.setSubmissionErrorState(submissionId, details);
+        } catch (ExecutionException | InterruptedException | SubmissionStore.SubmissionNotFoundException ex) {
             logger.error(ex.getMessage());
         }
     }
 
-    public static void main(String... args)
+    private static ProjectSubscriptionName getSubscriptionName(String projectId, String subscriptionId) {
+        return ProjectSubscriptionName
+            .newBuilder()
+            .setProject(projectId)
+            .setSubscription(subscriptionId)
+            .build();
+    }
+
+    public static void main(String... args) {
+        launch(null, null, args);
+    }
+
+    // Topics and store are given when the server runs in this same process, otherwise both are null.
+    public static void launch(InMemoryTopics topics, KeyValueStore keyValueStore, String... args)
     {
         String serviceLevel = DEFAULT_SERVICE_LEVEL;
         String projectId = DEFAULT_PROJECT_ID;
+        long batchElementCount = PublisherServices.DEFAULT_BATCH_ELEMENT_COUNT;
+        long batchRequestBytes = PublisherServices.DEFAULT_BATCH_REQUEST_BYTES;
+        long batchDelayMillis = PublisherServices.DEFAULT_BATCH_DELAY_MILLIS;
+        int metricsPort = MetricsServer.DEFAULT_PORT;
+        String blobStoreDirectory = null;
+        boolean tierScheduling = false;
+        int schedulerThreads = 0;
+        int premiumWeight = TierScheduler.DEFAULT_PREMIUM_WEIGHT;
+        int freeWeight = TierScheduler.DEFAULT_FREE_WEIGHT;
+        long latencyGoalMillis = TierScheduler.DEFAULT_LATENCY_GOAL_MILLIS;
+        int visionChannels = VisionServices.DEFAULT_CHANNELS;
+        int visionMaxConcurrentCalls = VisionServices.DEFAULT_MAX_CONCURRENT_CALLS;
 
         Pattern premiumLevelPattern = Pattern.compile("^-p$");
         Pattern projectIdPattern = Pattern.compile("^-i=(\\b[\\w-]+\\b)$");
+        Pattern batchElementCountPattern = Pattern.compile("^-bc=([\\d]+)$");
+        Pattern batchRequestBytesPattern = Pattern.compile("^-bb=([\\d]+)$");
+        Pattern batchDelayPattern = Pattern.compile("^-bd=([\\d]+)$");
+        Pattern metricsPortPattern = Pattern.compile("^-mp=([\\d]+)$");
+        Pattern blobStoreDirectoryPattern = Pattern.compile("^-bs=(.+)$");
+        Pattern tierSchedulingPattern = Pattern.compile("^-ts$");
+        Pattern schedulerThreadsPattern = Pattern.compile("^-tc=([\\d]+)$");
+        Pattern tierWeightsPattern = Pattern.compile("^-tw=([\\d]+):([\\d]+)$");
+        Pattern latencyGoalPattern = Pattern.compile("^-tg=([\\d]+)$");
+        Pattern visionChannelsPattern = Pattern.compile("^-vc=([\\d]+)$");
+        Pattern visionMaxConcurrentCallsPattern = Pattern.compile("^-vm=([\\d]+)$");
 
         for (String arg : args)
         {
             Matcher premiumLevelMatcher = premiumLevelPattern.matcher(arg);
             Matcher projectIdMatcher = projectIdPattern.matcher(arg);
+            Matcher batchElementCountMatcher = batchElementCountPattern.matcher(arg);
+            Matcher batchRequestBytesMatcher = batchRequestBytesPattern.matcher(arg);
+            Matcher batchDelayMatcher = batchDelayPattern.matcher(arg);
+            Matcher metricsPortMatcher = metricsPortPattern.matcher(arg);
+            Matcher blobStoreDirectoryMatcher = blobStoreDirectoryPattern.matcher(arg);
+            Matcher tierSchedulingMatcher = tierSchedulingPattern.matcher(arg);
+            Matcher schedulerThreadsMatcher = schedulerThreadsPattern.matcher(arg);
+            Matcher tierWeightsMatcher = tierWeightsPattern.matcher(arg);
+            Matcher latencyGoalMatcher = latencyGoalPattern.matcher(arg);
+            Matcher visionChannelsMatcher = visionChannelsPattern.matcher(arg);
+            Matcher visionMaxConcurrentCallsMatcher = visionMaxConcurrentCallsPattern.matcher(arg);
 
             if(premiumLevelMatcher.matches())
                 serviceLevel = "premium";
 
             else if(projectIdMatcher.matches())
                 projectId = projectIdMatcher.group(1);
+
+            else if(batchElementCountMatcher.matches())
+                batchElementCount = Long.parseLong(batchElementCountMatcher.group(1));
+
+            else if(batchRequestBytesMatcher.matches())
+                batchRequestBytes = Long.parseLong(batchRequestBytesMatcher.group(1));
+
+            else if(batchDelayMatcher.matches())
+                batchDelayMillis = Long.parseLong(batchDelayMatcher.group(1));
+
+            else if(metricsPortMatcher.matches())
+                metricsPort = Integer.parseInt(metricsPortMatcher.group(1));
+
+            else if(blobStoreDirectoryMatcher.matches())
+                blobStoreDirectory = blobStoreDirectoryMatcher.group(1);
+
+            else if(tierSchedulingMatcher.matches())
+                tierScheduling = true;
+
+            else if(schedulerThreadsMatcher.matches())
+                schedulerThreads = Integer.parseInt(schedulerThreadsMatcher.group(1));
+
+            else if(tierWeightsMatcher.matches()) {
+                premiumWeight = Integer.parseInt(tierWeightsMatcher.group(1));
+                freeWeight = Integer.parseInt(tierWeightsMatcher.group(2));
+            }
+
+            else if(latencyGoalMatcher.matches())
+                latencyGoalMillis = Long.parseLong(latencyGoalMatcher.group(1));
+
+            else if(visionChannelsMatcher.matches())
+                visionChannels = Integer.parseInt(visionChannelsMatcher.group(1));
+
+            else if(visionMaxConcurrentCallsMatcher.matches())
+                visionMaxConcurrentCalls = Integer.parseInt(visionMaxConcurrentCallsMatcher.group(1));
         }
 
         try {
+            // Metrics are scraped from /metrics on their own port, 0 turns the endpoint off.
+            if(metricsPort != 0)
+                new MetricsServer(metricsPort, metrics).start();
+
             GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
 
-            StorageServices storageServices = new StorageServices(projectId, credentials);
-            VisionServices visionServices = new VisionServices();
-            FirestoreServices firestoreServices = new FirestoreServices(projectId, credentials, FirestoreServices.DEFAULT_IMAGES_TEXT_DETECTION_RESULTS_COLLECTION_NAME);
+            // Images are read from Google Cloud Storage, unless the server keeps them in a local directory.
+            BlobStore blobStore;
+
+            if(blobStoreDirectory != null)
+                blobStore = new LocalBlobStore(blobStoreDirectory);
+            else
+                blobStore = new GcsBlobStore(projectId, credentials);
+
+            StorageServices storageServices = new StorageServices(blobStore);
+            // The client is set up and its channels connected here, before any message is received. No channels
+            // gives every call a client of its own instead.
+            VisionServices visionServices = new VisionServices(visionChannels, visionMaxConcurrentCalls);
+            Runtime.getRuntime().addShutdownHook(new Thread(visionServices::shutdown));
+
+            SubmissionStore submissionStore;
+            PublisherServices publisherServices;
+
+            if(keyValueStore != null)
+                submissionStore = new EmbeddedSubmissionStore(keyValueStore);
+            else
+                submissionStore = new FirestoreServices(projectId, credentials, FirestoreServices.DEFAULT_IMAGES_TEXT_DETECTION_RESULTS_COLLECTION_NAME);
+
+            if(topics != null)
+                publisherServices = new PublisherServices(topics);
+            else {
+                publisherServices = new PublisherServices(projectId, batchElementCount, batchRequestBytes, batchDelayMillis);
+                Runtime.getRuntime().addShutdownHook(new Thread(publisherServices::shutdown));
+            }
+
+            boolean premium = serviceLevel.compareToIgnoreCase("premium") == 0;
 
             ProjectSubscriptionName projectSubscriptionName;
             MessageReceiver receiver;
 
             ExecutorProvider executorProvider = null;
 
-            if(serviceLevel.compareToIgnoreCase("premium") == 0)
+            // Both levels are read and share this worker's threads. Premium gets the larger share, free work gets what
+            // premium leaves idle, and none at all while premium messages wait longer than their goal.
+            if(tierScheduling)
             {
-                TopicName topicName = TopicName
-                    .newBuilder()
-                    .setProject(projectId)
-                    .setTopic(PublisherServices.PREMIUM_TRANSLATE_TOPIC_ID)
-                    .build();
+                int threads = schedulerThreads > 0 ? schedulerThreads : premium ? DEFAULT_PREMIUM_THREADS : DEFAULT_FREE_THREADS;
+                TierScheduler scheduler = new TierScheduler("ocr", threads, latencyGoalMillis, TimeUnit.MILLISECONDS);
 
-                receiver = (bytes, acknowledge) -> processMessage(storageServices, visionServices, firestoreServices, topicName, bytes, acknowledge);
+                MessageReceiver premiumReceiver = scheduler.addTier("premium", premiumWeight, latencyGoalMillis, TimeUnit.MILLISECONDS,
+                    (bytes, acknowledge) -> processMessage(storageServices, visionServices, submissionStore, publisherServices, PublisherServices.PREMIUM_TRANSLATE_TOPIC_ID, bytes, acknowledge));
 
-                projectSubscriptionName = ProjectSubscriptionName
+                MessageReceiver freeReceiver = scheduler.addTier("free", freeWeight, 0L, TimeUnit.MILLISECONDS,
+                    (bytes, acknowledge) -> processMessage(storageServices, visionServices, submissionStore, publisherServices, PublisherServices.FREE_TRANSLATE_TOPIC_ID, bytes, acknowledge));
+
+                scheduler.start();
+
+                ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ocr-scheduler-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+                stats.scheduleAtFixedRate(() -> logger.info(scheduler.toString()), STATS_PERIOD_MINUTES, STATS_PERIOD_MINUTES, TimeUnit.MINUTES);
+
+                if(topics != null)
+                {
+                    topics.subscribe(SubscriberServices.PREMIUM_OCR_TOPIC_ID, premiumReceiver);
+                    topics.subscribe(SubscriberServices.FREE_OCR_TOPIC_ID, freeReceiver);
+
+                    System.out.println("Receiving from the " + SubscriberServices.PREMIUM_OCR_TOPIC_ID + " and " + SubscriberServices.FREE_OCR_TOPIC_ID + " queues on " + threads + " threads");
+                    return;
+                }
+
+                publisherServices.start(PublisherServices.PREMIUM_TRANSLATE_TOPIC_ID);
+                publisherServices.start(PublisherServices.FREE_TRANSLATE_TOPIC_ID);
+
+                // The subscribers only queue messages for the scheduler, a thread each is plenty for that. What they
+                // hold is capped, so a busy worker leaves the rest of the backlog to the others.
+                executorProvider = InstantiatingExecutorProvider
                     .newBuilder()
-                    .setProject(projectId)
-                    .setSubscription(SubscriberServices.PREMIUM_OCR_WORKERS_SUBSCRIPTION_ID)
+                    .setExecutorThreadCount(1)
                     .build();
+
+                SubscriberServices premiumSubscriber = new SubscriberServices(getSubscriptionName(projectId, SubscriberServices.PREMIUM_OCR_WORKERS_SUBSCRIPTION_ID), executorProvider, 2L * threads, premiumReceiver);
+                SubscriberServices freeSubscriber = new SubscriberServices(getSubscriptionName(projectId, SubscriberServices.FREE_OCR_WORKER_SUBSCRIPTION_ID), executorProvider, 2L * threads, freeReceiver);
+
+                premiumSubscriber.start();
+                freeSubscriber.start();
+
+                System.out.println("Subscribed to " + SubscriberServices.PREMIUM_OCR_WORKERS_SUBSCRIPTION_ID + " and " + SubscriberServices.FREE_OCR_WORKER_SUBSCRIPTION_ID + " subscriptions on " + threads + " threads");
+
+                premiumSubscriber.awaitTerminated();
+                return;
+            }
+
+            // In process, the queue of the level is read directly and its concurrency was set when it was created.
+            if(topics != null)
+            {
+                String topicId = premium ? PublisherServices.PREMIUM_TRANSLATE_TOPIC_ID : PublisherServices.FREE_TRANSLATE_TOPIC_ID;
+                String queueId = premium ? SubscriberServices.PREMIUM_OCR_TOPIC_ID : SubscriberServices.FREE_OCR_TOPIC_ID;
+
+                topics.subscribe(queueId, (bytes, acknowledge) -> processMessage(storageServices, visionServices, submissionStore, publisherServices, topicId, bytes, acknowledge));
+
+                System.out.println("Receiving from the " + queueId + " queue");
+                return;
+            }
+
+            if(premium)
+            {
+                String topicId = PublisherServices.PREMIUM_TRANSLATE_TOPIC_ID;
+                publisherServices.start(topicId);
+
+                receiver = (bytes, acknowledge) -> processMessage(storageServices, visionServices, submissionStore, publisherServices, topicId, bytes, acknowledge);
+
+                projectSubscriptionName = getSubscriptionName(projectId, SubscriberServices.PREMIUM_OCR_WORKERS_SUBSCRIPTION_ID);
             }
 
             else
@@ -127,19 +371,12 @@ public class CNTextOCR
                     .setExecutorThreadCount(1)
                     .build();
 
-                TopicName topicName = TopicName
-                    .newBuilder()
-                    .setProject(projectId)
-                    .setTopic(PublisherServices.FREE_TRANSLATE_TOPIC_ID)
-                    .build();
+                String topicId = PublisherServices.FREE_TRANSLATE_TOPIC_ID;
+                publisherServices.start(topicId);
 
-                receiver = (bytes, acknowledge) -> processMessage(storageServices, visionServices, firestoreServices, topicName, bytes, acknowledge);
+                receiver = (bytes, acknowledge) -> processMessage(storageServices, visionServices, submissionStore, publisherServices, topicId, bytes, acknowledge);
 
-                projectSubscriptionName = ProjectSubscriptionName
-                    .newBuilder()
-                    .setProject(projectId)
-                    .setSubscription(SubscriberServices.FREE_OCR_WORKER_SUBSCRIPTION_ID)
-                    .build();
+                projectSubscriptionName = getSubscriptionName(projectId, SubscriberServices.FREE_OCR_WORKER_SUBSCRIPTION_ID);
             }
 
             System.out.println("Subscribed to " + projectSubscriptionName.getSubscription() + " subscription");
@@ -0,0 +1,49 @@
+import ipl.isel.cn.group2.store.KeyValueStore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Writes to the key value store the server keeps its submissions in, when both run in the same process.
+public class EmbeddedSubmissionStore implements SubmissionStore
+{
+    private final KeyValueStore store;
+
+    public EmbeddedSubmissionStore(KeyValueStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, SubmissionNotFoundException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "error");
+        update.put("error", details);
+
+        try {
+            if (!store.update("submissions", submissionId, update))
+                throw new SubmissionNotFoundException(submissionId);
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    // Only a submission still in progress is moved on, so a redelivered message can't undo a later state.
+    @Override
+    public void storeTextDetectionResult(String submissionId, String result, Map<String, Long> timings) throws ExecutionException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "detected");
+        update.put("text", result);
+
+        for (Map.Entry<String, Long> timing : timings.entrySet())
+            update.put("timings." + timing.getKey(), String.valueOf(timing.getValue()));
+
+        try {
+            store.compareAndSet("submissions", submissionId, "state", "in progress", update);
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+}
\ No newline at end of file
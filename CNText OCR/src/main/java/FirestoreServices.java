@@ -1,27 +1,20 @@
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import io.grpc.Status;
-import io.grpc.StatusException;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
-public class FirestoreServices
+public class FirestoreServices implements SubmissionStore
 {
     public final static String DEFAULT_IMAGES_TEXT_DETECTION_RESULTS_COLLECTION_NAME = "submissions";
 
     private final Firestore firestore;
     private final String collectionName;
 
-    public static class SubmissionNotFoundException extends StatusException {
-        public SubmissionNotFoundException(String submissionId) {
-            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
-        }
-    }
-
     public FirestoreServices(String projectId, GoogleCredentials credentials, String collectionName) {
         firestore = FirestoreOptions
             .newBuilder()
@@ -33,9 +26,10 @@ public class FirestoreServices
         this.collectionName = collectionName;
     }
 
+    @Override
     public void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, InterruptedException, SubmissionNotFoundException
     {
-        final DocumentReference submissionDocRef = firestore.collection("submissions").document(submissionId);
+        final DocumentReference submissionDocRef = firestore.collection(collectionName).document(submissionId);
 
         SubmissionNotFoundException result = firestore.runTransaction(transaction ->
             {
@@ -56,16 +50,26 @@ public class FirestoreServices
             throw result;
     }
 
-    public void storeTextDetectionResult(String submissionId, String result) throws ExecutionException, InterruptedException
+    // Only a submission still in progress is moved on, so a redelivered message can't undo a later state.
+    @Override
+    public void storeTextDetectionResult(String submissionId, String result, Map<String, Long> timings) throws ExecutionException, InterruptedException
     {
         DocumentReference docRef = firestore.collection(collectionName).document(submissionId);
 
         firestore.runTransaction(transaction ->
             {
+                DocumentSnapshot docSnap = transaction.get(docRef).get();
+
+                if (!docSnap.exists() || !"in progress".equals(docSnap.get("state", String.class)))
+                    return null;
+
                 Map<String, Object> update = new HashMap<>();
                 update.put("state", "detected");
                 update.put("text", result);
 
+                for (Map.Entry<String, Long> timing : timings.entrySet())
+                    update.put("timings." + timing.getKey(), timing.getValue());
+
                 transaction.update(docRef, update);
 
                 return null;
@@ -0,0 +1,44 @@
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageSource;
+
+import java.nio.file.Path;
+
+public class GcsBlobStore implements BlobStore
+{
+    private final Storage storage;
+
+    public GcsBlobStore(String projectId, GoogleCredentials credentials) {
+        this.storage = StorageOptions
+            .newBuilder()
+            .setProjectId(projectId)
+            .setCredentials(credentials)
+            .build()
+            .getService();
+    }
+
+    // Vision reads the image straight from the bucket, so it never goes through the worker.
+    @Override
+    public Image getImage(BlobId imageId) {
+        String gcsPath = String.format("gs://%s/%s", imageId.getBucket(), imageId.getName());
+        ImageSource imageSource = ImageSource.newBuilder().setGcsImageUri(gcsPath).build();
+
+        return Image.newBuilder().setSource(imageSource).build();
+    }
+
+    @Override
+    public void downloadImage(BlobId imageId, Path filePath) {
+        Blob image = storage.get(imageId);
+        image.downloadTo(filePath);
+    }
+
+    @Override
+    public void deleteImage(BlobId imageId) throws Exception {
+        if(!storage.delete(imageId))
+            throw new Exception("Image couldn't be deleted from the Google Cloud Storage");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,54 @@
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.vision.v1.Image;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Reads the images the server keeps as <root>/<bucket>/<name> when it runs without Google Cloud Storage.
+public class LocalBlobStore implements BlobStore
+{
+    private final Path root;
+
+    public LocalBlobStore(String root) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+    }
+
+    // Vision can't reach the disk, so the bytes go inline. They're mapped rather than read, and wrapped without a copy.
+    @Override
+    public Image getImage(BlobId imageId) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(getPath(imageId), StandardOpenOption.READ)) {
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            return Image.newBuilder().setContent(UnsafeByteOperations.unsafeWrap(image)).build();
+        }
+    }
+
+    @Override
+    public void downloadImage(BlobId imageId, Path filePath) throws IOException {
+        Files.copy(getPath(imageId), filePath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void deleteImage(BlobId imageId) throws Exception {
+        if(!Files.deleteIfExists(getPath(imageId)))
+            throw new Exception("Image couldn't be deleted from " + root);
+    }
+
+    private Path getPath(BlobId imageId) throws IOException
+    {
+        Path path = root.resolve(imageId.getBucket()).resolve(imageId.getName()).normalize();
+
+        if (!path.startsWith(root))
+            throw new IOException(imageId.getName() + " is outside of the blob store.");
+
+        return path;
+    }
+}
\ No newline at end of file
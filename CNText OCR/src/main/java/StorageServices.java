@@ -1,10 +1,6 @@
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
 import com.google.cloud.vision.v1.Image;
-import com.google.cloud.vision.v1.ImageSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -16,40 +12,34 @@ public class StorageServices
 
     private static final Logger logger = LogManager.getLogger(StorageServices.class);
 
-    private final Storage storage;
+    private final BlobStore blobStore;
 
     public StorageServices(
         String projectId,
         GoogleCredentials credentials
     ) {
-        this.storage = StorageOptions
-            .newBuilder()
-            .setProjectId(projectId)
-            .setCredentials(credentials)
-            .build()
-            .getService();
+        this(new GcsBlobStore(projectId, credentials));
     }
 
-    public void deleteImage(BlobId imageId) throws Exception {
-        if(!storage.delete(imageId))
-            throw new Exception("Image couldn't be deleted from the Google Cloud Storage");
+    public StorageServices(BlobStore blobStore) {
+        this.blobStore = blobStore;
     }
 
-    public Image getImage(BlobId imageId) {
-        String gcsPath = String.format("gs://%s/%s", imageId.getBucket(), imageId.getName());
-        ImageSource imageSource = ImageSource.newBuilder().setGcsImageUri(gcsPath).build();
+    public void deleteImage(BlobId imageId) throws Exception {
+        blobStore.deleteImage(imageId);
+    }
 
-        return Image.newBuilder().setSource(imageSource).build();
+    public Image getImage(BlobId imageId) throws Exception {
+        return blobStore.getImage(imageId);
     }
 
-    public void downloadImage(BlobId imageId, Path filePath) {
+    public void downloadImage(BlobId imageId, Path filePath) throws Exception {
         if(filePath.toFile().exists()) {
             logger.info("The image has already been downloaded.");
             return;
         }
 
-        Blob image = storage.get(imageId);
-        image.downloadTo(filePath);
+        blobStore.downloadImage(imageId, filePath);
     }
 
     public static BlobId getBlobId(String bucket, String blobName) {
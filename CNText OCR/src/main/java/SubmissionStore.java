@@ -0,0 +1,19 @@
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Where text detection results are written, Firestore or an embedded store.
+public interface SubmissionStore
+{
+    class SubmissionNotFoundException extends StatusException {
+        public SubmissionNotFoundException(String submissionId) {
+            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
+        }
+    }
+
+    void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, InterruptedException, SubmissionNotFoundException;
+
+    void storeTextDetectionResult(String submissionId, String result, Map<String, Long> timings) throws ExecutionException, InterruptedException;
+}
\ No newline at end of file
@@ -1,3 +1,4 @@
+import com.google.api.gax.batching.FlowControlSettings;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.cloud.pubsub.v1.MessageReceiver;
 import com.google.cloud.pubsub.v1.Subscriber;
@@ -8,12 +9,27 @@ public class SubscriberServices
     public final static String FREE_OCR_WORKER_SUBSCRIPTION_ID = "free-ocr-worker-subscription";
     public final static String PREMIUM_OCR_WORKERS_SUBSCRIPTION_ID = "premium-ocr-workers-subscription";
 
+    // Topics the subscriptions above are attached to, read as in-memory queues when the server runs in this process.
+    public final static String FREE_OCR_TOPIC_ID = "free-ocr";
+    public final static String PREMIUM_OCR_TOPIC_ID = "premium-ocr";
+
     private final Subscriber subscriber;
 
     public SubscriberServices(
         ProjectSubscriptionName projectSubscriptionName,
         ExecutorProvider executorProvider,
         MessageReceiver messageReceiver
+    ) {
+        this(projectSubscriptionName, executorProvider, 0, messageReceiver);
+    }
+
+    // Messages handed to a scheduler are outstanding until it gets to them, so how many it's given is capped. Zero
+    // keeps the subscriber's own limit.
+    public SubscriberServices(
+        ProjectSubscriptionName projectSubscriptionName,
+        ExecutorProvider executorProvider,
+        long maxOutstandingMessages,
+        MessageReceiver messageReceiver
     ) {
         Subscriber.Builder builder = Subscriber
             .newBuilder(projectSubscriptionName, messageReceiver);
@@ -21,9 +37,21 @@ public class SubscriberServices
         if(executorProvider != null)
             builder.setExecutorProvider(executorProvider);
 
+        if(maxOutstandingMessages > 0)
+            builder.setFlowControlSettings(FlowControlSettings.newBuilder().setMaxOutstandingElementCount(maxOutstandingMessages).build());
+
         subscriber = builder.build();
     }
 
+    // Returns once the subscriber is pulling, for a worker reading more than one subscription.
+    public void start() {
+        subscriber.startAsync().awaitRunning();
+    }
+
+    public void awaitTerminated() {
+        subscriber.awaitTerminated();
+    }
+
     public void subscribe()
     {
         // Start the subscriber.
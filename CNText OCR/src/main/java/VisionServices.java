@@ -1,22 +1,90 @@
 import com.google.cloud.vision.v1.*;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
+// Text is detected with a single client kept for as long as the process runs, whose channels are connected before the
+// first message comes, so a call pays for the request alone and not for a channel, its TLS handshake and credentials.
+// Without channels every call gets a client of its own, set up and torn down around it.
 public class VisionServices
 {
     public static final Feature.Type DEFAULT_FEATURE_TYPE = Feature.Type.TEXT_DETECTION;
+    public static final int DEFAULT_CHANNELS = 1;
+    // Zero leaves calls bounded by the threads making them alone.
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 0;
 
     private static final Logger logger = LogManager.getLogger(VisionServices.class);
 
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final String CALL_METRIC_NAME = "cntext_vision_call_seconds";
+    private static final String CALL_METRIC_HELP = "Time of a Vision call, made on the shared client or on a client set up for it.";
+
+    private static final Histogram sharedCallTime = metrics.histogram(CALL_METRIC_NAME, CALL_METRIC_HELP, "client", "shared");
+    private static final Histogram perCallTime = metrics.histogram(CALL_METRIC_NAME, CALL_METRIC_HELP, "client", "per_call");
+    private static final Histogram setupTime = metrics.histogram("cntext_vision_setup_seconds", "Time to set up the shared Vision client and connect its channels.");
+
+    private final int channels;
+    private final ImageAnnotatorClient client;
+    private final Semaphore concurrentCalls;
+
+    public VisionServices(int channels, int maxConcurrentCalls) throws IOException
+    {
+        this.channels = Math.max(0, channels);
+        this.concurrentCalls = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+
+        if (this.channels == 0) {
+            this.client = null;
+            return;
+        }
+
+        long startedAt = System.nanoTime();
+
+        // Calls are spread over the channels of the pool in turn.
+        ImageAnnotatorSettings settings = ImageAnnotatorSettings
+            .newBuilder()
+            .setTransportChannelProvider(ImageAnnotatorSettings.defaultGrpcTransportProviderBuilder().setPoolSize(this.channels).build())
+            .build();
+
+        this.client = ImageAnnotatorClient.create(settings);
+
+        warmUp();
+        setupTime.recordSince(startedAt);
+
+        logger.info("Vision client set up with " + this.channels + " channels in " + (System.nanoTime() - startedAt) / 1000000 + " ms.");
+    }
+
+    // Channels only connect on their first call. An empty batch is refused without annotating anything, but by the time
+    // it is, the channel it went over is connected and its credentials fetched, so one is sent over each channel.
+    private void warmUp()
+    {
+        for (int i = 0; i < channels; i++) {
+            try {
+                client.batchAnnotateImages(Collections.emptyList());
+            } catch (RuntimeException e) {
+                logger.debug("Warm-up call refused: " + e.getMessage());
+            }
+        }
+    }
+
     public String detectImageText(Image image, Feature feature)
     {
         String detectedText = null;
+        boolean acquired = false;
 
-        try (ImageAnnotatorClient client = ImageAnnotatorClient.create())
+        try
         {
+            if (concurrentCalls != null) {
+                concurrentCalls.acquire();
+                acquired = true;
+            }
+
             AnnotateImageRequest request = AnnotateImageRequest
                 .newBuilder()
                 .addFeatures(feature)
@@ -26,9 +94,7 @@ public class VisionServices
             List<AnnotateImageRequest> requests = new ArrayList<>();
             requests.add(request);
 
-            AnnotateImageResponse response = client
-                .batchAnnotateImages(requests)
-                .getResponses(0);
+            AnnotateImageResponse response = annotate(requests);
 
             if (response == null || !response.hasFullTextAnnotation()) {
                 logger.info("No text was found in this image.");
@@ -39,10 +105,44 @@ public class VisionServices
                 throw new Exception(response.getError().getMessage());
 
             detectedText = response.getFullTextAnnotation().getText();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error(e.getMessage());
         } catch (Exception e) {
             logger.error(e.getMessage());
+        } finally {
+            if (acquired)
+                concurrentCalls.release();
         }
 
         return detectedText;
     }
+
+    public void shutdown()
+    {
+        if (client != null)
+            client.shutdown();
+    }
+
+    // A call on a client of its own is timed with the client's setup and teardown, which is what the shared one saves.
+    private AnnotateImageResponse annotate(List<AnnotateImageRequest> requests) throws IOException
+    {
+        long startedAt = System.nanoTime();
+        AnnotateImageResponse response;
+
+        if (client != null) {
+            response = client.batchAnnotateImages(requests).getResponses(0);
+            sharedCallTime.recordSince(startedAt);
+
+            return response;
+        }
+
+        try (ImageAnnotatorClient perCallClient = ImageAnnotatorClient.create()) {
+            response = perCallClient.batchAnnotateImages(requests).getResponses(0);
+        }
+
+        perCallTime.recordSince(startedAt);
+
+        return response;
+    }
 }
@@ -0,0 +1,214 @@
+package ipl.isel.cn.group2.queue;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.protobuf.Timestamp;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded queues standing in for Pub/Sub topics when every module runs in the same process. Publishing to a full
+// queue blocks, so a slow stage holds back the one before it instead of piling up messages.
+public class InMemoryTopics
+{
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_CONCURRENCY = 1;
+
+    // A nacked message is queued again after this delay, as Pub/Sub would redeliver it.
+    private static final long REDELIVERY_DELAY_MILLIS = 1000L;
+
+    private static class Topic
+    {
+        private final String id;
+        private final ArrayBlockingQueue<PubsubMessage> queue;
+        private final int concurrency;
+
+        // Bounds the messages handed to the receiver and not yet acked or nacked.
+        private final Semaphore outstanding;
+
+        private final List<Thread> workers = new ArrayList<>();
+
+        private final LongAdder published = new LongAdder();
+        private final LongAdder acked = new LongAdder();
+        private final LongAdder nacked = new LongAdder();
+
+        private Topic(String id, int capacity, int concurrency) {
+            this.id = id;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            this.concurrency = Math.max(1, concurrency);
+            this.outstanding = new Semaphore(this.concurrency);
+        }
+
+        @Override
+        public String toString() {
+            return id + "{queued=" + queue.size() + ", inFlight=" + (concurrency - outstanding.availablePermits()) + ", published=" + published.sum() + ", acked=" + acked.sum() + ", nacked=" + nacked.sum() + "}";
+        }
+    }
+
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private final AtomicLong messageIds = new AtomicLong();
+
+    private final ScheduledExecutorService redelivery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "topics-redelivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Concurrency is how many messages of the topic are processed at the same time.
+    public void create(String topicId, int capacity, int concurrency) {
+        topics.putIfAbsent(topicId, new Topic(topicId, capacity, concurrency));
+    }
+
+    public ApiFuture<String> publish(String topicId, PubsubMessage message)
+    {
+        Topic topic = getTopic(topicId);
+        String messageId = String.valueOf(messageIds.incrementAndGet());
+
+        long now = System.currentTimeMillis();
+        Timestamp publishTime = Timestamp.newBuilder().setSeconds(now / 1000).setNanos((int) (now % 1000) * 1_000_000).build();
+
+        try {
+            topic.queue.put(message.toBuilder().setMessageId(messageId).setPublishTime(publishTime).build());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ApiFutures.immediateFailedFuture(e);
+        }
+
+        topic.published.increment();
+
+        return ApiFutures.immediateFuture(messageId);
+    }
+
+    public synchronized void subscribe(String topicId, MessageReceiver receiver)
+    {
+        Topic topic = getTopic(topicId);
+
+        for (int i = topic.workers.size(); i < topic.concurrency; i++) {
+            Thread worker = new Thread(() -> deliver(topic, receiver), topicId + "-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+
+            topic.workers.add(worker);
+        }
+    }
+
+    public int getBacklog(String topicId) {
+        return getTopic(topicId).queue.size();
+    }
+
+    // Age of the oldest message still queued, 0 when there is none. Unlike Pub/Sub's, messages already handed to a
+    // receiver aren't counted, a redelivered one is as old as when it was first published.
+    public long getOldestMessageAgeMillis(String topicId)
+    {
+        PubsubMessage oldest = getTopic(topicId).queue.peek();
+
+        if (oldest == null)
+            return 0L;
+
+        Timestamp publishTime = oldest.getPublishTime();
+
+        return Math.max(0L, System.currentTimeMillis() - (publishTime.getSeconds() * 1000 + publishTime.getNanos() / 1_000_000));
+    }
+
+    public synchronized void shutdown()
+    {
+        for (Topic topic : topics.values()) {
+            for (Thread worker : topic.workers)
+                worker.interrupt();
+
+            topic.workers.clear();
+        }
+
+        redelivery.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryTopics" + topics.values();
+    }
+
+    private Topic getTopic(String topicId)
+    {
+        Topic topic = topics.get(topicId);
+
+        if (topic == null)
+            throw new IllegalArgumentException("There is no topic whose id is " + topicId + ".");
+
+        return topic;
+    }
+
+    private void deliver(Topic topic, MessageReceiver receiver)
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            PubsubMessage message;
+
+            try {
+                topic.outstanding.acquire();
+                message = topic.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Reply reply = new Reply(topic, message);
+
+            try {
+                receiver.receiveMessage(message, reply);
+            } catch (RuntimeException e) {
+                reply.nack();
+            }
+        }
+    }
+
+    private void redeliver(Topic topic, PubsubMessage message)
+    {
+        // Redelivery never blocks, a full queue is tried again later.
+        if (!topic.queue.offer(message))
+            redelivery.schedule(() -> redeliver(topic, message), REDELIVERY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private class Reply implements AckReplyConsumer
+    {
+        private final Topic topic;
+        private final PubsubMessage message;
+        private final AtomicBoolean replied = new AtomicBoolean();
+
+        private Reply(Topic topic, PubsubMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+
+        @Override
+        public void ack()
+        {
+            if (!replied.compareAndSet(false, true))
+                return;
+
+            topic.acked.increment();
+            topic.outstanding.release();
+        }
+
+        @Override
+        public void nack()
+        {
+            if (!replied.compareAndSet(false, true))
+                return;
+
+            topic.nacked.increment();
+            topic.outstanding.release();
+
+            redelivery.schedule(() -> redeliver(topic, message), REDELIVERY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,224 @@
+package ipl.isel.cn.group2.queue;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Processes the messages of several service levels on a single pool of threads. Their subscriptions only hand messages
+// over, and every free thread takes the next one by weighted round robin over the levels with messages waiting, so each
+// gets its share of the threads while it has work and the share of an idle level goes to the others. When a level with
+// a latency goal has had a message waiting longer than the goal, levels without one get no threads, and what they hold
+// for longer than the goal is nacked, to be redelivered to a worker with threads to spare.
+public class TierScheduler
+{
+    public static final int DEFAULT_PREMIUM_WEIGHT = 4;
+    public static final int DEFAULT_FREE_WEIGHT = 1;
+    public static final long DEFAULT_LATENCY_GOAL_MILLIS = 2000L;
+
+    private static class Pending
+    {
+        private final PubsubMessage message;
+        private final AckReplyConsumer consumer;
+        private final long queuedAt = System.nanoTime();
+
+        private Pending(PubsubMessage message, AckReplyConsumer consumer) {
+            this.message = message;
+            this.consumer = consumer;
+        }
+    }
+
+    private static class Tier
+    {
+        private final String name;
+        private final int weight;
+        // Zero when the level has no latency goal.
+        private final long latencyGoalNanos;
+        private final MessageReceiver receiver;
+
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+        // Grows by the weight on every pick the level takes part in, and shrinks by the total of the weights when it wins.
+        private long currentWeight = 0;
+
+        private final LongAdder received = new LongAdder();
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+
+        private Tier(String name, int weight, long latencyGoalNanos, MessageReceiver receiver) {
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.latencyGoalNanos = latencyGoalNanos;
+            this.receiver = receiver;
+        }
+
+        private boolean isLate(long now) {
+            return latencyGoalNanos > 0 && !queue.isEmpty() && now - queue.peek().queuedAt > latencyGoalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{weight=" + weight + ", queued=" + queue.size() + ", received=" + received.sum() + ", processed=" + processed.sum() + ", shed=" + shed.sum() + "}";
+        }
+    }
+
+    private final String name;
+    private final int threads;
+    private final long sheddingAgeNanos;
+
+    private final List<Tier> tiers = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    // Messages are shed once they've waited this long, so a level running late doesn't nack every message it's handed.
+    public TierScheduler(String name, int threads, long sheddingAge, TimeUnit unit)
+    {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+        this.sheddingAgeNanos = unit.toNanos(sheddingAge);
+    }
+
+    // The receiver returned only queues the message, it's given to the one of the level when a thread picks it.
+    public synchronized MessageReceiver addTier(String tierName, int weight, long latencyGoal, TimeUnit unit, MessageReceiver receiver)
+    {
+        Tier tier = new Tier(tierName, weight, unit.toNanos(latencyGoal), receiver);
+        tiers.add(tier);
+
+        return (message, consumer) -> enqueue(tier, message, consumer);
+    }
+
+    public synchronized void start()
+    {
+        for (int i = workers.size(); i < threads; i++) {
+            Thread worker = new Thread(this::work, name + "-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+
+            workers.add(worker);
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        for (Thread worker : workers)
+            worker.interrupt();
+
+        workers.clear();
+
+        // Whatever wasn't picked is left to be redelivered.
+        for (Tier tier : tiers) {
+            for (Pending pending : tier.queue)
+                pending.consumer.nack();
+
+            tier.queue.clear();
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TierScheduler{threads=" + threads + ", tiers=" + tiers + "}";
+    }
+
+    private synchronized void enqueue(Tier tier, PubsubMessage message, AckReplyConsumer consumer)
+    {
+        tier.queue.add(new Pending(message, consumer));
+        tier.received.increment();
+
+        notify();
+    }
+
+    private void work()
+    {
+        List<Pending> shed = new ArrayList<>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            Tier tier;
+            Pending next;
+
+            try {
+                synchronized (this) {
+                    // A level is only late with messages waiting, so there's always one to pick while any is.
+                    while ((tier = pick(shed)) == null)
+                        wait();
+
+                    next = tier.queue.poll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Nacked outside the lock, Pub/Sub's consumer may take its time.
+            for (Pending pending : shed)
+                pending.consumer.nack();
+
+            shed.clear();
+
+            try {
+                tier.receiver.receiveMessage(next.message, next.consumer);
+            } catch (RuntimeException e) {
+                next.consumer.nack();
+            }
+
+            tier.processed.increment();
+        }
+    }
+
+    // Smooth weighted round robin, only levels with messages waiting take part, so an idle level's share goes to the rest.
+    private Tier pick(List<Pending> shed)
+    {
+        long now = System.nanoTime();
+        boolean late = false;
+
+        for (Tier tier : tiers)
+            late |= tier.isLate(now);
+
+        Tier best = null;
+        long totalWeight = 0;
+
+        for (Tier tier : tiers) {
+            if (tier.queue.isEmpty())
+                continue;
+
+            if (late && tier.latencyGoalNanos == 0) {
+                shedExpired(tier, now, shed);
+                continue;
+            }
+
+            tier.currentWeight += tier.weight;
+            totalWeight += tier.weight;
+
+            if (best == null || tier.currentWeight > best.currentWeight)
+                best = tier;
+        }
+
+        if (best != null)
+            best.currentWeight -= totalWeight;
+
+        return best;
+    }
+
+    private void shedExpired(Tier tier, long now, List<Pending> shed)
+    {
+        Iterator<Pending> iterator = tier.queue.iterator();
+
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+
+            if (now - pending.queuedAt <= sheddingAgeNanos)
+                break;
+
+            iterator.remove();
+            shed.add(pending);
+            tier.shed.increment();
+        }
+    }
+}
\ No newline at end of file
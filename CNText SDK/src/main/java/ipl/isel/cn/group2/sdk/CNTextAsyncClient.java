@@ -0,0 +1,177 @@
+package ipl.isel.cn.group2.sdk;
+
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceStub;
+import ipl.isel.cn.group2.contract.Request;
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.contract.SubmissionState;
+import ipl.isel.cn.group2.contract.Username;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Every call returns right away with a future, no thread ever waits on the server. Uploads and waits for results
+// share a bound on how many may be in flight at once, the ones over it start as earlier ones finish.
+public class CNTextAsyncClient
+{
+    public static final int DEFAULT_MAXIMUM_IN_FLIGHT = 16;
+    public static final int DEFAULT_CHUNK_SIZE_BYTES = 1_000_000;
+    public static final long DEFAULT_TIMEOUT_SECONDS = 300L;
+
+    private final ManagedChannel channel;
+    private final CNTextServiceStub stub;
+    private final InFlightLimiter limiter;
+
+    private final int chunkSize;
+    private final long timeoutMillis;
+
+    // Null when images are uploaded as they are.
+    private final ImagePreprocessor preprocessor;
+    private final ExecutorService preprocessingExecutor;
+
+    public CNTextAsyncClient(ManagedChannel channel) {
+        this(channel, DEFAULT_MAXIMUM_IN_FLIGHT, DEFAULT_CHUNK_SIZE_BYTES, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS, null);
+    }
+
+    public CNTextAsyncClient(ManagedChannel channel, int maximumInFlight, int chunkSize, long timeout, TimeUnit unit, ImagePreprocessor preprocessor)
+    {
+        this.channel = channel;
+        this.stub = CNTextServiceGrpc.newStub(channel);
+        this.limiter = new InFlightLimiter(maximumInFlight);
+        this.chunkSize = chunkSize;
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.preprocessor = preprocessor;
+
+        // Decoding a photo takes a core and tens of megabytes, so no more than one per core are decoded at a time.
+        this.preprocessingExecutor = preprocessor == null ? null : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "image-preprocessing");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<Session> signIn(String username)
+    {
+        FutureObserver<Session> response = new FutureObserver<>();
+        withDeadline().signIn(Username.newBuilder().setValue(username).build(), response);
+
+        return response;
+    }
+
+    public CompletableFuture<Void> signOut(Session session)
+    {
+        FutureObserver<Empty> response = new FutureObserver<>();
+        withDeadline().signOut(session, response);
+
+        return response.thenApply(empty -> null);
+    }
+
+    // Completes with the submission once the whole image was received and queued for translation.
+    public CompletableFuture<Submission> submit(Session session, Path image, String translateTo)
+    {
+        if (preprocessor != null)
+            return limiter.submit(() -> CompletableFuture
+                .supplyAsync(() -> preprocess(image), preprocessingExecutor)
+                .thenCompose(processed -> FileUpload.start(withDeadline(), processed.getName(), processed.getData(), session, translateTo, chunkSize))
+            );
+
+        return limiter.submit(() -> {
+            try {
+                return FileUpload.start(withDeadline(), image, session, translateTo, chunkSize);
+            } catch (Exception e) {
+                CompletableFuture<Submission> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        });
+    }
+
+    // Watches the submission until it's completed or fails, without polling.
+    public CompletableFuture<TranslationResult> awaitResult(Session session, Submission submission)
+    {
+        return limiter.submit(() -> {
+            CompletableFuture<TranslationResult> result = new CompletableFuture<>();
+            Request request = Request.newBuilder().setSession(session).setSubmission(submission).build();
+
+            withDeadline().watchSubmission(request, new StreamObserver<SubmissionState>() {
+                @Override
+                public void onNext(SubmissionState state)
+                {
+                    boolean completed = state.getState().compareToIgnoreCase("completed") == 0;
+                    boolean failed = state.getState().compareToIgnoreCase("error") == 0;
+
+                    if (completed || failed)
+                        result.complete(new TranslationResult(
+                            submission.getId(),
+                            state.getState(),
+                            failed ? state.getError() : null,
+                            state.getResult().getTranslatedText(),
+                            state.getResult().getTranslatedFrom(),
+                            state.getResult().getTranslatedTo()
+                        ));
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    result.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onCompleted() {
+                    result.completeExceptionally(Status.UNKNOWN.withDescription("The submission " + submission.getId() + " never completed.").asException());
+                }
+            });
+
+            return result;
+        });
+    }
+
+    // Uploads the image and waits for its translation.
+    public CompletableFuture<TranslationResult> translate(Session session, Path image, String translateTo) {
+        return submit(session, image, translateTo).thenCompose(submission -> awaitResult(session, submission));
+    }
+
+    public ImagePreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+
+    public int getWaiting() {
+        return limiter.getWaiting();
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        if (preprocessingExecutor != null)
+            preprocessingExecutor.shutdown();
+
+        channel.shutdown();
+        channel.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private ImagePreprocessor.PreprocessedImage preprocess(Path image)
+    {
+        try {
+            return preprocessor.process(image);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private CNTextServiceStub withDeadline() {
+        return stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
\ No newline at end of file
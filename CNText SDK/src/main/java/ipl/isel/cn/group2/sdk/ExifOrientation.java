@@ -0,0 +1,64 @@
+package ipl.isel.cn.group2.sdk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Finds the orientation tag of the EXIF block of a JPEG, which ImageIO doesn't apply on its own. Mirrored
+// orientations are rare outside of front cameras and are read as normal.
+class ExifOrientation
+{
+    static final int NORMAL = 1;
+    static final int ROTATED_180 = 3;
+    static final int ROTATED_90 = 6;
+    static final int ROTATED_270 = 8;
+
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    private ExifOrientation() { }
+
+    static int read(byte[] jpeg)
+    {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(jpeg).order(ByteOrder.BIG_ENDIAN);
+
+            if (buffer.getShort() != (short) 0xFFD8)
+                return NORMAL;
+
+            // Segments follow one another until the image data starts.
+            while (buffer.remaining() >= 4) {
+                int marker = buffer.getShort() & 0xFFFF;
+                int length = buffer.getShort() & 0xFFFF;
+                int next = buffer.position() + length - 2;
+
+                if (marker == 0xFFDA)
+                    return NORMAL;
+
+                if (marker == 0xFFE1 && length >= 8 && buffer.getInt() == 0x45786966 && buffer.getShort() == 0)
+                    return readTiff(buffer.slice());
+
+                buffer.position(next);
+            }
+        } catch (RuntimeException e) {
+            // A broken EXIF block shouldn't stop the image from being uploaded.
+        }
+
+        return NORMAL;
+    }
+
+    private static int readTiff(ByteBuffer tiff)
+    {
+        tiff.order(tiff.getShort(0) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        int directory = tiff.getInt(4);
+        int entries = tiff.getShort(directory) & 0xFFFF;
+
+        for (int i = 0; i < entries; i++) {
+            int entry = directory + 2 + i * 12;
+
+            if ((tiff.getShort(entry) & 0xFFFF) == ORIENTATION_TAG)
+                return tiff.getShort(entry + 8) & 0xFFFF;
+        }
+
+        return NORMAL;
+    }
+}
\ No newline at end of file
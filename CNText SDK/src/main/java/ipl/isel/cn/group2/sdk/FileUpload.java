@@ -0,0 +1,248 @@
+package ipl.isel.cn.group2.sdk;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import ipl.isel.cn.group2.contract.CNTextServiceGrpc.CNTextServiceStub;
+import ipl.isel.cn.group2.contract.Image;
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.contract.UploadRequest;
+import ipl.isel.cn.group2.contract.UploadStatus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Streams an image straight from a memory mapping of its file. Chunks are slices of the mapping, so nothing is copied
+// until gRPC serializes them, and the next one is only sent once the call is ready for it, so the heap stays flat
+// however large the image is. Preprocessed images are sent the same way from the buffer they were encoded into.
+// When the stream breaks on the way, a new one goes on from the bytes the server says it already has.
+class FileUpload
+{
+    static final int MAXIMUM_RESUMES = 5;
+
+    // Doubled every time the same upload is resumed again.
+    private static final long FIRST_RESUME_DELAY_MILLIS = 500L;
+
+    private static final ScheduledExecutorService resumptions = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-resumptions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CNTextServiceStub stub;
+    private final Image metadata;
+    private final ByteBuffer data;
+    private final int chunkSize;
+
+    private final CompletableFuture<Submission> result = new CompletableFuture<>();
+
+    private int resumes = 0;
+
+    private FileUpload(CNTextServiceStub stub, Image metadata, ByteBuffer data, int chunkSize) {
+        this.stub = stub;
+        this.metadata = metadata;
+        this.data = data;
+        this.chunkSize = chunkSize;
+    }
+
+    // Every upload is a call of its own, any number of them can share the stub's channel at the same time.
+    static CompletableFuture<Submission> start(CNTextServiceStub stub, Path path, Session session, String translateTo, int chunkSize) throws IOException
+    {
+        MappedByteBuffer mapping;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw Status.INVALID_ARGUMENT.withDescription(path + " is larger than 2 GB.").asRuntimeException();
+
+            // The mapping stays valid once the channel is closed.
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        return start(stub, path.getFileName().toString(), mapping, session, translateTo, chunkSize);
+    }
+
+    // The size sent is what's left in the buffer, which must not change until the upload is over.
+    static CompletableFuture<Submission> start(CNTextServiceStub stub, String name, ByteBuffer data, Session session, String translateTo, int chunkSize)
+    {
+        Image.Metadata imageMetadata = Image.Metadata
+            .newBuilder()
+            .setSession(session)
+            .setName(name)
+            .setSize(data.remaining())
+            .setTranslateTo(translateTo)
+            .setUploadId(UUID.randomUUID().toString())
+            .build();
+
+        // Sliced, so offsets in the image are positions in the buffer.
+        FileUpload upload = new FileUpload(stub, Image.newBuilder().setMetadata(imageMetadata).build(), data.slice(), chunkSize);
+        upload.send(0L, new CRC32());
+
+        return upload.result;
+    }
+
+    private void send(long offset, CRC32 checksum) {
+        stub.submitImageTextTranslationRequest(new Attempt(offset, checksum));
+    }
+
+    // Only a stream that broke on the way is resumed, an image the server refused stays refused.
+    private void retry(Throwable throwable)
+    {
+        if (!isResumable(Status.fromThrowable(throwable).getCode()) || resumes >= MAXIMUM_RESUMES) {
+            result.completeExceptionally(throwable);
+            return;
+        }
+
+        long delayMillis = FIRST_RESUME_DELAY_MILLIS << resumes++;
+        resumptions.schedule(this::resume, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void resume()
+    {
+        UploadRequest request = UploadRequest
+            .newBuilder()
+            .setSession(metadata.getMetadata().getSession())
+            .setUploadId(metadata.getMetadata().getUploadId())
+            .build();
+
+        FutureObserver<UploadStatus> response = new FutureObserver<>();
+        stub.getUploadStatus(request, response);
+
+        response.whenComplete((status, throwable) -> {
+            // The server has nothing kept for the upload, it was dropped or went to another server, so it starts over.
+            if (throwable != null && Status.fromThrowable(throwable).getCode() == Status.Code.NOT_FOUND)
+                send(0L, new CRC32());
+            else if (throwable != null)
+                retry(throwable);
+            else
+                resumeFrom(status);
+        });
+    }
+
+    private void resumeFrom(UploadStatus status)
+    {
+        long committedBytes = status.getCommittedBytes();
+
+        if (committedBytes > data.limit()) {
+            result.completeExceptionally(Status.DATA_LOSS.withDescription("The server has more bytes than the image.").asException());
+            return;
+        }
+
+        // The checksum of what the server has must be the one of the same bytes here, or it's some other image.
+        ByteBuffer committed = data.duplicate();
+        committed.position(0);
+        committed.limit((int) committedBytes);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(committed);
+
+        if ((int) checksum.getValue() != status.getChecksum()) {
+            result.completeExceptionally(Status.DATA_LOSS.withDescription("The bytes the server has aren't the ones of the image.").asException());
+            return;
+        }
+
+        send(committedBytes, checksum);
+    }
+
+    private static boolean isResumable(Status.Code code)
+    {
+        return code == Status.Code.UNAVAILABLE
+            || code == Status.Code.ABORTED
+            || code == Status.Code.DATA_LOSS
+            || code == Status.Code.OUT_OF_RANGE;
+    }
+
+    // A single stream of the upload, from the metadata to the last byte or until it breaks.
+    private class Attempt implements ClientResponseObserver<Image, Submission>
+    {
+        private final ByteBuffer remaining;
+        private final CRC32 checksum;
+
+        private ClientCallStreamObserver<Image> requestStream;
+        private Submission submission;
+
+        private boolean metadataSent = false;
+        private boolean done = false;
+
+        private Attempt(long offset, CRC32 checksum)
+        {
+            this.remaining = data.duplicate();
+            this.remaining.position((int) offset);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<Image> requestStream)
+        {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(this::sendChunks);
+        }
+
+        // Runs whenever the call becomes ready again, sending as much as it will take before it has to wait.
+        private synchronized void sendChunks()
+        {
+            try {
+                while (!done && requestStream.isReady()) {
+                    if (!metadataSent) {
+                        requestStream.onNext(metadata);
+                        metadataSent = true;
+                    }
+
+                    else if (remaining.hasRemaining()) {
+                        long offset = remaining.position();
+
+                        ByteBuffer chunk = remaining.slice();
+                        chunk.limit(Math.min(chunkSize, chunk.remaining()));
+                        remaining.position(remaining.position() + chunk.remaining());
+
+                        checksum.update(chunk.duplicate());
+
+                        Image.Chunk checkedChunk = Image.Chunk
+                            .newBuilder()
+                            .setOffset(offset)
+                            .setData(UnsafeByteOperations.unsafeWrap(chunk))
+                            .setChecksum((int) checksum.getValue())
+                            .build();
+
+                        requestStream.onNext(Image.newBuilder().setCheckedChunk(checkedChunk).build());
+                    }
+
+                    else {
+                        requestStream.onCompleted();
+                        done = true;
+                    }
+                }
+            } catch (RuntimeException e) {
+                done = true;
+                requestStream.onError(Status.INTERNAL.withDescription(e.getMessage()).asException());
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onNext(Submission submission) {
+            this.submission = submission;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            retry(throwable);
+        }
+
+        @Override
+        public void onCompleted() {
+            result.complete(submission);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,26 @@
+package ipl.isel.cn.group2.sdk;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CompletableFuture;
+
+// Completes with the only message of a unary call.
+class FutureObserver<T> extends CompletableFuture<T> implements StreamObserver<T>
+{
+    private T value;
+
+    @Override
+    public void onNext(T value) {
+        this.value = value;
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onCompleted() {
+        complete(value);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,293 @@
+package ipl.isel.cn.group2.sdk;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shrinks images before they're uploaded, text detection doesn't need a phone camera's full resolution. Images are
+// downscaled to a maximum long edge, optionally made grayscale and encoded again. Whichever of the original and the
+// result is smaller is the one uploaded, so preprocessing never makes an upload larger.
+public class ImagePreprocessor
+{
+    public static final int DEFAULT_QUALITY = 85;
+
+    private final int maximumLongEdge;
+    private final boolean grayscale;
+    private final String format;
+    private final float quality;
+
+    private final LongAdder images = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder elapsedNanos = new LongAdder();
+
+    // A maximum long edge of 0 keeps the size, a null format keeps the original's. Quality goes from 0 to 100 and only
+    // applies to JPEG, PNG is always lossless.
+    public ImagePreprocessor(int maximumLongEdge, boolean grayscale, String format, int quality)
+    {
+        this.maximumLongEdge = maximumLongEdge;
+        this.grayscale = grayscale;
+        this.format = format == null ? null : format.toLowerCase(Locale.ROOT);
+        this.quality = Math.max(0, Math.min(100, quality)) / 100f;
+    }
+
+    public static class PreprocessedImage
+    {
+        private final String name;
+        private final ByteBuffer data;
+        private final long originalSize;
+        private final long elapsedNanos;
+
+        private PreprocessedImage(String name, ByteBuffer data, long originalSize, long elapsedNanos)
+        {
+            this.name = name;
+            this.data = data;
+            this.originalSize = originalSize;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        public long getSize() {
+            return data.remaining();
+        }
+
+        public long getOriginalSize() {
+            return originalSize;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    public PreprocessedImage process(Path path) throws IOException
+    {
+        long startedAt = System.nanoTime();
+
+        byte[] original = Files.readAllBytes(path);
+        String name = path.getFileName().toString();
+
+        PreprocessedImage result;
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(original))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+
+            // Anything ImageIO can't read goes up as it is, the server may still know what to do with it.
+            if (!readers.hasNext())
+                result = unchanged(name, original, startedAt);
+            else {
+                ImageReader reader = readers.next();
+                String originalFormat = reader.getFormatName().toLowerCase(Locale.ROOT);
+
+                BufferedImage image;
+
+                try {
+                    reader.setInput(input, true, true);
+                    image = reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+
+                if (originalFormat.equals("jpeg") || originalFormat.equals("jpg"))
+                    image = orient(image, ExifOrientation.read(original));
+
+                String targetFormat = format != null ? format : originalFormat;
+                byte[] processed = encode(downscale(image), targetFormat);
+
+                if (processed.length >= original.length)
+                    result = unchanged(name, original, startedAt);
+                else
+                    result = new PreprocessedImage(rename(name, targetFormat), ByteBuffer.wrap(processed), original.length, System.nanoTime() - startedAt);
+            }
+        }
+
+        images.increment();
+        originalBytes.add(result.getOriginalSize());
+        uploadedBytes.add(result.getSize());
+        elapsedNanos.add(result.getElapsedNanos());
+
+        return result;
+    }
+
+    public long getImages() {
+        return images.sum();
+    }
+
+    public long getSavedBytes() {
+        return originalBytes.sum() - uploadedBytes.sum();
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public String toString()
+    {
+        long original = originalBytes.sum();
+        long saved = getSavedBytes();
+
+        return String.format("Preprocessed %d images in %d ms, %d bytes down to %d, %d bytes (%.1f%%) saved.",
+            images.sum(), getElapsedMillis(), original, uploadedBytes.sum(), saved, original == 0 ? 0.0 : saved * 100.0 / original);
+    }
+
+    private static PreprocessedImage unchanged(String name, byte[] original, long startedAt) {
+        return new PreprocessedImage(name, ByteBuffer.wrap(original), original.length, System.nanoTime() - startedAt);
+    }
+
+    // Halving at a time with bilinear filtering keeps thin strokes of text that a single large step would drop.
+    private BufferedImage downscale(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int longEdge = Math.max(width, height);
+
+        int targetWidth = width;
+        int targetHeight = height;
+
+        if (maximumLongEdge > 0 && longEdge > maximumLongEdge) {
+            targetWidth = Math.max(1, (int) ((long) width * maximumLongEdge / longEdge));
+            targetHeight = Math.max(1, (int) ((long) height * maximumLongEdge / longEdge));
+        }
+
+        int type = grayscale ? BufferedImage.TYPE_BYTE_GRAY : image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+
+            BufferedImage step = new BufferedImage(width, height, type);
+            Graphics2D graphics = step.createGraphics();
+
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(image, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            image = step;
+        } while (width != targetWidth || height != targetHeight);
+
+        return image;
+    }
+
+    private byte[] encode(BufferedImage image, String targetFormat) throws IOException
+    {
+        boolean jpeg = targetFormat.equals("jpeg") || targetFormat.equals("jpg");
+
+        // JPEG has no alpha channel, transparent pixels end up black.
+        if (jpeg && image.getColorModel().hasAlpha()) {
+            BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = opaque.createGraphics();
+
+            try {
+                graphics.drawImage(image, 0, 0, java.awt.Color.WHITE, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            image = opaque;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(targetFormat);
+
+        if (!writers.hasNext())
+            throw new IOException("There is no writer for " + targetFormat + " images.");
+
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+
+            if (jpeg && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        return out.toByteArray();
+    }
+
+    // The server takes the format from the extension of the name.
+    private static String rename(String name, String targetFormat)
+    {
+        String extension = targetFormat.equals("jpeg") ? "jpg" : targetFormat;
+        int dot = name.lastIndexOf('.');
+
+        return (dot < 0 ? name : name.substring(0, dot)) + "." + extension;
+    }
+
+    // Encoding again drops the EXIF block, so a photo taken sideways would go up sideways unless it's turned first.
+    private static BufferedImage orient(BufferedImage image, int orientation)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        AffineTransform transform = new AffineTransform();
+        boolean swap = false;
+
+        switch (orientation) {
+            case ExifOrientation.ROTATED_180:
+                transform.translate(width, height);
+                transform.rotate(Math.PI);
+                break;
+            case ExifOrientation.ROTATED_90:
+                transform.translate(height, 0);
+                transform.rotate(Math.PI / 2);
+                swap = true;
+                break;
+            case ExifOrientation.ROTATED_270:
+                transform.translate(0, width);
+                transform.rotate(-Math.PI / 2);
+                swap = true;
+                break;
+            default:
+                return image;
+        }
+
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : image.getType();
+        BufferedImage oriented = new BufferedImage(swap ? height : width, swap ? width : height, type);
+        Graphics2D graphics = oriented.createGraphics();
+
+        try {
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return oriented;
+    }
+}
\ No newline at end of file
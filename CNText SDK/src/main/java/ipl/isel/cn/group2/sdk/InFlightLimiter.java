@@ -0,0 +1,96 @@
+package ipl.isel.cn.group2.sdk;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Starts at most a given number of calls at a time. Calls over the limit wait in a queue instead of blocking their
+// caller, and the next one starts from whichever thread finishes a call.
+class InFlightLimiter
+{
+    private final int maximum;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    // A call that completes as soon as it starts drains again from inside drain, the outer loop carries on instead.
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    InFlightLimiter(int maximum) {
+        this.maximum = Math.max(1, maximum);
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        waiting.add(() -> {
+            CompletableFuture<T> started;
+
+            try {
+                started = call.get();
+            } catch (RuntimeException e) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(e);
+            }
+
+            started.whenComplete((value, throwable) -> {
+                inFlight.decrementAndGet();
+                drain();
+
+                if (throwable != null)
+                    result.completeExceptionally(throwable);
+                else
+                    result.complete(value);
+            });
+        });
+
+        drain();
+
+        return result;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getWaiting() {
+        return waiting.size();
+    }
+
+    private void drain()
+    {
+        if (draining.get())
+            return;
+
+        draining.set(true);
+
+        try {
+            drainWaiting();
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    private void drainWaiting()
+    {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+
+            if (current >= maximum)
+                return;
+
+            if (!inFlight.compareAndSet(current, current + 1))
+                continue;
+
+            Runnable next = waiting.poll();
+
+            if (next == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+
+            next.run();
+        }
+    }
+}
\ No newline at end of file
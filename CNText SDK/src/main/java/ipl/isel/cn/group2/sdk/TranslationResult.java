@@ -0,0 +1,50 @@
+package ipl.isel.cn.group2.sdk;
+
+// The final state of a submission, completed with its translation or error with what went wrong.
+public class TranslationResult
+{
+    private final String submissionId;
+    private final String state;
+    private final String error;
+    private final String translatedText;
+    private final String translatedFrom;
+    private final String translatedTo;
+
+    public TranslationResult(String submissionId, String state, String error, String translatedText, String translatedFrom, String translatedTo)
+    {
+        this.submissionId = submissionId;
+        this.state = state;
+        this.error = error;
+        this.translatedText = translatedText;
+        this.translatedFrom = translatedFrom;
+        this.translatedTo = translatedTo;
+    }
+
+    public String getSubmissionId() {
+        return submissionId;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isCompleted() {
+        return state.compareToIgnoreCase("completed") == 0;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getTranslatedText() {
+        return translatedText;
+    }
+
+    public String getTranslatedFrom() {
+        return translatedFrom;
+    }
+
+    public String getTranslatedTo() {
+        return translatedTo;
+    }
+}
\ No newline at end of file
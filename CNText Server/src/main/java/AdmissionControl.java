@@ -0,0 +1,384 @@
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import ipl.isel.cn.group2.contract.BatchImage;
+import ipl.isel.cn.group2.contract.Image;
+import ipl.isel.cn.group2.contract.Request;
+import ipl.isel.cn.group2.contract.Session;
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl implements ServerInterceptor
+{
+    public static final Metadata.Key<String> RETRY_AFTER_KEY = Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    public static final Limits DEFAULT_FREE_LIMITS = new Limits(2, 5, 2, 200, 200);
+    public static final Limits DEFAULT_PREMIUM_LIMITS = new Limits(20, 40, 8, 1000, 1000);
+
+    // Nothing tells when a stream will end, so a client over a stream cap is told to retry after this.
+    private static final long STREAM_RETRY_AFTER_MILLIS = 1000L;
+
+    private static final Logger logger = LogManager.getLogger(AdmissionControl.class);
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter admitted = metrics.counter("cntext_admission_admitted_total", "Calls admitted to their handler.");
+    private static final Counter rejected = metrics.counter("cntext_admission_rejected_total", "Calls refused by admission control.");
+
+    public static class Limits
+    {
+        private final int sessionRate;
+        private final int sessionBurst;
+        private final int sessionStreams;
+        private final int levelRate;
+        private final int levelStreams;
+
+        // Rates are calls per second, a rate of 0 doesn't limit. A level can burst up to one second of its rate.
+        public Limits(int sessionRate, int sessionBurst, int sessionStreams, int levelRate, int levelStreams) {
+            this.sessionRate = sessionRate;
+            this.sessionBurst = Math.max(1, sessionBurst);
+            this.sessionStreams = sessionStreams;
+            this.levelRate = levelRate;
+            this.levelStreams = levelStreams;
+        }
+
+        @Override
+        public String toString() {
+            return "{session=" + sessionRate + "/s burst " + sessionBurst + " streams " + sessionStreams + ", level=" + levelRate + "/s streams " + levelStreams + "}";
+        }
+    }
+
+    // Buckets are kept as the time the next call would be admitted at, so taking a token is a single compare and set.
+    private static class Counters
+    {
+        private final AtomicLong nextAdmittedAt = new AtomicLong(System.nanoTime());
+        private final AtomicInteger streams = new AtomicInteger();
+    }
+
+    // Never blocks, it returns null for a session it can't resolve without a lookup.
+    private final SessionResolver sessionResolver;
+
+    private final ConcurrentHashMap<String, Limits> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counters> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counters> levels = new ConcurrentHashMap<>();
+
+    public AdmissionControl(SessionResolver sessionResolver, Limits freeLimits, Limits premiumLimits)
+    {
+        this.sessionResolver = sessionResolver;
+
+        limits.put("free", freeLimits);
+        limits.put("premium", premiumLimits);
+    }
+
+    // Takes effect on the next call, calls already admitted keep running.
+    public void setLimits(String serviceLevel, Limits newLimits)
+    {
+        limits.put(serviceLevel.toLowerCase(), newLimits);
+        logger.info("Admission limits of " + serviceLevel + " are now " + newLimits + ".");
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        return new AdmissionListener<>(call, headers, next);
+    }
+
+    // Sessions without streams whose buckets are full again hold no state worth keeping.
+    public int evictIdle()
+    {
+        long now = System.nanoTime();
+        int before = sessions.size();
+
+        sessions.values().removeIf(counters -> counters.streams.get() == 0 && counters.nextAdmittedAt.get() - now <= 0);
+
+        return before - sessions.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl{sessions=" + sessions.size() + ", admitted=" + admitted.get() + ", rejected=" + rejected.get() + ", limits=" + limits + "}";
+    }
+
+    private class Admission
+    {
+        private final Counters session;
+        private final Counters level;
+        private boolean released = false;
+
+        private Admission(Counters session, Counters level) {
+            this.session = session;
+            this.level = level;
+        }
+
+        private void release()
+        {
+            if (released)
+                return;
+
+            released = true;
+            session.streams.decrementAndGet();
+
+            if (level != null)
+                level.streams.decrementAndGet();
+        }
+    }
+
+    // Runs on the call's thread, so the session is only resolved from the cache or its token. A session that isn't cached
+    // yet is held to the free limits of a session and to no level, its handler looks it up off this thread and caches it
+    // for the calls after it.
+    private Admission admit(String sessionId) throws Exception
+    {
+        SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
+        String serviceLevel = sessionInfo != null ? sessionInfo.getServiceLevel().toLowerCase() : null;
+        Limits levelLimits = serviceLevel != null ? limits.getOrDefault(serviceLevel, limits.get("free")) : limits.get("free");
+
+        Counters session = sessions.computeIfAbsent(sessionId, id -> new Counters());
+        Counters level = serviceLevel != null ? levels.computeIfAbsent(serviceLevel, id -> new Counters()) : null;
+
+        if (!acquireStream(session.streams, levelLimits.sessionStreams))
+            throw exhausted("Too many concurrent calls for this session.", TimeUnit.MILLISECONDS.toNanos(STREAM_RETRY_AFTER_MILLIS));
+
+        if (level != null && !acquireStream(level.streams, levelLimits.levelStreams)) {
+            session.streams.decrementAndGet();
+            throw exhausted("Too many concurrent calls for the " + serviceLevel + " service level.", TimeUnit.MILLISECONDS.toNanos(STREAM_RETRY_AFTER_MILLIS));
+        }
+
+        Admission admission = new Admission(session, level);
+
+        long now = System.nanoTime();
+        long waitNanos = acquireToken(session.nextAdmittedAt, levelLimits.sessionRate, levelLimits.sessionBurst, now);
+
+        if (waitNanos > 0) {
+            admission.release();
+            throw exhausted("Too many calls for this session.", waitNanos);
+        }
+
+        if (level != null) {
+            waitNanos = acquireToken(level.nextAdmittedAt, levelLimits.levelRate, Math.max(1, levelLimits.levelRate), now);
+
+            // The session's token is given back, a call the level refused doesn't count against the session's quota.
+            if (waitNanos > 0) {
+                releaseToken(session.nextAdmittedAt, levelLimits.sessionRate);
+                admission.release();
+                throw exhausted("Too many calls for the " + serviceLevel + " service level.", waitNanos);
+            }
+        }
+
+        return admission;
+    }
+
+    private static boolean acquireStream(AtomicInteger streams, int limit)
+    {
+        while (true) {
+            int current = streams.get();
+
+            if (limit > 0 && current >= limit)
+                return false;
+
+            if (streams.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    // Returns 0 when a token was taken, otherwise how many nanoseconds until one is available.
+    private static long acquireToken(AtomicLong nextAdmittedAt, int rate, int burst, long now)
+    {
+        if (rate <= 0)
+            return 0L;
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long tolerance = interval * burst;
+
+        while (true) {
+            long current = nextAdmittedAt.get();
+            long next = (current - now > 0 ? current : now) + interval;
+
+            if (next - now > tolerance)
+                return next - now - tolerance;
+
+            if (nextAdmittedAt.compareAndSet(current, next))
+                return 0L;
+        }
+    }
+
+    private static void releaseToken(AtomicLong nextAdmittedAt, int rate)
+    {
+        if (rate > 0)
+            nextAdmittedAt.addAndGet(-TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    private StatusException exhausted(String description, long retryAfterNanos)
+    {
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_KEY, String.valueOf(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos))));
+
+        return Status.RESOURCE_EXHAUSTED.withDescription(description).asException(trailers);
+    }
+
+    private static String getSessionId(Object message)
+    {
+        if (message instanceof Image && ((Image) message).hasMetadata())
+            return ((Image) message).getMetadata().getSession().getId();
+
+        if (message instanceof BatchImage && ((BatchImage) message).getImage().hasMetadata())
+            return ((BatchImage) message).getImage().getMetadata().getSession().getId();
+
+        if (message instanceof Request)
+            return ((Request) message).getSession().getId();
+
+        if (message instanceof Session)
+            return ((Session) message).getId();
+
+        return null;
+    }
+
+    // A call admission may close while its handler runs, so whichever closes it first is the only one that does.
+    private static class AdmittedCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>
+    {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private AdmittedCall(ServerCall<ReqT, RespT> call) {
+            super(call);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers)
+        {
+            if (closed.compareAndSet(false, true))
+                super.close(status, trailers);
+        }
+    }
+
+    // The session travels in the first message, so the call only reaches its handler once that message is admitted.
+    private class AdmissionListener<ReqT, RespT> extends ServerCall.Listener<ReqT>
+    {
+        private final ServerCall<ReqT, RespT> call;
+        private final Metadata headers;
+        private final ServerCallHandler<ReqT, RespT> next;
+
+        private ServerCall.Listener<ReqT> delegate;
+        private Admission admission;
+        private String admittedSessionId;
+        private boolean ready = false;
+        private boolean closed = false;
+
+        private AdmissionListener(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next)
+        {
+            this.call = new AdmittedCall<>(call);
+            this.headers = headers;
+            this.next = next;
+
+            call.request(1);
+        }
+
+        @Override
+        public void onMessage(ReqT message)
+        {
+            if (closed)
+                return;
+
+            String sessionId = getSessionId(message);
+
+            // Only the session of the first message was admitted, a later one naming another would get around its limits.
+            if (delegate != null) {
+                if (admittedSessionId != null && sessionId != null && !sessionId.isEmpty() && !sessionId.equals(admittedSessionId)) {
+                    reject(Status.PERMISSION_DENIED.withDescription("Every message of a call must belong to the session it was admitted for."), null);
+                    release();
+                    delegate.onCancel();
+                    return;
+                }
+
+                delegate.onMessage(message);
+                return;
+            }
+
+            if (sessionId != null && !sessionId.isEmpty()) {
+                try {
+                    admission = admit(sessionId);
+                    admittedSessionId = sessionId;
+                } catch (StatusException e) {
+                    reject(e.getStatus(), e.getTrailers());
+                    return;
+                } catch (Exception e) {
+                    reject(Status.INTERNAL.withDescription(e.getMessage()), null);
+                    return;
+                }
+            }
+
+            admitted.increment();
+            startCall();
+            delegate.onMessage(message);
+        }
+
+        @Override
+        public void onHalfClose()
+        {
+            // Calls that end without any message are left to their handler to refuse.
+            if (delegate == null && !closed)
+                startCall();
+
+            if (delegate != null && !closed)
+                delegate.onHalfClose();
+        }
+
+        @Override
+        public void onCancel()
+        {
+            release();
+
+            // A handler whose call admission closed was already cancelled.
+            if (delegate != null && !closed)
+                delegate.onCancel();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            release();
+
+            if (delegate != null && !closed)
+                delegate.onComplete();
+        }
+
+        @Override
+        public void onReady()
+        {
+            ready = true;
+
+            if (delegate != null)
+                delegate.onReady();
+        }
+
+        private void startCall()
+        {
+            delegate = next.startCall(call, headers);
+
+            if (ready)
+                delegate.onReady();
+        }
+
+        private void reject(Status status, Metadata trailers)
+        {
+            rejected.increment();
+            closed = true;
+
+            call.close(status, trailers != null ? trailers : new Metadata());
+        }
+
+        private void release()
+        {
+            if (admission != null)
+                admission.release();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,192 @@
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.Gauge;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AutoscalingController implements Runnable
+{
+    public static final String PREMIUM_OCR_SUBSCRIPTION_ID = "premium-ocr-workers-subscription";
+    public static final String PREMIUM_TRANSLATION_SUBSCRIPTION_ID = "premium-translation-workers-subscription";
+
+    public static final int DEFAULT_MINIMUM_SIZE = 1;
+    public static final int DEFAULT_MAXIMUM_SIZE = 10;
+    public static final int DEFAULT_TARGET_LOAD_PER_INSTANCE = 20;
+    public static final long DEFAULT_TARGET_WAIT_SECONDS = 60L;
+    public static final long CONTROL_PERIOD_SECONDS = 30L;
+
+    // The load has to leave this band around the current capacity before the group is resized, so it doesn't flap.
+    private static final double TOLERANCE = 0.2;
+    private static final long SCALE_UP_COOLDOWN_MILLIS = 60_000L;
+    private static final long SCALE_DOWN_COOLDOWN_MILLIS = 5 * 60_000L;
+
+    private static final Logger logger = LogManager.getLogger(AutoscalingController.class);
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final String DECISIONS_METRIC_NAME = "cntext_autoscaler_decisions_total";
+    private static final String DECISIONS_METRIC_HELP = "Resizes of a worker group the autoscaler decided on, by direction.";
+
+    private static class WorkerGroup
+    {
+        private final String instanceGroupId;
+        private final String subscriptionId;
+        private final String inFlightState;
+
+        // Unknown until read from the instance group manager, and again after a resize fails.
+        private int size = -1;
+        private InstanceGroups.Resize pendingResize;
+        private long lastResizedAt = 0L;
+
+        private long load = 0L;
+        private long waitSeconds = 0L;
+
+        private final Counter scaledUp;
+        private final Counter scaledDown;
+        private final Counter failedResizes;
+        private final Gauge sizeGauge;
+        private final Gauge loadGauge;
+        private final Gauge waitGauge;
+
+        private WorkerGroup(String instanceGroupId, String subscriptionId, String inFlightState) {
+            this.instanceGroupId = instanceGroupId;
+            this.subscriptionId = subscriptionId;
+            this.inFlightState = inFlightState;
+
+            this.scaledUp = metrics.counter(DECISIONS_METRIC_NAME, DECISIONS_METRIC_HELP, "group", instanceGroupId, "direction", "up");
+            this.scaledDown = metrics.counter(DECISIONS_METRIC_NAME, DECISIONS_METRIC_HELP, "group", instanceGroupId, "direction", "down");
+            this.failedResizes = metrics.counter("cntext_autoscaler_failed_resizes_total", "Resizes of a worker group that failed.", "group", instanceGroupId);
+            this.sizeGauge = metrics.gauge("cntext_autoscaler_group_size", "Instances a worker group was last sized to.", "group", instanceGroupId);
+            this.loadGauge = metrics.gauge("cntext_autoscaler_group_load", "Submissions waiting on a worker group when it was last controlled.", "group", instanceGroupId);
+            this.waitGauge = metrics.gauge("cntext_autoscaler_group_wait_seconds", "Age of the oldest message of a worker group when it was last controlled.", "group", instanceGroupId);
+        }
+
+        @Override
+        public String toString() {
+            return instanceGroupId + "{size=" + size + ", load=" + load + ", wait=" + waitSeconds + "s" + (pendingResize != null ? ", resizing" : "") + "}";
+        }
+    }
+
+    private final InstanceGroups instanceGroups;
+    private final ScalingMetricsSource metricsSource;
+
+    private final int minimumSize;
+    private final int maximumSize;
+    private final int targetLoadPerInstance;
+    private final long targetWaitSeconds;
+
+    private final List<WorkerGroup> groups = new ArrayList<>();
+
+    public AutoscalingController(
+        InstanceGroups instanceGroups,
+        ScalingMetricsSource metricsSource,
+        int minimumSize,
+        int maximumSize,
+        int targetLoadPerInstance,
+        long targetWaitSeconds
+    ) {
+        this.instanceGroups = instanceGroups;
+        this.metricsSource = metricsSource;
+        this.minimumSize = Math.max(0, minimumSize);
+        this.maximumSize = Math.max(this.minimumSize, maximumSize);
+        this.targetLoadPerInstance = Math.max(1, targetLoadPerInstance);
+        this.targetWaitSeconds = Math.max(1L, targetWaitSeconds);
+    }
+
+    // inFlightState is the submission state of the work the group still has to do.
+    public synchronized void addGroup(String instanceGroupId, String subscriptionId, String inFlightState) {
+        groups.add(new WorkerGroup(instanceGroupId, subscriptionId, inFlightState));
+    }
+
+    @Override
+    public synchronized void run()
+    {
+        for (WorkerGroup group : groups) {
+            try {
+                control(group);
+            } catch (Exception e) {
+                logger.error("Couldn't autoscale " + group.instanceGroupId + ". " + e.getMessage());
+            }
+        }
+    }
+
+    private void control(WorkerGroup group) throws Exception
+    {
+        // A resize in progress is only polled, the next decision waits until it's done.
+        if (group.pendingResize != null) {
+            InstanceGroups.Resize resize = group.pendingResize;
+
+            if (!resize.isDone())
+                return;
+
+            group.pendingResize = null;
+
+            if (resize.hasFailed()) {
+                logger.error("Resizing " + group.instanceGroupId + " failed.");
+                group.failedResizes.increment();
+                group.size = -1;
+            }
+        }
+
+        if (group.size < 0) {
+            group.size = instanceGroups.getSize(group.instanceGroupId);
+            group.sizeGauge.set(group.size);
+        }
+
+        // The backlog lags a couple of minutes behind while the in-flight count is live, both measure the same work.
+        group.load = Math.max(
+            metricsSource.getBacklog(group.subscriptionId),
+            metricsSource.getInFlightSubmissions(group.inFlightState)
+        );
+        group.waitSeconds = metricsSource.getOldestUnackedAgeSeconds(group.subscriptionId);
+
+        group.loadGauge.set(group.load);
+        group.waitGauge.set(group.waitSeconds);
+
+        int newSize = decideSize(group, System.currentTimeMillis());
+
+        if (newSize == group.size)
+            return;
+
+        logger.info("Resizing " + group + " to " + newSize + " instances.");
+
+        group.pendingResize = instanceGroups.startResize(group.instanceGroupId, newSize);
+        (newSize > group.size ? group.scaledUp : group.scaledDown).increment();
+
+        group.size = newSize;
+        group.sizeGauge.set(newSize);
+        group.lastResizedAt = System.currentTimeMillis();
+    }
+
+    private int decideSize(WorkerGroup group, long now)
+    {
+        int size = group.size;
+
+        if (size < minimumSize || size > maximumSize)
+            return Math.min(Math.max(size, minimumSize), maximumSize);
+
+        long capacity = (long) size * targetLoadPerInstance;
+        int needed = (int) Math.min(maximumSize, (group.load + targetLoadPerInstance - 1) / targetLoadPerInstance);
+        long sinceResized = now - group.lastResizedAt;
+
+        boolean overloaded = group.load > capacity * (1 + TOLERANCE) || group.waitSeconds > targetWaitSeconds;
+
+        if (overloaded && sinceResized >= SCALE_UP_COOLDOWN_MILLIS)
+            return Math.min(maximumSize, Math.max(needed, size + 1));
+
+        boolean underloaded = group.load < capacity * (1 - TOLERANCE) && group.waitSeconds <= targetWaitSeconds / 2;
+
+        // Scaling down goes one instance at a time, in case the load comes right back.
+        if (underloaded && sinceResized >= SCALE_DOWN_COOLDOWN_MILLIS)
+            return Math.max(minimumSize, Math.max(needed, size - 1));
+
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AutoscalingController" + groups;
+    }
+}
\ No newline at end of file
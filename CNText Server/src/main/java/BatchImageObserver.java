@@ -0,0 +1,379 @@
+import com.google.api.core.ApiFuture;
+import com.google.cloud.storage.BlobInfo;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import ipl.isel.cn.group2.contract.BatchImage;
+import ipl.isel.cn.group2.contract.BatchSubmission;
+import ipl.isel.cn.group2.contract.Image;
+import ipl.isel.cn.group2.contract.Image.Metadata;
+import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.metrics.StageTimings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Submissions of a batch stream are created and published batchSize at a time, in a single Firestore batch and back to
+// back on the topics, so the id of an image is only sent once its batch fills or the stream ends, not as soon as the
+// image is received. A smaller batch size gets ids back sooner for fewer writes saved.
+public class BatchImageObserver implements StreamObserver<BatchImage>
+{
+    public static final int DEFAULT_BATCH_SIZE = 25;
+
+    // Firestore doesn't accept more than 500 writes in a single batch.
+    public static final int MAXIMUM_BATCH_SIZE = 500;
+
+    private static final String UNPUBLISHED_ERROR = "The image couldn't be queued for text detection.";
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static class Entry
+    {
+        private final int index;
+        private final Metadata metadata;
+        private final String submissionId;
+        private final long uploadStartedAt = System.currentTimeMillis();
+
+        private SubmissionStore.SessionInfo sessionInfo;
+        private String topicId;
+        private ImageUpload upload;
+
+        private String imageHash;
+        private SubmissionStore.SubmissionInfo result;
+
+        // A flush that failed halfway is tried again, only with what it didn't get to.
+        private boolean stored = false;
+        private boolean published = false;
+
+        private Entry(int index, Metadata metadata, String submissionId) {
+            this.index = index;
+            this.metadata = metadata;
+            this.submissionId = submissionId;
+        }
+    }
+
+    final private ServerCallStreamObserver<BatchSubmission> responseObserver;
+
+    final private SubmissionStore submissionStore;
+    final private StorageServices storageServices;
+    final private SessionResolver sessionResolver;
+    final private PublisherServices publisherServices;
+    final private DeduplicationIndex deduplicationIndex;
+    final private Executor ioExecutor;
+
+    private final String bucketId;
+    private final int batchSize;
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+
+    // Only the session of the first image is admitted, so every other image has to belong to it too.
+    private SubmissionStore.SessionInfo sessionInfo;
+
+    // Images that were fully received, waiting to be created and published together.
+    private final List<Entry> ready = new ArrayList<>();
+
+    // Every message is handled by a stage chained to the previous one, so they run in order on the I/O executor.
+    private CompletableFuture<Void> pipeline = CompletableFuture.completedFuture(null);
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private static final Logger logger = LogManager.getLogger(BatchImageObserver.class);
+
+    public BatchImageObserver(
+        StreamObserver<BatchSubmission> responseObserver,
+        SubmissionStore submissionStore,
+        StorageServices storageServices,
+        SessionResolver sessionResolver,
+        PublisherServices publisherServices,
+        DeduplicationIndex deduplicationIndex,
+        Executor ioExecutor,
+        int inboundWindow,
+        int batchSize,
+        String bucketId
+    ) {
+        this.responseObserver = (ServerCallStreamObserver<BatchSubmission>) responseObserver;
+        this.submissionStore = submissionStore;
+        this.storageServices = storageServices;
+        this.sessionResolver = sessionResolver;
+        this.publisherServices = publisherServices;
+        this.deduplicationIndex = deduplicationIndex;
+        this.ioExecutor = ioExecutor;
+        this.batchSize = Math.min(Math.max(1, batchSize), MAXIMUM_BATCH_SIZE);
+        this.bucketId = bucketId;
+
+        this.responseObserver.disableAutoInboundFlowControl();
+        this.responseObserver.request(inboundWindow);
+    }
+
+    @Override
+    public void onNext(BatchImage batchImage)
+    {
+        if (finished.get())
+            return;
+
+        pipeline = pipeline.thenRunAsync(run(() -> process(batchImage)), ioExecutor);
+
+        pipeline.whenComplete((result, throwable) -> {
+            if (throwable == null)
+                responseObserver.request(1);
+            else
+                fail(throwable);
+        });
+    }
+
+    private void process(BatchImage batchImage) throws Exception
+    {
+        int index = batchImage.getIndex();
+
+        if (batchImage.getImage().hasMetadata()) {
+            if (entries.containsKey(index))
+                throw Status.INVALID_ARGUMENT.withDescription("The metadata of image " + index + " was already sent.").asException();
+
+            String sessionId = batchImage.getImage().getMetadata().getSession().getId();
+
+            if (sessionInfo == null)
+                sessionInfo = sessionResolver.resolve(sessionId);
+            else if (!sessionInfo.getId().equals(sessionId))
+                throw Status.PERMISSION_DENIED.withDescription("Image " + index + " doesn't belong to the session the batch was started with.").asException();
+
+            Entry entry = new Entry(index, batchImage.getImage().getMetadata(), submissionStore.newSubmissionId());
+            entries.put(index, entry);
+
+            entry.sessionInfo = sessionInfo;
+
+            if (entry.sessionInfo.getServiceLevel().compareToIgnoreCase("premium") == 0)
+                entry.topicId = PublisherServices.PREMIUM_OCR_TOPIC_ID;
+            else
+                entry.topicId = PublisherServices.FREE_OCR_TOPIC_ID;
+
+            String imageName = entry.metadata.getName();
+            String imageExtension = "." + imageName.split("\\.")[1];
+
+            BlobInfo blobInfo = BlobInfo
+                .newBuilder(bucketId, entry.submissionId + imageExtension)
+                .build();
+
+            entry.upload = new ImageUpload(storageServices, blobInfo, entry.metadata.getSize());
+
+            if (entry.upload.isComplete())
+                finishUpload(entry);
+
+            return;
+        }
+
+        Entry entry = entries.get(index);
+
+        if (entry == null)
+            throw Status.INVALID_ARGUMENT.withDescription("The metadata of image " + index + " must be sent before any of its chunks.").asException();
+
+        // Batches aren't resumed, but their chunks may still carry offsets and checksums.
+        if (batchImage.getImage().hasCheckedChunk()) {
+            Image.Chunk chunk = batchImage.getImage().getCheckedChunk();
+            entry.upload.write(chunk.getOffset(), chunk.getData(), chunk.getChecksum());
+        } else
+            entry.upload.write(batchImage.getImage().getChunk());
+
+        // An image ends when all the bytes its metadata declared were received.
+        if (entry.upload.isComplete())
+            finishUpload(entry);
+    }
+
+    private void finishUpload(Entry entry) throws Exception
+    {
+        entry.imageHash = entry.upload.finish();
+        entry.result = deduplicationIndex.get(entry.imageHash, entry.metadata.getTranslateTo());
+
+        if (entry.result != null)
+            entry.upload.abort();
+        else
+            entry.upload.commit();
+
+        ready.add(entry);
+
+        if (ready.size() >= batchSize)
+            flush(true);
+    }
+
+    // Ids are only sent back while the call is still open.
+    private void flush(boolean respond) throws Exception
+    {
+        if (ready.isEmpty())
+            return;
+
+        Map<String, SubmissionStore.SubmissionInfo> submissions = new LinkedHashMap<>();
+
+        for (Entry entry : ready) {
+            SubmissionStore.SubmissionInfo result = entry.result;
+
+            if (entry.stored)
+                continue;
+
+            if (result == null)
+                submissions.put(entry.submissionId, new SubmissionStore.SubmissionInfo(entry.sessionInfo.getId(), entry.sessionInfo.getServiceLevel(), "in progress", null, null, null, null, null));
+            else
+                submissions.put(entry.submissionId, new SubmissionStore.SubmissionInfo(entry.sessionInfo.getId(), entry.sessionInfo.getServiceLevel(), "completed", null, result.getText(), result.getTextTranslated(), result.getTranslatedFrom(), result.getTranslatedTo()));
+        }
+
+        if (!submissions.isEmpty())
+            submissionStore.storeSubmissions(submissions);
+
+        for (Entry entry : ready)
+            entry.stored = true;
+
+        // Published back to back so the topic publishers can send them in as few requests as possible.
+        List<Entry> publishing = new ArrayList<>();
+        List<ApiFuture<String>> published = new ArrayList<>();
+
+        for (Entry entry : ready) {
+            if (entry.result != null || entry.published)
+                continue;
+
+            HashMap<String, String> attributes = new HashMap<>();
+            attributes.put("submissionId", entry.submissionId);
+            attributes.put("to", entry.metadata.getTranslateTo());
+            attributes.put("hash", entry.imageHash);
+
+            long enqueuedAt = System.currentTimeMillis();
+            attributes.put(StageTimings.UPLOAD_STARTED_AT, String.valueOf(entry.uploadStartedAt));
+            attributes.put(StageTimings.OCR_ENQUEUED_AT, String.valueOf(enqueuedAt));
+            StageTimings.recordInterval(ImageObserver.uploadServiceTime, entry.uploadStartedAt, enqueuedAt);
+
+            publishing.add(entry);
+            published.add(publisherServices.publish(entry.topicId, entry.upload.getBlobInfo().getName(), attributes));
+        }
+
+        // Every message is waited for, so the ones that made it are known and never published again.
+        ExecutionException failure = null;
+
+        for (int i = 0; i < published.size(); i++) {
+            try {
+                published.get(i).get();
+                publishing.get(i).published = true;
+            } catch (ExecutionException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+
+        if (respond) {
+            for (Entry entry : ready) {
+                Submission submission = Submission.newBuilder().setId(entry.submissionId).build();
+                responseObserver.onNext(BatchSubmission.newBuilder().setIndex(entry.index).setSubmission(submission).build());
+            }
+        }
+
+        logger.info("Batch of " + ready.size() + " submissions created, " + published.size() + " of them published.");
+
+        ready.clear();
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+        StatusException ex = Status.fromThrowable(throwable).asException();
+        logger.error(ex.getMessage());
+
+        // Stages already chained stop at the next check of finished, the uploads are only released after the last one.
+        if (finished.compareAndSet(false, true))
+            pipeline.whenCompleteAsync((result, failure) -> release(), ioExecutor);
+    }
+
+    @Override
+    public void onCompleted()
+    {
+        pipeline
+            .thenRunAsync(run(this::complete), ioExecutor)
+            .exceptionally(throwable -> {
+                fail(throwable);
+                return null;
+            });
+    }
+
+    private void complete() throws Exception
+    {
+        for (Entry entry : entries.values()) {
+            if (!entry.upload.isComplete())
+                throw Status.INVALID_ARGUMENT.withDescription("Image " + entry.index + " has missing bytes.").asException();
+        }
+
+        flush(true);
+
+        if (finished.compareAndSet(false, true))
+            responseObserver.onCompleted();
+    }
+
+    private void fail(Throwable throwable)
+    {
+        if (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
+
+        if (!finished.compareAndSet(false, true))
+            return;
+
+        // Runs after the failed stage, no other stage can be touching the uploads anymore.
+        release();
+
+        logger.error(throwable.getMessage());
+
+        if (throwable instanceof StatusException)
+            responseObserver.onError(throwable);
+        else
+            responseObserver.onError(Status.INTERNAL.withDescription(throwable.getMessage()).asException());
+    }
+
+    // Images already in storage still get their submissions, so no blob is left without one, even though their ids
+    // can't be sent anymore. Images not fully received were never committed, only their buffers are given back.
+    private void release()
+    {
+        try {
+            flush(false);
+        } catch (Exception e) {
+            logger.error("The submissions of " + ready.size() + " stored images couldn't be created: " + e.getMessage());
+
+            // A submission whose message never made it to a topic would wait on the workers forever.
+            for (Entry entry : ready) {
+                if (!entry.stored || entry.result != null || entry.published)
+                    continue;
+
+                try {
+                    submissionStore.failSubmission(entry.submissionId, "in progress", UNPUBLISHED_ERROR);
+                } catch (Exception f) {
+                    logger.error("Couldn't fail submission " + entry.submissionId + ". " + f.getMessage());
+                }
+            }
+        }
+
+        for (Entry entry : entries.values()) {
+            if (entry.upload != null)
+                entry.upload.abort();
+        }
+    }
+
+    private Runnable run(Task task)
+    {
+        return () -> {
+            if (finished.get())
+                throw new CompletionException(Status.CANCELLED.withDescription("The upload was cancelled.").asException());
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+}
\ No newline at end of file
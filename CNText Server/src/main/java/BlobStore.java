@@ -0,0 +1,12 @@
+import com.google.cloud.storage.BlobInfo;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+// Where uploaded images are kept. Nothing written through a writer is visible until the writer is closed.
+public interface BlobStore
+{
+    void storeImage(BlobInfo imageInfo, byte[] image, int length) throws IOException;
+
+    WritableByteChannel openWriter(BlobInfo imageInfo, int chunkSize) throws IOException;
+}
\ No newline at end of file
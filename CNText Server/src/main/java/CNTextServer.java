@@ -2,19 +2,30 @@ import com.google.api.services.compute.ComputeScopes;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.protobuf.Empty;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.StreamObserver;
+import ipl.isel.cn.group2.metrics.MetricsInterceptor;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import ipl.isel.cn.group2.metrics.MetricsServer;
+import ipl.isel.cn.group2.metrics.StageTimings;
 import ipl.isel.cn.group2.contract.*;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.store.KeyValueStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -27,27 +38,73 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
 
     private static final String DEFAULT_PROJECT_ID = "g02-leirt61d-v1920";
     private static final int DEFAULT_PORT = 8000;
+    private static final int DEFAULT_IO_THREADS = 16;
 
-    private final FirestoreServices firestoreServices;
+    private final SubmissionStore submissionStore;
     private final StorageServices storageServices;
-    private final ComputeServices computeServices;
+    private final AutoscalingController autoscalingController;
+    private final PublisherServices publisherServices;
+    private final SessionCache sessionCache;
+    private final SessionTokens sessionTokens;
+    private final SessionResolver sessionResolver;
+    private final SubmissionWatchers submissionWatchers;
+    private final DeduplicationIndex deduplicationIndex;
+    private final ResumableUploads resumableUploads;
+    private final ExpirySweeper expirySweeper;
+    private final AdmissionControl admissionControl;
+    private final ServerTransport transport;
 
     private final Server server;
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    private final ExecutorService ioExecutor;
+    private final int inboundWindow;
+    private final int submissionBatchSize;
 
     public CNTextServer(
         int port,
-        FirestoreServices firestoreServices,
+        SubmissionStore submissionStore,
         StorageServices storageServices,
-        ComputeServices computeServices
+        AutoscalingController autoscalingController,
+        PublisherServices publisherServices,
+        SessionCache sessionCache,
+        SessionTokens sessionTokens,
+        ExpirySweeper expirySweeper,
+        AdmissionControl.Limits freeLimits,
+        AdmissionControl.Limits premiumLimits,
+        int ioThreads,
+        int inboundWindow,
+        int deduplicationIndexSize,
+        int submissionBatchSize,
+        ResumableUploads resumableUploads,
+        ServerTransport transport
     ) {
-        this.firestoreServices = firestoreServices;
+        this.submissionStore = submissionStore;
         this.storageServices = storageServices;
-        this.computeServices = computeServices;
-
-        this.server = ServerBuilder
-            .forPort(port)
-            .addService(this)
+        this.autoscalingController = autoscalingController;
+        this.publisherServices = publisherServices;
+        this.sessionCache = sessionCache;
+        this.sessionTokens = sessionTokens;
+        this.expirySweeper = expirySweeper;
+        this.submissionWatchers = new SubmissionWatchers(submissionStore);
+        this.deduplicationIndex = new DeduplicationIndex(submissionStore, deduplicationIndexSize);
+        this.resumableUploads = resumableUploads;
+        this.transport = transport;
+        this.ioExecutor = transport.newExecutor(ioThreads);
+        this.inboundWindow = inboundWindow;
+        this.submissionBatchSize = submissionBatchSize;
+
+        // In token mode sessions are verified locally, otherwise they're looked up through the cache.
+        if(sessionTokens != null)
+            this.sessionResolver = sessionTokens;
+        else
+            this.sessionResolver = sessionId -> sessionCache.get(sessionId, submissionStore::validateSession);
+
+        // Admission runs on the call's thread, so it only resolves sessions it can without a lookup.
+        this.admissionControl = new AdmissionControl(sessionTokens != null ? sessionTokens : sessionCache::getIfPresent, freeLimits, premiumLimits);
+
+        this.server = transport
+            .newServerBuilder(port)
+            .addService(ServerInterceptors.intercept(this, admissionControl, new MetricsInterceptor(MetricsRegistry.getDefault())))
             .build();
     }
 
@@ -55,7 +112,17 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
     public void signIn(Username username, StreamObserver<Session> responseObserver)
     {
         try {
-            String sessionId = firestoreServices.storeSession(username.getValue());
+            SubmissionStore.SessionInfo sessionInfo;
+
+            if(sessionTokens != null) {
+                String serviceLevel = submissionStore.getServiceLevel(username.getValue());
+                sessionInfo = sessionTokens.issue(username.getValue(), serviceLevel);
+            } else {
+                sessionInfo = submissionStore.storeSession(username.getValue());
+                sessionCache.put(sessionInfo);
+            }
+
+            String sessionId = sessionInfo.getId();
             Session session = Session.newBuilder().setId(sessionId).build();
 
             logger.info("Session whose id is " + sessionId + ", is now active.");
@@ -75,7 +142,16 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
     public void signOut(Session session, StreamObserver<Empty> responseObserver)
     {
         try {
-            firestoreServices.closeSession(session.getId());
+            if(sessionTokens != null)
+                sessionTokens.revoke(session.getId());
+            else {
+                // Invalidated once the session is closed, so a lookup in between can't cache it again.
+                try {
+                    submissionStore.closeSession(session.getId());
+                } finally {
+                    sessionCache.invalidate(session.getId());
+                }
+            }
 
             logger.info("Session whose id is " + session.getId() + ", is now inactive.");
 
@@ -94,7 +170,12 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
 
     @Override
     public StreamObserver<Image> submitImageTextTranslationRequest(StreamObserver<Submission> responseObserver) {
-        return new ImageObserver(responseObserver, firestoreServices, storageServices, StorageServices.DEFAULT_BUCKET_ID);
+        return new ImageObserver(responseObserver, submissionStore, storageServices, sessionResolver, publisherServices, deduplicationIndex, resumableUploads, ioExecutor, inboundWindow, StorageServices.DEFAULT_BUCKET_ID);
+    }
+
+    @Override
+    public StreamObserver<BatchImage> submitImageTextTranslationBatch(StreamObserver<BatchSubmission> responseObserver) {
+        return new BatchImageObserver(responseObserver, submissionStore, storageServices, sessionResolver, publisherServices, deduplicationIndex, ioExecutor, inboundWindow, submissionBatchSize, StorageServices.DEFAULT_BUCKET_ID);
     }
 
     @Override
@@ -103,7 +184,8 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
             String sessionId = request.getSession().getId();
             String submissionId = request.getSubmission().getId();
 
-            FirestoreServices.SubmissionInfo submissionInfo = firestoreServices.getSubmissionInfo(sessionId, submissionId);
+            SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
+            SubmissionStore.SubmissionInfo submissionInfo = submissionStore.getSubmissionInfo(sessionInfo, submissionId);
 
             String submissionState = submissionInfo.getState();
 
@@ -133,67 +215,481 @@ public class CNTextServer extends CNTextServiceGrpc.CNTextServiceImplBase
         }
     }
 
+    @Override
+    public void getUploadStatus(UploadRequest request, StreamObserver<UploadStatus> responseObserver) {
+        try {
+            String sessionId = request.getSession().getId();
+            String uploadId = request.getUploadId();
+
+            SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
+            ResumableUploads.PendingUpload pending = resumableUploads.get(sessionInfo.getId(), uploadId);
+
+            // Uploads already committed, expired or never started alike, the client has to start over.
+            if(pending == null)
+                throw Status.NOT_FOUND.withDescription("There is no pending upload whose id is " + uploadId + ".").asException();
+
+            responseObserver.onNext(pending.getUpload().getStatus());
+            responseObserver.onCompleted();
+        } catch (StatusException ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(ex);
+        } catch (Exception ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
+        }
+    }
+
+    @Override
+    public void getSubmissionTimings(Request request, StreamObserver<SubmissionTimings> responseObserver) {
+        try {
+            String sessionId = request.getSession().getId();
+            String submissionId = request.getSubmission().getId();
+
+            SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
+            SubmissionStore.SubmissionInfo submissionInfo = submissionStore.getSubmissionInfo(sessionInfo, submissionId);
+
+            Map<String, Long> timings = submissionInfo.getTimings();
+
+            if(timings == null)
+                timings = new HashMap<>();
+
+            // A stage that wasn't reached yet, or was skipped because the result was deduplicated, is left out.
+            SubmissionTimings.Builder builder = SubmissionTimings.newBuilder();
+            addStageTiming(builder, timings, "upload", StageTimings.UPLOAD_STARTED_AT, StageTimings.UPLOAD_STARTED_AT, StageTimings.OCR_ENQUEUED_AT);
+            addStageTiming(builder, timings, "ocr", StageTimings.OCR_ENQUEUED_AT, StageTimings.OCR_DEQUEUED_AT, StageTimings.OCR_FINISHED_AT);
+            addStageTiming(builder, timings, "translation", StageTimings.TRANSLATION_ENQUEUED_AT, StageTimings.TRANSLATION_DEQUEUED_AT, StageTimings.TRANSLATION_FINISHED_AT);
+
+            if(timings.containsKey(StageTimings.UPLOAD_STARTED_AT) && timings.containsKey(StageTimings.TRANSLATION_FINISHED_AT))
+                builder.setTotalMillis(timings.get(StageTimings.TRANSLATION_FINISHED_AT) - timings.get(StageTimings.UPLOAD_STARTED_AT));
+
+            responseObserver.onNext(builder.build());
+            responseObserver.onCompleted();
+        } catch (StatusException ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(ex);
+        } catch (Exception ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
+        }
+    }
+
+    private static void addStageTiming(SubmissionTimings.Builder builder, Map<String, Long> timings, String stage, String enqueuedKey, String dequeuedKey, String finishedKey)
+    {
+        Long enqueuedAt = timings.get(enqueuedKey);
+        Long dequeuedAt = timings.get(dequeuedKey);
+        Long finishedAt = timings.get(finishedKey);
+
+        if(enqueuedAt == null || dequeuedAt == null)
+            return;
+
+        StageTiming.Builder stageTiming = StageTiming
+            .newBuilder()
+            .setStage(stage)
+            .setQueueWaitMillis(Math.max(0L, dequeuedAt - enqueuedAt));
+
+        if(finishedAt != null)
+            stageTiming.setServiceMillis(Math.max(0L, finishedAt - dequeuedAt));
+
+        builder.addStages(stageTiming);
+    }
+
+    @Override
+    public void watchSubmission(Request request, StreamObserver<SubmissionState> responseObserver) {
+        try {
+            String sessionId = request.getSession().getId();
+            String submissionId = request.getSubmission().getId();
+
+            SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
+            submissionWatchers.watch(sessionInfo, submissionId, responseObserver);
+        } catch (StatusException ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(ex);
+        } catch (Exception ex) {
+            logger.error(ex.getMessage());
+            responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
+        }
+    }
+
     private void start() throws IOException, ExecutionException, InterruptedException {
-        logger.info("Cleaning older sessions and submissions.");
-        firestoreServices.deleteSubmissions();
-        firestoreServices.closeSessions();
-
-        Runnable runnable = () -> {
-            try {
-                int newSize = ImageObserver.numberOfPremiumSessions.intValue() + 2;
-                logger.info("Adjusting instance groups size to " + newSize);
-                computeServices.resizeInstanceGroup(ComputeServices.DEFAULT_PREMIUM_OCR_INSTANCE_GROUP_ID, newSize);
-                computeServices.resizeInstanceGroup(ComputeServices.DEFAULT_PREMIUM_TRANSLATION_INSTANCE_GROUP_ID, newSize);
-            } catch (InterruptedException | IOException e) {
-                logger.error("Couldn't resize the number of instances.");
-            }
-        };
+        publisherServices.start(PublisherServices.FREE_OCR_TOPIC_ID, PublisherServices.PREMIUM_OCR_TOPIC_ID);
+
+        // Expired sessions and submissions are deleted in the background, so the server can listen right away.
+        executor.scheduleWithFixedDelay(expirySweeper, 0, ExpirySweeper.SWEEP_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        // OCR waits on submissions enqueued and still in progress, not on uploads still streaming, which are uploading.
+        // Translation waits on the ones whose text was already detected.
+        if (autoscalingController != null) {
+            autoscalingController.addGroup(ComputeServices.DEFAULT_PREMIUM_OCR_INSTANCE_GROUP_ID, AutoscalingController.PREMIUM_OCR_SUBSCRIPTION_ID, "in progress");
+            autoscalingController.addGroup(ComputeServices.DEFAULT_PREMIUM_TRANSLATION_INSTANCE_GROUP_ID, AutoscalingController.PREMIUM_TRANSLATION_SUBSCRIPTION_ID, "detected");
+
+            executor.scheduleWithFixedDelay(autoscalingController, AutoscalingController.CONTROL_PERIOD_SECONDS, AutoscalingController.CONTROL_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+
+        executor.scheduleAtFixedRate(() -> {
+            sessionCache.evictExpired();
+            logger.info(sessionCache.toString());
+            logger.info(deduplicationIndex.toString());
 
-        executor.scheduleAtFixedRate(runnable, 2, 2, TimeUnit.MINUTES);
+            resumableUploads.evictExpired();
+            logger.info(resumableUploads.toString());
+            logger.info(expirySweeper.toString());
+            if (autoscalingController != null)
+                logger.info(autoscalingController.toString());
+
+            admissionControl.evictIdle();
+            logger.info(admissionControl.toString());
+
+            if(sessionTokens != null)
+                logger.info("Purged " + sessionTokens.purgeDenylist() + " expired entries from the session token denylist, " + sessionTokens.getDenylistSize() + " remain.");
+        }, 1, 1, TimeUnit.MINUTES);
 
         server.start();
 
         System.out.println("Server started, listening on " + server.getPort());
 
-        Scanner scan = new Scanner(System.in); scan.nextLine();
+        logger.info(transport.toString());
+
+        // Admission limits can be changed while running. Only stop, or the end of the input, stops the server, any other
+        // line is logged and ignored, so a mistyped command can't take it down.
+        Pattern limitsPattern = Pattern.compile("^limits (\\w+) ([\\d]+) ([\\d]+) ([\\d]+) ([\\d]+) ([\\d]+)$");
+        Scanner scan = new Scanner(System.in);
+
+        while (scan.hasNextLine()) {
+            String line = scan.nextLine().trim();
+            Matcher limitsMatcher = limitsPattern.matcher(line);
+
+            if (limitsMatcher.matches())
+                admissionControl.setLimits(limitsMatcher.group(1), parseLimits(limitsMatcher, 2));
+            else if (line.equals("stop"))
+                break;
+            else if (!line.isEmpty())
+                logger.warn("Ignored unknown command \"" + line + "\", expected \"limits <level> <session rate> <session burst> <session streams> <level rate> <level streams>\" or \"stop\".");
+        }
+    }
+
+    private static AdmissionControl.Limits parseLimits(Matcher matcher, int firstGroup) {
+        return new AdmissionControl.Limits(
+            Integer.parseInt(matcher.group(firstGroup)),
+            Integer.parseInt(matcher.group(firstGroup + 1)),
+            Integer.parseInt(matcher.group(firstGroup + 2)),
+            Integer.parseInt(matcher.group(firstGroup + 3)),
+            Integer.parseInt(matcher.group(firstGroup + 4))
+        );
     }
 
     private void shutdown(int status) {
         server.shutdown();
         executor.shutdown();
+        ioExecutor.shutdown();
+        transport.shutdown();
+        publisherServices.shutdown();
         System.exit(status);
     }
 
-    public static void main(String... args)
+    public static void main(String... args) {
+        launch(null, null, args);
+    }
+
+    // Topics and store are given when the workers run in this same process, otherwise both are null.
+    public static void launch(InMemoryTopics topics, KeyValueStore keyValueStore, String... args)
     {
         String projectId = DEFAULT_PROJECT_ID;
         int port = DEFAULT_PORT;
+        int sessionCacheSize = SessionCache.DEFAULT_MAXIMUM_SIZE;
+        long sessionCacheTimeToLive = SessionCache.DEFAULT_TIME_TO_LIVE_SECONDS;
+        String sessionTokenKey = null;
+        long sessionTokenTimeToLive = SessionTokens.DEFAULT_TIME_TO_LIVE_SECONDS;
+        long batchElementCount = PublisherServices.DEFAULT_BATCH_ELEMENT_COUNT;
+        long batchRequestBytes = PublisherServices.DEFAULT_BATCH_REQUEST_BYTES;
+        long batchDelayMillis = PublisherServices.DEFAULT_BATCH_DELAY_MILLIS;
+        int ioThreads = DEFAULT_IO_THREADS;
+        int inboundWindow = ImageObserver.DEFAULT_INBOUND_WINDOW;
+        int aggregationThreshold = StorageServices.DEFAULT_AGGREGATION_THRESHOLD_BYTES;
+        int uploadChunkSize = StorageServices.DEFAULT_UPLOAD_CHUNK_SIZE_BYTES;
+        int deduplicationIndexSize = DeduplicationIndex.DEFAULT_MAXIMUM_SIZE;
+        int submissionBatchSize = BatchImageObserver.DEFAULT_BATCH_SIZE;
+        int minimumGroupSize = AutoscalingController.DEFAULT_MINIMUM_SIZE;
+        int maximumGroupSize = AutoscalingController.DEFAULT_MAXIMUM_SIZE;
+        int targetLoadPerInstance = AutoscalingController.DEFAULT_TARGET_LOAD_PER_INSTANCE;
+        long targetWaitSeconds = AutoscalingController.DEFAULT_TARGET_WAIT_SECONDS;
+        boolean localAutoscaling = false;
+        AdmissionControl.Limits freeLimits = AdmissionControl.DEFAULT_FREE_LIMITS;
+        AdmissionControl.Limits premiumLimits = AdmissionControl.DEFAULT_PREMIUM_LIMITS;
+        int metricsPort = MetricsServer.DEFAULT_PORT;
+        String blobStoreDirectory = null;
+        String keyValueStoreDirectory = null;
+        Map<String, String> seededUsers = new LinkedHashMap<>();
+        long sessionTimeToLive = SubmissionStore.DEFAULT_SESSION_TIME_TO_LIVE_SECONDS;
+        long submissionTimeToLive = SubmissionStore.DEFAULT_SUBMISSION_TIME_TO_LIVE_SECONDS;
+        int sweepRate = ExpirySweeper.DEFAULT_DELETIONS_PER_SECOND;
+        int sweepParallelBatches = ExpirySweeper.DEFAULT_PARALLEL_BATCHES;
+        boolean virtualThreads = false;
+        boolean epoll = false;
+        int bossThreads = ServerTransport.DEFAULT_BOSS_THREADS;
+        int workerThreads = ServerTransport.DEFAULT_WORKER_THREADS;
+        int flowControlWindow = ServerTransport.DEFAULT_FLOW_CONTROL_WINDOW;
+        int maxInboundMessageSize = ServerTransport.DEFAULT_MAX_INBOUND_MESSAGE_SIZE;
+        long keepAliveSeconds = ServerTransport.DEFAULT_KEEP_ALIVE_SECONDS;
+        long keepAliveTimeoutSeconds = ServerTransport.DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS;
+        long permitKeepAliveSeconds = ServerTransport.DEFAULT_PERMIT_KEEP_ALIVE_SECONDS;
+        int resumableUploadsSize = ResumableUploads.DEFAULT_MAXIMUM_SIZE;
+        long resumableUploadsTimeToLive = ResumableUploads.DEFAULT_TIME_TO_LIVE_SECONDS;
 
         Pattern portPattern = Pattern.compile("^-p=([\\d]+)$");
         Pattern projectIdPattern = Pattern.compile("^-i=(\\b[\\w-]+\\b)$");
+        Pattern sessionCacheSizePattern = Pattern.compile("^-cs=([\\d]+)$");
+        Pattern sessionCacheTimeToLivePattern = Pattern.compile("^-ct=([\\d]+)$");
+        Pattern sessionTokenKeyPattern = Pattern.compile("^-tk=(\\S+)$");
+        Pattern sessionTokenTimeToLivePattern = Pattern.compile("^-tt=([\\d]+)$");
+        Pattern batchElementCountPattern = Pattern.compile("^-bc=([\\d]+)$");
+        Pattern batchRequestBytesPattern = Pattern.compile("^-bb=([\\d]+)$");
+        Pattern batchDelayPattern = Pattern.compile("^-bd=([\\d]+)$");
+        Pattern ioThreadsPattern = Pattern.compile("^-io=([\\d]+)$");
+        Pattern inboundWindowPattern = Pattern.compile("^-w=([\\d]+)$");
+        Pattern aggregationThresholdPattern = Pattern.compile("^-ut=([\\d]+)$");
+        Pattern uploadChunkSizePattern = Pattern.compile("^-uc=([\\d]+)$");
+        Pattern deduplicationIndexSizePattern = Pattern.compile("^-ds=([\\d]+)$");
+        Pattern submissionBatchSizePattern = Pattern.compile("^-sb=([\\d]+)$");
+        Pattern minimumGroupSizePattern = Pattern.compile("^-gn=([\\d]+)$");
+        Pattern maximumGroupSizePattern = Pattern.compile("^-gx=([\\d]+)$");
+        Pattern targetLoadPerInstancePattern = Pattern.compile("^-gl=([\\d]+)$");
+        Pattern targetWaitSecondsPattern = Pattern.compile("^-gw=([\\d]+)$");
+        Pattern localAutoscalingPattern = Pattern.compile("^-ga$");
+        Pattern freeLimitsPattern = Pattern.compile("^-af=([\\d]+),([\\d]+),([\\d]+),([\\d]+),([\\d]+)$");
+        Pattern premiumLimitsPattern = Pattern.compile("^-ap=([\\d]+),([\\d]+),([\\d]+),([\\d]+),([\\d]+)$");
+        Pattern metricsPortPattern = Pattern.compile("^-mp=([\\d]+)$");
+        Pattern blobStoreDirectoryPattern = Pattern.compile("^-bs=(.+)$");
+        Pattern keyValueStoreDirectoryPattern = Pattern.compile("^-ks=(.+)$");
+        Pattern seededUsersPattern = Pattern.compile("^-ku=([\\w.@-]+:\\w+(,[\\w.@-]+:\\w+)*)$");
+        Pattern sessionTimeToLivePattern = Pattern.compile("^-es=([\\d]+)$");
+        Pattern submissionTimeToLivePattern = Pattern.compile("^-ex=([\\d]+)$");
+        Pattern sweepRatePattern = Pattern.compile("^-sr=([\\d]+)$");
+        Pattern sweepParallelBatchesPattern = Pattern.compile("^-sp=([\\d]+)$");
+        Pattern virtualThreadsPattern = Pattern.compile("^-vt$");
+        Pattern epollPattern = Pattern.compile("^-ep$");
+        Pattern bossThreadsPattern = Pattern.compile("^-eb=([\\d]+)$");
+        Pattern workerThreadsPattern = Pattern.compile("^-ew=([\\d]+)$");
+        Pattern flowControlWindowPattern = Pattern.compile("^-fw=([\\d]+)$");
+        Pattern maxInboundMessageSizePattern = Pattern.compile("^-mm=([\\d]+)$");
+        Pattern keepAlivePattern = Pattern.compile("^-ka=([\\d]+)$");
+        Pattern keepAliveTimeoutPattern = Pattern.compile("^-kt=([\\d]+)$");
+        Pattern permitKeepAlivePattern = Pattern.compile("^-kp=([\\d]+)$");
+        Pattern resumableUploadsSizePattern = Pattern.compile("^-rs=([\\d]+)$");
+        Pattern resumableUploadsTimeToLivePattern = Pattern.compile("^-rt=([\\d]+)$");
 
         for (String arg : args) {
             Matcher portMatcher = portPattern.matcher(arg);
             Matcher projectIdMatcher = projectIdPattern.matcher(arg);
+            Matcher sessionCacheSizeMatcher = sessionCacheSizePattern.matcher(arg);
+            Matcher sessionCacheTimeToLiveMatcher = sessionCacheTimeToLivePattern.matcher(arg);
+            Matcher sessionTokenKeyMatcher = sessionTokenKeyPattern.matcher(arg);
+            Matcher sessionTokenTimeToLiveMatcher = sessionTokenTimeToLivePattern.matcher(arg);
+            Matcher batchElementCountMatcher = batchElementCountPattern.matcher(arg);
+            Matcher batchRequestBytesMatcher = batchRequestBytesPattern.matcher(arg);
+            Matcher batchDelayMatcher = batchDelayPattern.matcher(arg);
+            Matcher ioThreadsMatcher = ioThreadsPattern.matcher(arg);
+            Matcher inboundWindowMatcher = inboundWindowPattern.matcher(arg);
+            Matcher aggregationThresholdMatcher = aggregationThresholdPattern.matcher(arg);
+            Matcher uploadChunkSizeMatcher = uploadChunkSizePattern.matcher(arg);
+            Matcher deduplicationIndexSizeMatcher = deduplicationIndexSizePattern.matcher(arg);
+            Matcher submissionBatchSizeMatcher = submissionBatchSizePattern.matcher(arg);
+            Matcher minimumGroupSizeMatcher = minimumGroupSizePattern.matcher(arg);
+            Matcher maximumGroupSizeMatcher = maximumGroupSizePattern.matcher(arg);
+            Matcher targetLoadPerInstanceMatcher = targetLoadPerInstancePattern.matcher(arg);
+            Matcher targetWaitSecondsMatcher = targetWaitSecondsPattern.matcher(arg);
+            Matcher localAutoscalingMatcher = localAutoscalingPattern.matcher(arg);
+            Matcher freeLimitsMatcher = freeLimitsPattern.matcher(arg);
+            Matcher premiumLimitsMatcher = premiumLimitsPattern.matcher(arg);
+            Matcher metricsPortMatcher = metricsPortPattern.matcher(arg);
+            Matcher blobStoreDirectoryMatcher = blobStoreDirectoryPattern.matcher(arg);
+            Matcher keyValueStoreDirectoryMatcher = keyValueStoreDirectoryPattern.matcher(arg);
+            Matcher seededUsersMatcher = seededUsersPattern.matcher(arg);
+            Matcher sessionTimeToLiveMatcher = sessionTimeToLivePattern.matcher(arg);
+            Matcher submissionTimeToLiveMatcher = submissionTimeToLivePattern.matcher(arg);
+            Matcher sweepRateMatcher = sweepRatePattern.matcher(arg);
+            Matcher sweepParallelBatchesMatcher = sweepParallelBatchesPattern.matcher(arg);
+            Matcher virtualThreadsMatcher = virtualThreadsPattern.matcher(arg);
+            Matcher epollMatcher = epollPattern.matcher(arg);
+            Matcher bossThreadsMatcher = bossThreadsPattern.matcher(arg);
+            Matcher workerThreadsMatcher = workerThreadsPattern.matcher(arg);
+            Matcher flowControlWindowMatcher = flowControlWindowPattern.matcher(arg);
+            Matcher maxInboundMessageSizeMatcher = maxInboundMessageSizePattern.matcher(arg);
+            Matcher keepAliveMatcher = keepAlivePattern.matcher(arg);
+            Matcher keepAliveTimeoutMatcher = keepAliveTimeoutPattern.matcher(arg);
+            Matcher permitKeepAliveMatcher = permitKeepAlivePattern.matcher(arg);
+            Matcher resumableUploadsSizeMatcher = resumableUploadsSizePattern.matcher(arg);
+            Matcher resumableUploadsTimeToLiveMatcher = resumableUploadsTimeToLivePattern.matcher(arg);
 
             if(portMatcher.matches())
                 port = Integer.parseInt(portMatcher.group(1));
             else if(projectIdMatcher.matches())
                 projectId = projectIdMatcher.group(1);
+            else if(sessionCacheSizeMatcher.matches())
+                sessionCacheSize = Integer.parseInt(sessionCacheSizeMatcher.group(1));
+            else if(sessionCacheTimeToLiveMatcher.matches())
+                sessionCacheTimeToLive = Long.parseLong(sessionCacheTimeToLiveMatcher.group(1));
+            else if(sessionTokenKeyMatcher.matches())
+                sessionTokenKey = sessionTokenKeyMatcher.group(1);
+            else if(sessionTokenTimeToLiveMatcher.matches())
+                sessionTokenTimeToLive = Long.parseLong(sessionTokenTimeToLiveMatcher.group(1));
+            else if(batchElementCountMatcher.matches())
+                batchElementCount = Long.parseLong(batchElementCountMatcher.group(1));
+            else if(batchRequestBytesMatcher.matches())
+                batchRequestBytes = Long.parseLong(batchRequestBytesMatcher.group(1));
+            else if(batchDelayMatcher.matches())
+                batchDelayMillis = Long.parseLong(batchDelayMatcher.group(1));
+            else if(ioThreadsMatcher.matches())
+                ioThreads = Integer.parseInt(ioThreadsMatcher.group(1));
+            else if(inboundWindowMatcher.matches())
+                inboundWindow = Integer.parseInt(inboundWindowMatcher.group(1));
+            else if(aggregationThresholdMatcher.matches())
+                aggregationThreshold = Integer.parseInt(aggregationThresholdMatcher.group(1));
+            else if(uploadChunkSizeMatcher.matches())
+                uploadChunkSize = Integer.parseInt(uploadChunkSizeMatcher.group(1));
+            else if(deduplicationIndexSizeMatcher.matches())
+                deduplicationIndexSize = Integer.parseInt(deduplicationIndexSizeMatcher.group(1));
+            else if(submissionBatchSizeMatcher.matches())
+                submissionBatchSize = Integer.parseInt(submissionBatchSizeMatcher.group(1));
+            else if(sessionTimeToLiveMatcher.matches())
+                sessionTimeToLive = Long.parseLong(sessionTimeToLiveMatcher.group(1));
+            else if(submissionTimeToLiveMatcher.matches())
+                submissionTimeToLive = Long.parseLong(submissionTimeToLiveMatcher.group(1));
+            else if(sweepRateMatcher.matches())
+                sweepRate = Integer.parseInt(sweepRateMatcher.group(1));
+            else if(sweepParallelBatchesMatcher.matches())
+                sweepParallelBatches = Integer.parseInt(sweepParallelBatchesMatcher.group(1));
+            else if(minimumGroupSizeMatcher.matches())
+                minimumGroupSize = Integer.parseInt(minimumGroupSizeMatcher.group(1));
+            else if(maximumGroupSizeMatcher.matches())
+                maximumGroupSize = Integer.parseInt(maximumGroupSizeMatcher.group(1));
+            else if(targetLoadPerInstanceMatcher.matches())
+                targetLoadPerInstance = Integer.parseInt(targetLoadPerInstanceMatcher.group(1));
+            else if(targetWaitSecondsMatcher.matches())
+                targetWaitSeconds = Long.parseLong(targetWaitSecondsMatcher.group(1));
+            else if(localAutoscalingMatcher.matches())
+                localAutoscaling = true;
+            else if(freeLimitsMatcher.matches())
+                freeLimits = parseLimits(freeLimitsMatcher, 1);
+            else if(premiumLimitsMatcher.matches())
+                premiumLimits = parseLimits(premiumLimitsMatcher, 1);
+            else if(metricsPortMatcher.matches())
+                metricsPort = Integer.parseInt(metricsPortMatcher.group(1));
+            else if(blobStoreDirectoryMatcher.matches())
+                blobStoreDirectory = blobStoreDirectoryMatcher.group(1);
+            else if(keyValueStoreDirectoryMatcher.matches())
+                keyValueStoreDirectory = keyValueStoreDirectoryMatcher.group(1);
+            else if(seededUsersMatcher.matches()) {
+                for (String user : seededUsersMatcher.group(1).split(","))
+                    seededUsers.put(user.split(":")[0], user.split(":")[1]);
+            }
+            else if(virtualThreadsMatcher.matches())
+                virtualThreads = true;
+            else if(epollMatcher.matches())
+                epoll = true;
+            else if(bossThreadsMatcher.matches())
+                bossThreads = Integer.parseInt(bossThreadsMatcher.group(1));
+            else if(workerThreadsMatcher.matches())
+                workerThreads = Integer.parseInt(workerThreadsMatcher.group(1));
+            else if(flowControlWindowMatcher.matches())
+                flowControlWindow = Integer.parseInt(flowControlWindowMatcher.group(1));
+            else if(maxInboundMessageSizeMatcher.matches())
+                maxInboundMessageSize = Integer.parseInt(maxInboundMessageSizeMatcher.group(1));
+            else if(keepAliveMatcher.matches())
+                keepAliveSeconds = Long.parseLong(keepAliveMatcher.group(1));
+            else if(keepAliveTimeoutMatcher.matches())
+                keepAliveTimeoutSeconds = Long.parseLong(keepAliveTimeoutMatcher.group(1));
+            else if(permitKeepAliveMatcher.matches())
+                permitKeepAliveSeconds = Long.parseLong(permitKeepAliveMatcher.group(1));
+            else if(resumableUploadsSizeMatcher.matches())
+                resumableUploadsSize = Integer.parseInt(resumableUploadsSizeMatcher.group(1));
+            else if(resumableUploadsTimeToLiveMatcher.matches())
+                resumableUploadsTimeToLive = Long.parseLong(resumableUploadsTimeToLiveMatcher.group(1));
         }
 
         try {
-            List<String> scopes = new ArrayList<>();
-            scopes.add(ComputeScopes.COMPUTE);
+            // Metrics are scraped from /metrics on their own port, 0 turns the endpoint off.
+            if(metricsPort != 0) {
+                MetricsServer metricsServer = new MetricsServer(metricsPort, MetricsRegistry.getDefault());
+                metricsServer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(metricsServer::stop));
+            }
+
+            // With every backend in this process there is no Google API to call, so no credentials are needed either.
+            boolean local = topics != null && (keyValueStore != null || keyValueStoreDirectory != null) && blobStoreDirectory != null;
+            GoogleCredentials credentials = local ? null : GoogleCredentials.getApplicationDefault();
+
+            // Sessions and submissions are kept in Firestore, unless a local directory is given for an embedded store.
+            SubmissionStore submissionStore;
+
+            if(keyValueStore != null)
+                submissionStore = new EmbeddedSubmissionStore(keyValueStore, sessionTimeToLive, submissionTimeToLive, TimeUnit.SECONDS);
+            else if(keyValueStoreDirectory != null) {
+                KeyValueStore localStore = KeyValueStore.open(Paths.get(keyValueStoreDirectory));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        localStore.close();
+                    } catch (IOException e) {
+                        logger.error(e.getMessage());
+                    }
+                }));
+
+                submissionStore = new EmbeddedSubmissionStore(localStore, sessionTimeToLive, submissionTimeToLive, TimeUnit.SECONDS);
+            } else
+                submissionStore = new FirestoreServices(projectId, credentials, sessionTimeToLive, submissionTimeToLive, TimeUnit.SECONDS);
+
+            for (Map.Entry<String, String> user : seededUsers.entrySet())
+                submissionStore.storeUser(user.getKey(), user.getValue());
+
+            // Images are kept in Google Cloud Storage, unless a local directory is given for them.
+            BlobStore blobStore;
+
+            if(blobStoreDirectory != null)
+                blobStore = new LocalBlobStore(blobStoreDirectory);
+            else
+                blobStore = new GcsBlobStore(projectId, credentials);
+
+            StorageServices storageServices = new StorageServices(projectId, blobStore, aggregationThreshold, uploadChunkSize);
+            // Workers in this process have no instance groups to scale, their queues are bounded instead. With -ga the
+            // controller still runs, against fake groups and the load of the in-memory topics, to follow its decisions.
+            AutoscalingController autoscalingController = null;
+            PublisherServices publisherServices;
+
+            if(topics != null) {
+                publisherServices = new PublisherServices(topics);
+
+                if(localAutoscaling)
+                    autoscalingController = new AutoscalingController(new LocalInstanceGroups(minimumGroupSize), new LocalScalingMetricsSource(topics, submissionStore), minimumGroupSize, maximumGroupSize, targetLoadPerInstance, targetWaitSeconds);
+            }
+            else {
+                List<String> scopes = new ArrayList<>();
+                scopes.add(ComputeScopes.COMPUTE);
+
+                GoogleCredentials computeEngineCredentials = credentials.createScoped(scopes);
+                ComputeServices computeServices = new ComputeServices(projectId, computeEngineCredentials, "us-central1-a");
+
+                CloudScalingMetricsSource scalingMetricsSource = new CloudScalingMetricsSource(projectId, credentials, submissionStore);
+                Runtime.getRuntime().addShutdownHook(new Thread(scalingMetricsSource::close));
+
+                autoscalingController = new AutoscalingController(computeServices, scalingMetricsSource, minimumGroupSize, maximumGroupSize, targetLoadPerInstance, targetWaitSeconds);
+
+                publisherServices = new PublisherServices(projectId, batchElementCount, batchRequestBytes, batchDelayMillis);
+                Runtime.getRuntime().addShutdownHook(new Thread(publisherServices::shutdown));
+            }
+
+            SessionCache sessionCache = new SessionCache(sessionCacheSize, sessionCacheTimeToLive, TimeUnit.SECONDS);
+
+            ExpirySweeper expirySweeper = new ExpirySweeper(submissionStore, sweepRate, sweepParallelBatches);
+
+            SessionTokens sessionTokens = null;
+
+            if(sessionTokenKey != null)
+                sessionTokens = new SessionTokens(sessionTokenKey, sessionTokenTimeToLive, TimeUnit.SECONDS);
 
-            GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
-            GoogleCredentials computeEngineCredentials = credentials.createScoped(scopes);
+            ResumableUploads resumableUploads = new ResumableUploads(submissionStore, resumableUploadsSize, resumableUploadsTimeToLive, TimeUnit.SECONDS);
 
-            FirestoreServices firestoreServices = new FirestoreServices(projectId, credentials);
-            StorageServices storageServices = new StorageServices(projectId, credentials);
-            ComputeServices computeServices = new ComputeServices(projectId, computeEngineCredentials, "us-central1-a");
+            ServerTransport transport = new ServerTransport(virtualThreads, epoll, bossThreads, workerThreads, flowControlWindow, maxInboundMessageSize, keepAliveSeconds, keepAliveTimeoutSeconds, permitKeepAliveSeconds);
 
-            CNTextServer server = new CNTextServer(port, firestoreServices, storageServices, computeServices);
+            CNTextServer server = new CNTextServer(port, submissionStore, storageServices, autoscalingController, publisherServices, sessionCache, sessionTokens, expirySweeper, freeLimits, premiumLimits, ioThreads, inboundWindow, deduplicationIndexSize, submissionBatchSize, resumableUploads, transport);
             server.start();
 
             server.shutdown(0);
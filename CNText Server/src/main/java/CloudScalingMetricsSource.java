@@ -0,0 +1,83 @@
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.monitoring.v3.MetricServiceClient;
+import com.google.cloud.monitoring.v3.MetricServiceSettings;
+import com.google.monitoring.v3.ListTimeSeriesRequest;
+import com.google.monitoring.v3.ProjectName;
+import com.google.monitoring.v3.TimeInterval;
+import com.google.monitoring.v3.TimeSeries;
+import com.google.protobuf.Timestamp;
+
+import java.io.IOException;
+
+public class CloudScalingMetricsSource implements ScalingMetricsSource
+{
+    private static final String BACKLOG_METRIC_TYPE = "pubsub.googleapis.com/subscription/num_undelivered_messages";
+    private static final String OLDEST_UNACKED_AGE_METRIC_TYPE = "pubsub.googleapis.com/subscription/oldest_unacked_message_age";
+
+    // Pub/Sub metrics are sampled every minute and show up a couple of minutes late.
+    private static final long LOOKBACK_SECONDS = 5 * 60L;
+
+    private final String projectId;
+    private final MetricServiceClient metricServiceClient;
+    private final SubmissionStore submissionStore;
+
+    public CloudScalingMetricsSource(String projectId, GoogleCredentials credentials, SubmissionStore submissionStore) throws IOException
+    {
+        this.projectId = projectId;
+        this.submissionStore = submissionStore;
+
+        MetricServiceSettings settings = MetricServiceSettings
+            .newBuilder()
+            .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
+            .build();
+
+        this.metricServiceClient = MetricServiceClient.create(settings);
+    }
+
+    @Override
+    public long getBacklog(String subscriptionId) {
+        return getLatestValue(BACKLOG_METRIC_TYPE, subscriptionId);
+    }
+
+    @Override
+    public long getOldestUnackedAgeSeconds(String subscriptionId) {
+        return getLatestValue(OLDEST_UNACKED_AGE_METRIC_TYPE, subscriptionId);
+    }
+
+    @Override
+    public long getInFlightSubmissions(String state) throws Exception {
+        return submissionStore.countSubmissions(state, "premium");
+    }
+
+    public void close() {
+        metricServiceClient.close();
+    }
+
+    private long getLatestValue(String metricType, String subscriptionId)
+    {
+        long now = System.currentTimeMillis() / 1000;
+
+        TimeInterval interval = TimeInterval
+            .newBuilder()
+            .setStartTime(Timestamp.newBuilder().setSeconds(now - LOOKBACK_SECONDS).build())
+            .setEndTime(Timestamp.newBuilder().setSeconds(now).build())
+            .build();
+
+        ListTimeSeriesRequest request = ListTimeSeriesRequest
+            .newBuilder()
+            .setName(ProjectName.of(projectId).toString())
+            .setFilter("metric.type = \"" + metricType + "\" AND resource.labels.subscription_id = \"" + subscriptionId + "\"")
+            .setInterval(interval)
+            .setView(ListTimeSeriesRequest.TimeSeriesView.FULL)
+            .build();
+
+        // Points come newest first, an idle subscription may have none in the interval.
+        for (TimeSeries timeSeries : metricServiceClient.listTimeSeries(request).iterateAll()) {
+            if (timeSeries.getPointsCount() > 0)
+                return timeSeries.getPoints(0).getValue().getInt64Value();
+        }
+
+        return 0L;
+    }
+}
\ No newline at end of file
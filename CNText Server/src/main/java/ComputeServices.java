@@ -6,16 +6,12 @@ import com.google.api.services.compute.Compute;
 import com.google.api.services.compute.model.Operation;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
-public class ComputeServices
+public class ComputeServices implements InstanceGroups
 {
-    private static final Logger logger = LogManager.getRootLogger();
-
     public static final String DEFAULT_PREMIUM_OCR_INSTANCE_GROUP_ID = "instance-group-premium-ocr";
     public static final String DEFAULT_PREMIUM_TRANSLATION_INSTANCE_GROUP_ID = "instance-group-premium-translation";
 
@@ -41,23 +37,41 @@ public class ComputeServices
             .build();
     }
 
-    public Operation.Error resizeInstanceGroup(String instanceGroupId, int newSize) throws IOException, InterruptedException
+    // The resize is a zone operation, polled until its status is DONE.
+    private class OperationResize implements Resize
     {
-        Compute.InstanceGroupManagers.Resize request = compute
-            .instanceGroupManagers()
-            .resize(projectId, zoneId, instanceGroupId, newSize);
+        private Operation operation;
+
+        private OperationResize(Operation operation) {
+            this.operation = operation;
+        }
 
-        try {
-            Operation.Error error = waitOperation(request.execute());
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            throw e;
+        @Override
+        public boolean isDone() throws IOException
+        {
+            operation = getOperation(operation);
+
+            return "DONE".equals(operation.getStatus());
+        }
+
+        @Override
+        public boolean hasFailed() {
+            return operation.getError() != null;
         }
+    }
 
-        return null;
+    @Override
+    public Resize startResize(String instanceGroupId, int newSize) throws IOException
+    {
+        Operation operation = compute
+            .instanceGroupManagers()
+            .resize(projectId, zoneId, instanceGroupId, newSize)
+            .execute();
+
+        return new OperationResize(operation);
     }
 
-    private Operation.Error waitOperation(Operation op) throws IOException, InterruptedException
+    private Operation getOperation(Operation op) throws IOException
     {
         String zone = op.getZone();
 
@@ -66,16 +80,21 @@ public class ComputeServices
             zone = bits[bits.length - 1];
         }
 
-        while (!op.getStatus().equals("DONE")) {
-            Thread.sleep(1000);
-
-            Compute.ZoneOperations.Get get = compute
-                .zoneOperations()
-                .get(projectId, zone, op.getName());
+        return compute
+            .zoneOperations()
+            .get(projectId, zone, op.getName())
+            .execute();
+    }
 
-            op = get.execute();
-        }
+    @Override
+    public int getSize(String instanceGroupId) throws IOException
+    {
+        Integer targetSize = compute
+            .instanceGroupManagers()
+            .get(projectId, zoneId, instanceGroupId)
+            .execute()
+            .getTargetSize();
 
-        return op.getError();
+        return targetSize == null ? 0 : targetSize;
     }
-}
+}
\ No newline at end of file
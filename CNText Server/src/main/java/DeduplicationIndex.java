@@ -0,0 +1,86 @@
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+public class DeduplicationIndex
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    // Counted for the whole process, which only has the one index.
+    private static final Counter hits = metrics.counter("cntext_dedup_hits_total", "Submissions answered with the result of an earlier one of the same image and language.");
+    private static final Counter misses = metrics.counter("cntext_dedup_misses_total", "Submissions without an earlier result of the same image and language.");
+
+    private final SubmissionStore submissionStore;
+    private final int maximumSize;
+
+    // Only completed results are cached, they never change once the translation module stored them.
+    private final LinkedHashMap<String, SubmissionStore.SubmissionInfo> results;
+
+    public DeduplicationIndex(SubmissionStore submissionStore, int maximumSize)
+    {
+        this.submissionStore = submissionStore;
+        this.maximumSize = maximumSize;
+
+        this.results = new LinkedHashMap<String, SubmissionStore.SubmissionInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SubmissionStore.SubmissionInfo> eldest) {
+                return size() > DeduplicationIndex.this.maximumSize;
+            }
+        };
+    }
+
+    public static String getKey(String imageHash, String translateTo) {
+        return imageHash + ":" + translateTo;
+    }
+
+    public SubmissionStore.SubmissionInfo get(String imageHash, String translateTo) throws ExecutionException, InterruptedException
+    {
+        String key = getKey(imageHash, translateTo);
+        SubmissionStore.SubmissionInfo result;
+
+        synchronized (results) {
+            result = results.get(key);
+        }
+
+        if (result == null)
+            result = submissionStore.getDeduplicatedResult(key);
+
+        if (result == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+
+        synchronized (results) {
+            results.put(key, result);
+        }
+
+        return result;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        int size;
+
+        synchronized (results) {
+            size = results.size();
+        }
+
+        return "DeduplicationIndex{size=" + size + "/" + maximumSize + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,340 @@
+import io.grpc.StatusException;
+import ipl.isel.cn.group2.store.KeyValueStore;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+// Keeps the same documents Firestore would in a key value store inside the process. State changes are compare and
+// set on the state field of a single document, so there are no transactions to retry under contention.
+public class EmbeddedSubmissionStore implements SubmissionStore
+{
+    public static final String TIMINGS_PREFIX = "timings.";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final KeyValueStore store;
+
+    private final long sessionTimeToLiveMillis;
+    private final long submissionTimeToLiveMillis;
+
+    public EmbeddedSubmissionStore(KeyValueStore store) {
+        this(store, DEFAULT_SESSION_TIME_TO_LIVE_SECONDS, DEFAULT_SUBMISSION_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public EmbeddedSubmissionStore(KeyValueStore store, long sessionTimeToLive, long submissionTimeToLive, TimeUnit unit)
+    {
+        this.store = store;
+        this.sessionTimeToLiveMillis = unit.toMillis(sessionTimeToLive);
+        this.submissionTimeToLiveMillis = unit.toMillis(submissionTimeToLive);
+    }
+
+    @Override
+    public SessionInfo storeSession(String username) throws StatusException, ExecutionException
+    {
+        String serviceLevel = getServiceLevel(username);
+        String sessionId = newId();
+
+        Map<String, String> create = new HashMap<>();
+        create.put("username", username);
+        create.put("expiresAt", expiresIn(sessionTimeToLiveMillis));
+
+        write(() -> store.put("sessions", sessionId, create));
+
+        return new SessionInfo(sessionId, username, serviceLevel);
+    }
+
+    @Override
+    public String getServiceLevel(String username) throws StatusException
+    {
+        if(username == null)
+            throw new UsernameException("empty");
+
+        if(username.isEmpty())
+            throw new UsernameException("missing");
+
+        Map<String, String> user = store.get("users", username);
+
+        if(user == null)
+            throw new AccountNotFoundException(username);
+
+        return user.get("serviceLevel");
+    }
+
+    @Override
+    public void storeUser(String username, String serviceLevel) throws ExecutionException
+    {
+        Map<String, String> create = new HashMap<>();
+        create.put("serviceLevel", serviceLevel);
+
+        write(() -> store.put("users", username, create));
+    }
+
+    @Override
+    public String storeSubmission(SessionInfo sessionInfo) throws ExecutionException
+    {
+        String submissionId = newId();
+
+        write(() -> store.put("submissions", submissionId, newSubmission(sessionInfo.getId(), sessionInfo.getServiceLevel(), "uploading", expiresIn(submissionTimeToLiveMillis))));
+
+        return submissionId;
+    }
+
+    @Override
+    public boolean enqueueSubmission(String submissionId) throws ExecutionException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "in progress");
+
+        return apply(() -> store.compareAndSet("submissions", submissionId, "state", "uploading", update));
+    }
+
+    @Override
+    public String newSubmissionId() {
+        return newId();
+    }
+
+    // Each submission is its own document, so there is nothing to gain from writing them together.
+    @Override
+    public void storeSubmissions(Map<String, SubmissionInfo> submissions) throws ExecutionException
+    {
+        final String expiresAt = expiresIn(submissionTimeToLiveMillis);
+
+        for (Map.Entry<String, SubmissionInfo> entry : submissions.entrySet()) {
+            SubmissionInfo submissionInfo = entry.getValue();
+            Map<String, String> create = newSubmission(submissionInfo.getSessionId(), submissionInfo.getServiceLevel(), submissionInfo.getState(), expiresAt);
+
+            if(submissionInfo.getTextTranslated() != null)
+                putResult(create, submissionInfo);
+
+            write(() -> store.put("submissions", entry.getKey(), create));
+        }
+    }
+
+    @Override
+    public SubmissionInfo getSubmissionInfo(SessionInfo sessionInfo, String submissionId) throws StatusException
+    {
+        if(submissionId == null)
+            throw new SubmissionException("empty");
+
+        if(submissionId.isEmpty())
+            throw new SubmissionException("missing");
+
+        Map<String, String> submission = store.get("submissions", submissionId);
+
+        if(submission == null || !sessionInfo.getId().equals(submission.get("sessionId")))
+            throw new SubmissionNotFoundException(submissionId);
+
+        return toSubmissionInfo(submission);
+    }
+
+    @Override
+    public SubmissionInfo getDeduplicatedResult(String key)
+    {
+        Map<String, String> result = store.get(DEDUPLICATION_COLLECTION_NAME, key);
+
+        return result == null || isExpired(result, System.currentTimeMillis()) ? null : toSubmissionInfo(result);
+    }
+
+    @Override
+    public void completeSubmission(String submissionId, SubmissionInfo result) throws ExecutionException
+    {
+        Map<String, String> update = new HashMap<>();
+        putResult(update, result);
+        update.put("state", "completed");
+
+        apply(() -> store.compareAndSet("submissions", submissionId, "state", "uploading", update));
+    }
+
+    @Override
+    public void failSubmission(String submissionId, String state, String error) throws ExecutionException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "error");
+        update.put("error", error);
+
+        apply(() -> store.compareAndSet("submissions", submissionId, "state", state, update));
+    }
+
+    @Override
+    public Registration listenSubmission(String submissionId, SubmissionListener listener)
+    {
+        KeyValueStore.Registration registration = store.listen("submissions", submissionId, submission ->
+            listener.onSubmissionInfo(submission == null ? null : toSubmissionInfo(submission))
+        );
+
+        return registration::remove;
+    }
+
+    @Override
+    public int countSubmissions(String state, String serviceLevel)
+    {
+        AtomicInteger count = new AtomicInteger();
+
+        store.forEach("submissions", (submissionId, submission) -> {
+            if(state.equals(submission.get("state")) && serviceLevel.equals(submission.get("serviceLevel")))
+                count.incrementAndGet();
+        });
+
+        return count.get();
+    }
+
+    @Override
+    public void closeSession(String sessionId) throws StatusException, ExecutionException
+    {
+        if(sessionId == null)
+            throw new SessionException("empty");
+
+        if(sessionId.isEmpty())
+            throw new SessionException("missing");
+
+        if(!apply(() -> store.delete("sessions", sessionId)))
+            throw new SessionNotFoundException(sessionId);
+    }
+
+    // Deletions need no batching here, so batchSize and parallelBatches are ignored.
+    @Override
+    public int deleteExpired(String collectionName, int limit, int batchSize, int parallelBatches) throws ExecutionException
+    {
+        final long now = System.currentTimeMillis();
+        final Predicate<Map<String, String>> expired = document -> isExpired(document, now);
+
+        List<String> found = new ArrayList<>();
+
+        store.forEach(collectionName, (key, document) -> {
+            if(found.size() < limit && expired.test(document))
+                found.add(key);
+        });
+
+        // A document renewed since it was found is left alone.
+        for (String key : found)
+            apply(() -> store.deleteIf(collectionName, key, expired));
+
+        return found.size();
+    }
+
+    @Override
+    public SessionInfo validateSession(String sessionId) throws StatusException
+    {
+        if(sessionId == null)
+            throw new SessionException("empty");
+
+        if(sessionId.isEmpty())
+            throw new SessionException("missing");
+
+        Map<String, String> session = store.get("sessions", sessionId);
+
+        if(session == null || isExpired(session, System.currentTimeMillis()))
+            throw new SessionNotFoundException(sessionId);
+
+        String username = session.get("username");
+        Map<String, String> user = store.get("users", username);
+
+        // A session whose account is gone is refused rather than carrying no service level.
+        if(user == null)
+            throw new AccountNotFoundException(username);
+
+        return new SessionInfo(sessionId, username, user.get("serviceLevel"));
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private interface Change {
+        boolean run() throws IOException;
+    }
+
+    // The log is the only thing that can fail, and it's reported the way a failed Firestore call would be.
+    private static void write(Write write) throws ExecutionException
+    {
+        try {
+            write.run();
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    private static boolean apply(Change change) throws ExecutionException
+    {
+        try {
+            return change.run();
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    // 20 characters, the same length as Firestore's own document ids.
+    private static String newId()
+    {
+        byte[] bytes = new byte[15];
+        random.nextBytes(bytes);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static Map<String, String> newSubmission(String sessionId, String serviceLevel, String state, String expiresAt)
+    {
+        Map<String, String> create = new HashMap<>();
+        create.put("sessionId", sessionId);
+        create.put("serviceLevel", serviceLevel.toLowerCase());
+        create.put("state", state);
+        create.put("expiresAt", expiresAt);
+
+        return create;
+    }
+
+    private static void putResult(Map<String, String> document, SubmissionInfo result)
+    {
+        document.put("text", result.getText());
+        document.put("textTranslated", result.getTextTranslated());
+        document.put("translatedFrom", result.getTranslatedFrom());
+        document.put("translatedTo", result.getTranslatedTo());
+    }
+
+    private static SubmissionInfo toSubmissionInfo(Map<String, String> document)
+    {
+        Map<String, Long> timings = null;
+
+        for (Map.Entry<String, String> field : document.entrySet()) {
+            if(!field.getKey().startsWith(TIMINGS_PREFIX))
+                continue;
+
+            if(timings == null)
+                timings = new HashMap<>();
+
+            timings.put(field.getKey().substring(TIMINGS_PREFIX.length()), Long.parseLong(field.getValue()));
+        }
+
+        return new SubmissionInfo(
+            document.get("sessionId"),
+            document.get("serviceLevel"),
+            document.get("state"),
+            document.get("error"),
+            document.get("text"),
+            document.get("textTranslated"),
+            document.get("translatedFrom"),
+            document.get("translatedTo"),
+            timings
+        );
+    }
+
+    private static String expiresIn(long millis) {
+        return String.valueOf(System.currentTimeMillis() + millis);
+    }
+
+    private static boolean isExpired(Map<String, String> document, long now)
+    {
+        String expiresAt = document.get("expiresAt");
+
+        return expiresAt != null && Long.parseLong(expiresAt) < now;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.Gauge;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExpirySweeper implements Runnable
+{
+    public static final int DEFAULT_DELETIONS_PER_SECOND = 500;
+    public static final int DEFAULT_PARALLEL_BATCHES = 4;
+    public static final long SWEEP_PERIOD_SECONDS = 1L;
+
+    private static final int BATCH_SIZE = 100;
+    private static final String[] COLLECTIONS = { "sessions", "submissions", SubmissionStore.DEDUPLICATION_COLLECTION_NAME };
+
+    private static final Logger logger = LogManager.getLogger(ExpirySweeper.class);
+
+    // Throughput is the rate of deletions over the rate of the time spent sweeping.
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter deletedDocuments = metrics.counter("cntext_expiry_deleted_total", "Expired sessions, submissions and deduplicated results deleted.");
+    private static final Histogram sweepTime = metrics.histogram("cntext_expiry_sweep_seconds", "Time of a sweep over the expired sessions, submissions and deduplicated results.");
+    private static final Gauge sweepBacklog = metrics.gauge("cntext_expiry_backlog", "Expired documents found by the last sweep, at the per sweep limit when more are waiting.");
+
+    private final SubmissionStore submissionStore;
+    private final int deletionsPerSweep;
+    private final int parallelBatches;
+
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong sweepNanos = new AtomicLong();
+
+    // Documents found expired by the last sweep. When it's equal to the per sweep limit there are probably more waiting.
+    private volatile int backlog = 0;
+
+    public ExpirySweeper(SubmissionStore submissionStore, int deletionsPerSecond, int parallelBatches)
+    {
+        this.submissionStore = submissionStore;
+        this.deletionsPerSweep = (int) Math.max(1, deletionsPerSecond * SWEEP_PERIOD_SECONDS / COLLECTIONS.length);
+        this.parallelBatches = Math.max(1, parallelBatches);
+    }
+
+    @Override
+    public void run()
+    {
+        long startedAt = System.nanoTime();
+        int found = 0;
+
+        for (String collectionName : COLLECTIONS) {
+            try {
+                int count = submissionStore.deleteExpired(collectionName, deletionsPerSweep, BATCH_SIZE, parallelBatches);
+
+                found += count;
+                deleted.addAndGet(count);
+                deletedDocuments.add(count);
+            } catch (Exception e) {
+                logger.error("Couldn't delete the expired documents of " + collectionName + ". " + e.getMessage());
+            }
+        }
+
+        backlog = found;
+        sweepBacklog.set(found);
+
+        sweepNanos.addAndGet(System.nanoTime() - startedAt);
+        sweepTime.recordSince(startedAt);
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public boolean isSaturated() {
+        return backlog >= deletionsPerSweep * COLLECTIONS.length;
+    }
+
+    // Deleted documents per second of time spent sweeping.
+    public long getThroughput()
+    {
+        long nanos = sweepNanos.get();
+
+        return nanos == 0 ? 0 : deleted.get() * 1_000_000_000L / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpirySweeper{deleted=" + getDeleted() + ", throughput=" + getThroughput() + "/s, backlog=" + getBacklog() + (isSaturated() ? "+" : "") + "}";
+    }
+}
\ No newline at end of file
@@ -1,110 +1,32 @@
+import com.google.api.core.ApiFuture;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
-import io.grpc.Status;
 import io.grpc.StatusException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-public class FirestoreServices
+public class FirestoreServices implements SubmissionStore
 {
-    public static class AccountNotFoundException extends StatusException {
-        public AccountNotFoundException(String username) {
-            super(Status.NOT_FOUND.withDescription("Account whose username is " + username + " doesn't seem to exist."));
-        }
-    }
-
-    public static class UsernameException extends StatusException {
-        public UsernameException(String status) {
-            super(Status.INVALID_ARGUMENT.withDescription("The username sent is " + status + "."));
-        }
-    }
-
-    public static class SessionNotFoundException extends StatusException {
-        public SessionNotFoundException(String sessionId) {
-            super(Status.NOT_FOUND.withDescription("There is no session whose id is " + sessionId));
-        }
-    }
-
-    public static class SessionException extends StatusException {
-        public SessionException(String status) {
-            super(Status.INVALID_ARGUMENT.withDescription("The session id sent is " + status + "."));
-        }
-    }
+    private final Firestore database;
 
-    public static class SubmissionNotFoundException extends StatusException {
-        public SubmissionNotFoundException(String submissionId) {
-            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
-        }
-    }
+    private final long sessionTimeToLiveMillis;
+    private final long submissionTimeToLiveMillis;
 
-    public static class SubmissionException extends StatusException {
-        public SubmissionException(String status) {
-            super(Status.INVALID_ARGUMENT.withDescription("The submission id sent is " + status + "."));
-        }
+    public FirestoreServices(String projectId, GoogleCredentials credentials) {
+        this(projectId, credentials, DEFAULT_SESSION_TIME_TO_LIVE_SECONDS, DEFAULT_SUBMISSION_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
     }
 
-    public static class SubmissionInfo
+    public FirestoreServices(String projectId, GoogleCredentials credentials, long sessionTimeToLive, long submissionTimeToLive, TimeUnit unit)
     {
-        private String sessionId;
-        private String state;
-        private String error;
-        private String text;
-        private String textTranslated;
-        private String translatedFrom;
-        private String translatedTo;
-
-        public SubmissionInfo() { }
-
-        public SubmissionInfo(
-            String sessionId,
-            String state,
-            String error,
-            String text,
-            String textTranslated,
-            String translatedFrom,
-            String translatedTo
-        ) {
-            this.sessionId = sessionId;
-            this.state = state;
-            this.error = error;
-            this.text = text;
-            this.textTranslated = textTranslated;
-            this.translatedFrom = translatedFrom;
-            this.translatedTo = translatedTo;
-        }
-
-        public String getSessionId() { return sessionId; }
+        this.sessionTimeToLiveMillis = unit.toMillis(sessionTimeToLive);
+        this.submissionTimeToLiveMillis = unit.toMillis(submissionTimeToLive);
 
-        public String getTranslatedTo() {
-            return translatedTo;
-        }
-
-        public String getTranslatedFrom() {
-            return translatedFrom;
-        }
-
-        public String getTextTranslated() {
-            return textTranslated;
-        }
-
-        public String getText() {
-            return text;
-        }
-
-        public String getState() {
-            return state;
-        }
-
-        public String getError() { return error; }
-    }
-
-    private final Firestore database;
-
-    public FirestoreServices(String projectId, GoogleCredentials credentials)
-    {
         FirestoreOptions options = FirestoreOptions
             .newBuilder()
             .setCredentials(credentials)
@@ -114,7 +36,8 @@ public class FirestoreServices
         database = options.getService();
     }
 
-    public String storeSession(String username) throws StatusException, ExecutionException, InterruptedException
+    @Override
+    public SessionInfo storeSession(String username) throws StatusException, ExecutionException, InterruptedException
     {
         if(username == null)
             throw new UsernameException("empty");
@@ -127,93 +50,244 @@ public class FirestoreServices
 
         Object result = database.runTransaction(transaction ->
             {
-                if(!transaction.get(userDocRef).get().exists())
+                DocumentSnapshot userDocSnap = transaction.get(userDocRef).get();
+
+                if(!userDocSnap.exists())
                     return new AccountNotFoundException(username);
 
-                Map<String, String> create = new HashMap<>();
+                Map<String, Object> create = new HashMap<>();
                 create.put("username", username);
+                create.put("expiresAt", expiresIn(sessionTimeToLiveMillis));
 
                 transaction.set(sessionDocRef, create);
 
-                return sessionDocRef.getId();
+                return new SessionInfo(sessionDocRef.getId(), username, userDocSnap.get("serviceLevel", String.class));
             }
         ).get();
 
         if(result instanceof StatusException)
             throw (StatusException) result;
 
-        return (String) result;
+        return (SessionInfo) result;
     }
 
-    public String storeSubmission(String sessionId) throws StatusException, ExecutionException, InterruptedException
+    @Override
+    public String getServiceLevel(String username) throws StatusException, ExecutionException, InterruptedException
     {
-        if(sessionId == null)
-            throw new SessionException("empty");
+        if(username == null)
+            throw new UsernameException("empty");
 
-        if(sessionId.isEmpty())
-            throw new SessionException("missing");
+        if(username.isEmpty())
+            throw new UsernameException("missing");
 
-        final DocumentReference sessionDocRef = database.collection("sessions").document(sessionId);
+        DocumentSnapshot userDocSnap = database.collection("users").document(username).get().get();
+
+        if(!userDocSnap.exists())
+            throw new AccountNotFoundException(username);
+
+        return userDocSnap.get("serviceLevel", String.class);
+    }
+
+    @Override
+    public void storeUser(String username, String serviceLevel) throws ExecutionException, InterruptedException
+    {
+        Map<String, Object> create = new HashMap<>();
+        create.put("serviceLevel", serviceLevel);
+
+        database.collection("users").document(username).set(create).get();
+    }
+
+    @Override
+    public String storeSubmission(SessionInfo sessionInfo) throws ExecutionException, InterruptedException
+    {
+        // The session was already validated by the caller, so the submission is created without a transaction.
         final DocumentReference submissionDocRef = database.collection("submissions").document();
 
-        Object result = database.runTransaction(transaction ->
+        Map<String, Object> create = new HashMap<>();
+        create.put("sessionId", sessionInfo.getId());
+        create.put("serviceLevel", sessionInfo.getServiceLevel().toLowerCase());
+        create.put("state", "uploading");
+        create.put("expiresAt", expiresIn(submissionTimeToLiveMillis));
+
+        submissionDocRef.set(create).get();
+
+        return submissionDocRef.getId();
+    }
+
+    @Override
+    public boolean enqueueSubmission(String submissionId) throws ExecutionException, InterruptedException
+    {
+        final DocumentReference submissionDocRef = database.collection("submissions").document(submissionId);
+
+        return database.runTransaction(transaction ->
             {
-                if(!transaction.get(sessionDocRef).get().exists())
-                    return new SessionNotFoundException(sessionId);
+                DocumentSnapshot submissionDocSnap = transaction.get(submissionDocRef).get();
+
+                if(!submissionDocSnap.exists() || !"uploading".equals(submissionDocSnap.get("state", String.class)))
+                    return false;
 
-                Map<String, String> create = new HashMap<>();
-                create.put("sessionId", sessionId);
-                create.put("state", "in progress");
+                Map<String, Object> update = new HashMap<>();
+                update.put("state", "in progress");
 
-                transaction.set(submissionDocRef, create);
+                transaction.update(submissionDocRef, update);
 
-                return submissionDocRef.getId();
+                return true;
             }
         ).get();
+    }
 
-        if(result instanceof StatusException)
-            throw (StatusException) result;
-
-        return (String) result;
+    @Override
+    public String newSubmissionId() {
+        return database.collection("submissions").document().getId();
     }
 
-    public SubmissionInfo getSubmissionInfo(String sessionId, String submissionId) throws StatusException, ExecutionException, InterruptedException
+    // Creates every submission with a single batched write, keyed by ids taken from newSubmissionId.
+    @Override
+    public void storeSubmissions(Map<String, SubmissionInfo> submissions) throws ExecutionException, InterruptedException
     {
-        if(sessionId == null)
-            throw new SessionException("empty");
+        final CollectionReference collectionRef = database.collection("submissions");
+        final Timestamp expiresAt = expiresIn(submissionTimeToLiveMillis);
+        WriteBatch batch = database.batch();
+
+        for (Map.Entry<String, SubmissionInfo> entry : submissions.entrySet()) {
+            SubmissionInfo submissionInfo = entry.getValue();
+
+            Map<String, Object> create = new HashMap<>();
+            create.put("sessionId", submissionInfo.getSessionId());
+            create.put("serviceLevel", submissionInfo.getServiceLevel().toLowerCase());
+            create.put("state", submissionInfo.getState());
+            create.put("expiresAt", expiresAt);
+
+            if(submissionInfo.getTextTranslated() != null) {
+                create.put("text", submissionInfo.getText());
+                create.put("textTranslated", submissionInfo.getTextTranslated());
+                create.put("translatedFrom", submissionInfo.getTranslatedFrom());
+                create.put("translatedTo", submissionInfo.getTranslatedTo());
+            }
 
-        if(sessionId.isEmpty())
-            throw new SessionException("missing");
+            batch.set(collectionRef.document(entry.getKey()), create);
+        }
 
+        batch.commit().get();
+    }
+
+    @Override
+    public SubmissionInfo getSubmissionInfo(SessionInfo sessionInfo, String submissionId) throws StatusException, ExecutionException, InterruptedException
+    {
         if(submissionId == null)
             throw new SubmissionException("empty");
 
         if(submissionId.isEmpty())
             throw new SubmissionException("missing");
 
-        final DocumentReference sessionDocRef = database.collection("sessions").document(sessionId);
+        // The session was already validated by the caller, so a single read of the submission is enough.
+        DocumentSnapshot submissionDocSnap = database.collection("submissions").document(submissionId).get().get();
+
+        if(!submissionDocSnap.exists())
+            throw new SubmissionNotFoundException(submissionId);
+
+        SubmissionInfo submissionInfo = submissionDocSnap.toObject(SubmissionInfo.class);
+
+        if(!sessionInfo.getId().equals(submissionInfo.getSessionId()))
+            throw new SubmissionNotFoundException(submissionId);
+
+        return submissionInfo;
+    }
+
+    @Override
+    public SubmissionInfo getDeduplicatedResult(String key) throws ExecutionException, InterruptedException
+    {
+        DocumentSnapshot resultDocSnap = database.collection(DEDUPLICATION_COLLECTION_NAME).document(key).get().get();
+
+        if(!resultDocSnap.exists() || isExpired(resultDocSnap))
+            return null;
+
+        return resultDocSnap.toObject(SubmissionInfo.class);
+    }
+
+    // Read and written in one transaction, so a submission that moved on in the meantime is left as it is.
+    @Override
+    public void completeSubmission(String submissionId, SubmissionInfo result) throws ExecutionException, InterruptedException
+    {
         final DocumentReference submissionDocRef = database.collection("submissions").document(submissionId);
 
-        Object result = database.runTransaction(transaction ->
+        database.runTransaction(transaction ->
             {
-                if(!transaction.get(sessionDocRef).get().exists())
-                    return new SessionNotFoundException(sessionId);
+                DocumentSnapshot submissionDocSnap = transaction.get(submissionDocRef).get();
+
+                if(!submissionDocSnap.exists() || !"uploading".equals(submissionDocSnap.get("state", String.class)))
+                    return null;
+
+                Map<String, Object> update = new HashMap<>();
+                update.put("text", result.getText());
+                update.put("textTranslated", result.getTextTranslated());
+                update.put("translatedFrom", result.getTranslatedFrom());
+                update.put("translatedTo", result.getTranslatedTo());
+                update.put("state", "completed");
+
+                transaction.update(submissionDocRef, update);
+
+                return null;
+            }
+        ).get();
+    }
+
+    @Override
+    public void failSubmission(String submissionId, String state, String error) throws ExecutionException, InterruptedException
+    {
+        final DocumentReference submissionDocRef = database.collection("submissions").document(submissionId);
 
+        database.runTransaction(transaction ->
+            {
                 DocumentSnapshot submissionDocSnap = transaction.get(submissionDocRef).get();
 
-                if(!submissionDocSnap.exists())
-                    return new SubmissionNotFoundException(submissionId);
+                if(!submissionDocSnap.exists() || !state.equals(submissionDocSnap.get("state", String.class)))
+                    return null;
+
+                Map<String, Object> update = new HashMap<>();
+                update.put("state", "error");
+                update.put("error", error);
 
-                return submissionDocSnap.toObject(SubmissionInfo.class);
+                transaction.update(submissionDocRef, update);
+
+                return null;
             }
         ).get();
+    }
 
-        if(result instanceof StatusException)
-            throw (StatusException) result;
+    @Override
+    public Registration listenSubmission(String submissionId, SubmissionListener listener)
+    {
+        final DocumentReference submissionDocRef = database.collection("submissions").document(submissionId);
+
+        ListenerRegistration registration = submissionDocRef.addSnapshotListener((submissionDocSnap, error) ->
+            {
+                if(error != null)
+                    listener.onError(error);
+                else if(submissionDocSnap == null || !submissionDocSnap.exists())
+                    listener.onSubmissionInfo(null);
+                else
+                    listener.onSubmissionInfo(submissionDocSnap.toObject(SubmissionInfo.class));
+            }
+        );
+
+        return registration::remove;
+    }
+
+    // Only document names are read, the submissions in a state are counted without transferring their contents.
+    @Override
+    public int countSubmissions(String state, String serviceLevel) throws ExecutionException, InterruptedException
+    {
+        final Query query = database
+            .collection("submissions")
+            .whereEqualTo("state", state)
+            .whereEqualTo("serviceLevel", serviceLevel)
+            .select();
 
-        return (SubmissionInfo) result;
+        return query.get().get().size();
     }
 
+    @Override
     public void closeSession(String sessionId) throws StatusException, ExecutionException, InterruptedException
     {
         if(sessionId == null)
@@ -239,55 +313,42 @@ public class FirestoreServices
             throw result;
     }
 
-    public void closeSessions() throws ExecutionException, InterruptedException
+    // Deletes up to limit documents whose expiresAt already passed, committing at most parallelBatches batches at a time.
+    @Override
+    public int deleteExpired(String collectionName, int limit, int batchSize, int parallelBatches) throws ExecutionException, InterruptedException
     {
-        final CollectionReference collectionRef = database.collection("sessions");
+        final Query query = database
+            .collection(collectionName)
+            .whereLessThan("expiresAt", Timestamp.now())
+            .limit(limit);
 
-        int deleted = 0;
+        List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+        List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
 
-        do {
-            deleted = database.runTransaction(transaction ->
-                {
-                    List<QueryDocumentSnapshot> documents = transaction.get(collectionRef.limit(25)).get().getDocuments();
+        for (int start = 0; start < documents.size(); start += batchSize) {
+            WriteBatch batch = database.batch();
 
-                    int temp = 0;
+            for (QueryDocumentSnapshot document : documents.subList(start, Math.min(start + batchSize, documents.size())))
+                batch.delete(document.getReference());
 
-                    for (QueryDocumentSnapshot document : documents) {
-                        document.getReference().delete();
-                        ++temp;
-                    }
+            commits.add(batch.commit());
 
-                    return temp;
-                }
-            ).get();
-        } while(deleted >= 25);
-    }
-
-    public void deleteSubmissions() throws ExecutionException, InterruptedException
-    {
-        final CollectionReference collectionRef = database.collection("submissions");
-
-        int deleted = 0;
+            if (commits.size() >= parallelBatches) {
+                for (ApiFuture<List<WriteResult>> commit : commits)
+                    commit.get();
 
-        do {
-            deleted = database.runTransaction(transaction ->
-                {
-                    List<QueryDocumentSnapshot> documents = transaction.get(collectionRef.limit(25)).get().getDocuments();
-
-                    int temp = 0;
+                commits.clear();
+            }
+        }
 
-                    for (QueryDocumentSnapshot document : documents) {
-                        document.getReference().delete();
-                        ++temp;
-                    }
+        for (ApiFuture<List<WriteResult>> commit : commits)
+            commit.get();
 
-                    return temp;
-                }
-            ).get();
-        } while(deleted >= 25);
+        return documents.size();
     }
 
-    public String validateSession(String sessionId) throws StatusException, ExecutionException, InterruptedException
+    @Override
+    public SessionInfo validateSession(String sessionId) throws StatusException, ExecutionException, InterruptedException
     {
         if(sessionId == null)
             throw new SessionException("empty");
@@ -302,20 +363,36 @@ public class FirestoreServices
             {
                 DocumentSnapshot sessionDocSnap = transaction.get(sessionDocRef).get();
 
-                if(!sessionDocSnap.exists())
+                if(!sessionDocSnap.exists() || isExpired(sessionDocSnap))
                     return new SessionNotFoundException(sessionId);
 
                 String username = sessionDocSnap.get("username", String.class);
 
                 final DocumentReference userDocRef = usersCollectionRef.document(username);
 
-                return transaction.get(userDocRef).get().get("serviceLevel", String.class);
+                DocumentSnapshot userDocSnap = transaction.get(userDocRef).get();
+
+                if(!userDocSnap.exists())
+                    return new AccountNotFoundException(username);
+
+                return new SessionInfo(sessionId, username, userDocSnap.get("serviceLevel", String.class));
             }
         ).get();
 
         if(result instanceof StatusException)
             throw (StatusException) result;
 
-        return (String) result;
+        return (SessionInfo) result;
+    }
+
+    private static Timestamp expiresIn(long millis) {
+        return Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + millis) * 1000);
+    }
+
+    private static boolean isExpired(DocumentSnapshot documentSnapshot)
+    {
+        Timestamp expiresAt = documentSnapshot.getTimestamp("expiresAt");
+
+        return expiresAt != null && expiresAt.compareTo(Timestamp.now()) < 0;
     }
 }
\ No newline at end of file
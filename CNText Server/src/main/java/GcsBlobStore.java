@@ -0,0 +1,36 @@
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import java.nio.channels.WritableByteChannel;
+
+public class GcsBlobStore implements BlobStore
+{
+    private final Storage storage;
+
+    public GcsBlobStore(String projectId, GoogleCredentials credentials) {
+        this.storage = StorageOptions
+            .newBuilder()
+            .setProjectId(projectId)
+            .setCredentials(credentials)
+            .build()
+            .getService();
+    }
+
+    @Override
+    public void storeImage(BlobInfo imageInfo, byte[] image, int length) {
+        storage.create(imageInfo, image, 0, length);
+    }
+
+    // Resumable uploads only commit the object when the channel is closed.
+    @Override
+    public WritableByteChannel openWriter(BlobInfo imageInfo, int chunkSize)
+    {
+        WriteChannel channel = storage.writer(imageInfo);
+        channel.setChunkSize(chunkSize);
+
+        return channel;
+    }
+}
\ No newline at end of file
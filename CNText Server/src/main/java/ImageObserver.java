@@ -1,29 +1,50 @@
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.cloud.storage.BlobInfo;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
-import com.google.pubsub.v1.TopicName;
 import io.grpc.Status;
 import io.grpc.StatusException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import ipl.isel.cn.group2.contract.Image;
 import ipl.isel.cn.group2.contract.Image.Metadata;
 import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import ipl.isel.cn.group2.metrics.StageTimings;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageObserver implements StreamObserver<Image>
 {
-    public static volatile AtomicInteger numberOfPremiumSessions = new AtomicInteger();
+    public static final int DEFAULT_INBOUND_WINDOW = 4;
 
-    final private StreamObserver<Submission> responseObserver;
+    private static final String UNFINISHED_UPLOAD_ERROR = "The upload of the image didn't finish.";
+    private static final String UNPUBLISHED_ERROR = "The image couldn't be queued for text detection.";
 
-    final private FirestoreServices firestoreServices;
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    final private ServerCallStreamObserver<Submission> responseObserver;
+
+    final private SubmissionStore submissionStore;
     final private StorageServices storageServices;
+    final private SessionResolver sessionResolver;
+    final private PublisherServices publisherServices;
+    final private DeduplicationIndex deduplicationIndex;
+    final private ResumableUploads resumableUploads;
+    final private Executor ioExecutor;
 
-    private StorageServices.ChunkingServices chunkingServices;
-    private PublisherServices publisherServices;
+    private ImageUpload upload;
+    private String topicId;
 
     private Submission submission;
     private Metadata metadata;
@@ -31,101 +52,325 @@ public class ImageObserver implements StreamObserver<Image>
 
     private final String bucketId;
 
-    private long readBytes = 0L;
+    private String imageHash;
+    private boolean deduplicated = false;
+    private long uploadStartedAt;
+
+    // Set when the upload can be resumed by a later stream, until it starts being committed.
+    private String sessionId;
+    private String uploadId;
+    private boolean committing = false;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    // An enqueued submission counts as work for the workers, once its message is published it's theirs to move on.
+    private volatile boolean enqueued = false;
+    private volatile boolean published = false;
+
+    // Every message is handled by a stage chained to the previous one, so they run in order on the I/O executor.
+    private CompletableFuture<Void> pipeline;
+    private final AtomicBoolean finished = new AtomicBoolean();
 
     private static final Logger logger = LogManager.getLogger(ImageObserver.class);
 
+    static final Histogram uploadServiceTime = StageTimings.serviceTime(MetricsRegistry.getDefault(), "upload");
+
     public ImageObserver(
         StreamObserver<Submission> responseObserver,
-        FirestoreServices firestoreServices,
+        SubmissionStore submissionStore,
         StorageServices storageServices,
+        SessionResolver sessionResolver,
+        PublisherServices publisherServices,
+        DeduplicationIndex deduplicationIndex,
+        ResumableUploads resumableUploads,
+        Executor ioExecutor,
+        int inboundWindow,
         String bucketId
     ) {
-        this.responseObserver = responseObserver;
-        this.firestoreServices = firestoreServices;
+        this.responseObserver = (ServerCallStreamObserver<Submission>) responseObserver;
+        this.submissionStore = submissionStore;
         this.storageServices = storageServices;
+        this.sessionResolver = sessionResolver;
+        this.publisherServices = publisherServices;
+        this.deduplicationIndex = deduplicationIndex;
+        this.resumableUploads = resumableUploads;
+        this.ioExecutor = ioExecutor;
         this.bucketId = bucketId;
+
+        // At most inboundWindow messages are buffered, a slow backend throttles the client instead of filling the heap.
+        this.responseObserver.disableAutoInboundFlowControl();
+        this.responseObserver.request(inboundWindow);
     }
 
     @Override
     public void onNext(Image image)
     {
-        try {
-            if (image.hasMetadata()) {
-                metadata = image.getMetadata();
+        if (finished.get())
+            return;
+
+        if (image.hasMetadata()) {
+            metadata = image.getMetadata();
+            uploadStartedAt = System.currentTimeMillis();
+            pipeline = CompletableFuture.runAsync(run(this::createSubmission), ioExecutor);
+        }
+
+        else if (pipeline == null) {
+            fail(Status.INVALID_ARGUMENT.withDescription("The image metadata must be sent before any chunk.").asException());
+            return;
+        }
+
+        else if (image.hasCheckedChunk()) {
+            Image.Chunk chunk = image.getCheckedChunk();
+            pipeline = pipeline.thenRunAsync(run(() -> upload.write(chunk.getOffset(), chunk.getData(), chunk.getChecksum())), ioExecutor);
+        }
 
-                String sessionId = metadata.getSession().getId();
+        else {
+            ByteString chunk = image.getChunk();
+            pipeline = pipeline.thenRunAsync(run(() -> storeImageChunk(chunk)), ioExecutor);
+        }
+
+        pipeline.whenComplete((result, throwable) -> {
+            if (throwable == null)
+                responseObserver.request(1);
+            else
+                fail(throwable);
+        });
+    }
 
-                String imageName = metadata.getName();
-                String imageExtension = "." + imageName.split("\\.")[1];
+    private void createSubmission() throws Exception
+    {
+        String sessionId = metadata.getSession().getId();
 
-                String serviceLevel = firestoreServices.validateSession(sessionId);
+        String imageName = metadata.getName();
+        String imageExtension = "." + imageName.split("\\.")[1];
 
-                if(serviceLevel.compareToIgnoreCase("premium") == 0)
-                    numberOfPremiumSessions.incrementAndGet();
+        SubmissionStore.SessionInfo sessionInfo = sessionResolver.resolve(sessionId);
 
-                String submissionId = firestoreServices.storeSubmission(sessionId);
+        if (!metadata.getUploadId().isEmpty() && resumeUpload(sessionInfo.getId(), metadata.getUploadId()))
+            return;
 
-                blobInfo = BlobInfo
-                    .newBuilder(bucketId, submissionId + imageExtension)
-                    .build();
+        String serviceLevel = sessionInfo.getServiceLevel();
 
-                TopicName topicName = TopicName.newBuilder()
-                    .setProject(storageServices.getProjectId())
-                    .setTopic(serviceLevel + "-ocr")
-                    .build();
+        if(serviceLevel.compareToIgnoreCase("premium") == 0)
+            topicId = PublisherServices.PREMIUM_OCR_TOPIC_ID;
+        else
+            topicId = PublisherServices.FREE_OCR_TOPIC_ID;
 
-                publisherServices = new PublisherServices(topicName);
-                submission = Submission.newBuilder().setId(submissionId).build();
-            }
+        String submissionId = submissionStore.storeSubmission(sessionInfo);
 
-            else
-            {
-                ByteString chunk = image.getChunk();
-
-                if (metadata.getSize() <= 1_000_000)
-                    storageServices.storeImage(blobInfo, chunk);
-                else {
-                    if (readBytes == 0L)
-                        chunkingServices = storageServices.getChunkingServices(blobInfo);
-                    else {
-                        chunkingServices.storeImageChunk(chunk);
-                        readBytes += chunk.size();
-
-                        if (readBytes == metadata.getSize())
-                            chunkingServices.closeChannel();
-                    }
-                }
-            }
-        } catch (Exception ex) {
-            logger.error(ex.getMessage());
-            responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
+        blobInfo = BlobInfo
+            .newBuilder(bucketId, submissionId + imageExtension)
+            .build();
+
+        submission = Submission.newBuilder().setId(submissionId).build();
+
+        upload = new ImageUpload(storageServices, blobInfo, metadata.getSize());
+
+        if (!metadata.getUploadId().isEmpty() && resumableUploads.register(sessionInfo.getId(), metadata.getUploadId(), new ResumableUploads.PendingUpload(submission, topicId, upload, uploadStartedAt))) {
+            this.sessionId = sessionInfo.getId();
+            this.uploadId = metadata.getUploadId();
+        }
+    }
+
+    // The submission, its blob and the bytes already stored are the ones of the stream that broke, everything else is
+    // taken from the metadata sent again.
+    private boolean resumeUpload(String sessionId, String uploadId) throws StatusException
+    {
+        ResumableUploads.PendingUpload pending = resumableUploads.attach(sessionId, uploadId, metadata.getSize());
+
+        if (pending == null)
+            return false;
+
+        this.sessionId = sessionId;
+        this.uploadId = uploadId;
+
+        submission = pending.getSubmission();
+        topicId = pending.getTopicId();
+        upload = pending.getUpload();
+        blobInfo = upload.getBlobInfo();
+        uploadStartedAt = pending.getUploadStartedAt();
+
+        logger.info("Upload " + uploadId + " of " + metadata.getName() + " resumed from byte " + upload.getStatus().getCommittedBytes() + ", submission " + submission.getId() + ".");
+
+        return true;
+    }
+
+    private void storeImageChunk(ByteString chunk) throws Exception {
+        upload.write(chunk);
+    }
+
+    private void finishUpload() throws Exception
+    {
+        imageHash = upload.finish();
+
+        committing = true;
+
+        if (uploadId != null)
+            resumableUploads.remove(sessionId, uploadId);
+
+        SubmissionStore.SubmissionInfo result = deduplicationIndex.get(imageHash, metadata.getTranslateTo());
+
+        if (result != null) {
+            // The same image was already translated to the same language, so the upload is never committed.
+            upload.abort();
+
+            submissionStore.completeSubmission(submission.getId(), result);
+            deduplicated = true;
+
+            logger.info("Image " + metadata.getName() + " is a duplicate of " + imageHash + ", submission " + submission.getId() + " completed from the stored result.");
+            return;
         }
+
+        upload.commit();
     }
 
     @Override
-    public void onError(Throwable throwable) {
+    public void onError(Throwable throwable)
+    {
         StatusException ex = Status.fromThrowable(throwable).asException();
         logger.error(ex.getMessage());
+
+        if (pipeline == null) {
+            finished.set(true);
+            return;
+        }
+
+        // The chunks of a resumable upload already received are still stored, so a new stream needn't send them again.
+        if (metadata.getUploadId().isEmpty())
+            finished.set(true);
+
+        pipeline.whenComplete((result, failure) -> {
+            finished.set(true);
+            release();
+        });
     }
 
     @Override
     public void onCompleted()
     {
-        try {
-            HashMap<String, String> attributes = new HashMap<>();
-            attributes.put("submissionId", submission.getId());
-            attributes.put("to", metadata.getTranslateTo());
+        if (pipeline == null) {
+            fail(Status.INVALID_ARGUMENT.withDescription("No image was sent.").asException());
+            return;
+        }
 
-            logger.info("Image " + metadata.getName() + " received successfully. It's stored in the Google Cloud Storage as " + blobInfo.getBucket() + "/" + blobInfo.getName());
+        pipeline
+            .thenRunAsync(run(this::finishUpload), ioExecutor)
+            .thenRunAsync(run(this::publishSubmission), ioExecutor)
+            .exceptionally(throwable -> {
+                fail(throwable);
+                return null;
+            });
+    }
 
-            publisherServices.publish(blobInfo.getName(), attributes);
+    private void publishSubmission() throws Exception
+    {
+        if (deduplicated) {
+            if (finished.compareAndSet(false, true)) {
+                responseObserver.onNext(submission);
+                responseObserver.onCompleted();
+            }
 
-            responseObserver.onNext(submission);
-            responseObserver.onCompleted();
-        } catch (Exception ex) {
-            logger.error(ex.getMessage());
-            responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asException());
+            return;
         }
+
+        if (!submissionStore.enqueueSubmission(submission.getId()))
+            throw Status.ABORTED.withDescription("Submission " + submission.getId() + " is no longer waiting on its upload.").asException();
+
+        enqueued = true;
+
+        HashMap<String, String> attributes = new HashMap<>();
+        attributes.put("submissionId", submission.getId());
+        attributes.put("to", metadata.getTranslateTo());
+        attributes.put("hash", imageHash);
+
+        long enqueuedAt = System.currentTimeMillis();
+        attributes.put(StageTimings.UPLOAD_STARTED_AT, String.valueOf(uploadStartedAt));
+        attributes.put(StageTimings.OCR_ENQUEUED_AT, String.valueOf(enqueuedAt));
+        StageTimings.recordInterval(uploadServiceTime, uploadStartedAt, enqueuedAt);
+
+        logger.info("Image " + metadata.getName() + " received successfully. It's stored in the Google Cloud Storage as " + blobInfo.getBucket() + "/" + blobInfo.getName());
+
+        ApiFutureCallback<String> callback = new ApiFutureCallback<String>() {
+            @Override
+            public void onSuccess(String messageId) {
+                published = true;
+
+                if (finished.compareAndSet(false, true)) {
+                    responseObserver.onNext(submission);
+                    responseObserver.onCompleted();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                fail(throwable);
+            }
+        };
+
+        ApiFutures.addCallback(publisherServices.publish(topicId, blobInfo.getName(), attributes), callback, MoreExecutors.directExecutor());
+    }
+
+    private void fail(Throwable throwable)
+    {
+        if (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
+
+        if (!finished.compareAndSet(false, true))
+            return;
+
+        release();
+
+        logger.error(throwable.getMessage());
+
+        if (throwable instanceof StatusException)
+            responseObserver.onError(throwable);
+        else
+            responseObserver.onError(Status.INTERNAL.withDescription(throwable.getMessage()).asException());
+    }
+
+    // A resumable upload that broke before it was committed is kept for a new stream to go on with, any other is dropped
+    // along with its submission, which nothing else would ever move on.
+    private void release()
+    {
+        if (submission == null || !released.compareAndSet(false, true))
+            return;
+
+        if (uploadId != null && !committing) {
+            resumableUploads.detach(sessionId, uploadId);
+            return;
+        }
+
+        if (upload != null)
+            upload.abort();
+
+        if (published || deduplicated)
+            return;
+
+        if (enqueued)
+            failSubmission("in progress", UNPUBLISHED_ERROR);
+        else
+            failSubmission("uploading", UNFINISHED_UPLOAD_ERROR);
+    }
+
+    private void failSubmission(String state, String error)
+    {
+        try {
+            submissionStore.failSubmission(submission.getId(), state, error);
+        } catch (Exception e) {
+            logger.error("Couldn't fail submission " + submission.getId() + ". " + e.getMessage());
+        }
+    }
+
+    private Runnable run(Task task)
+    {
+        return () -> {
+            if (finished.get())
+                throw new CompletionException(Status.CANCELLED.withDescription("The upload was cancelled.").asException());
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
     }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+import com.google.cloud.storage.BlobInfo;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import ipl.isel.cn.group2.contract.UploadStatus;
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+public class ImageUpload
+{
+    private static final Logger logger = LogManager.getLogger(ImageUpload.class);
+
+    private static final Counter uploadedBytes = MetricsRegistry.getDefault().counter("cntext_upload_bytes_total", "Image bytes uploaded to storage.");
+    private static final Histogram aggregatedUploadTime = MetricsRegistry.getDefault().histogram("cntext_upload_seconds", "Time from the metadata of an image until it's stored.", "mode", "aggregated");
+    private static final Histogram streamedUploadTime = MetricsRegistry.getDefault().histogram("cntext_upload_seconds", "Time from the metadata of an image until it's stored.", "mode", "streamed");
+
+    private final StorageServices storageServices;
+    private final BlobInfo blobInfo;
+    private final long size;
+
+    // Images up to the aggregation threshold are gathered here and uploaded at once, larger ones are streamed.
+    private byte[] buffer;
+    private StorageServices.ChunkingServices chunkingServices;
+
+    private final MessageDigest digest;
+    private final CRC32 checksum = new CRC32();
+    private final long startedAt = System.nanoTime();
+
+    // Guarded by this, since the status of a pending upload is read outside the stream writing it.
+    private long receivedBytes = 0L;
+    private int receivedChecksum = 0;
+    private boolean damaged = false;
+
+    public ImageUpload(StorageServices storageServices, BlobInfo blobInfo, long size) throws IOException
+    {
+        this.storageServices = storageServices;
+        this.blobInfo = blobInfo;
+        this.size = size;
+
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (size <= storageServices.getAggregationThreshold())
+            buffer = storageServices.acquireBuffer();
+        else
+            chunkingServices = storageServices.getChunkingServices(blobInfo);
+    }
+
+    public void write(ByteString chunk) throws StatusException, IOException
+    {
+        if (receivedBytes + chunk.size() > size)
+            throw Status.INVALID_ARGUMENT.withDescription("The image is larger than the " + size + " bytes declared.").asException();
+
+        checksum.update(chunk.asReadOnlyByteBuffer());
+        store(chunk);
+    }
+
+    // A chunk sent again after a stream broke may overlap bytes already stored, the overlap is skipped. Its checksum
+    // covers every byte of the image up to its end, so one that disagrees with what was stored is refused.
+    public void write(long offset, ByteString chunk, int expectedChecksum) throws StatusException, IOException
+    {
+        long end = offset + chunk.size();
+
+        if (offset < 0 || offset > receivedBytes)
+            throw Status.OUT_OF_RANGE.withDescription("The chunk starts at byte " + offset + " but " + receivedBytes + " bytes were received.").asException();
+
+        if (end > size)
+            throw Status.INVALID_ARGUMENT.withDescription("The image is larger than the " + size + " bytes declared.").asException();
+
+        if (end <= receivedBytes)
+            return;
+
+        ByteString remaining = chunk.substring((int) (receivedBytes - offset));
+        checksum.update(remaining.asReadOnlyByteBuffer());
+
+        // The running checksum can't be taken back, so the upload can't go on past a chunk that was refused.
+        if ((int) checksum.getValue() != expectedChecksum) {
+            synchronized (this) {
+                damaged = true;
+            }
+
+            throw Status.DATA_LOSS.withDescription("The checksum of the image up to byte " + end + " doesn't match.").asException();
+        }
+
+        store(remaining);
+    }
+
+    private void store(ByteString chunk) throws IOException
+    {
+        digest.update(chunk.asReadOnlyByteBuffer());
+
+        if (buffer != null)
+            chunk.copyTo(buffer, (int) receivedBytes);
+        else
+            chunkingServices.storeImageChunk(chunk);
+
+        synchronized (this) {
+            receivedBytes += chunk.size();
+            receivedChecksum = (int) checksum.getValue();
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return receivedBytes == size;
+    }
+
+    // Whether a new stream can go on from the bytes received so far.
+    public synchronized boolean isResumable() {
+        return !damaged && (buffer != null || chunkingServices != null && chunkingServices.isWritable());
+    }
+
+    public synchronized UploadStatus getStatus()
+    {
+        return UploadStatus
+            .newBuilder()
+            .setCommittedBytes(receivedBytes)
+            .setChecksum(receivedChecksum)
+            .setSize(size)
+            .build();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // Checks every declared byte was received and returns the hex encoded SHA-256 of the image.
+    public String finish() throws StatusException
+    {
+        if (receivedBytes != size)
+            throw Status.INVALID_ARGUMENT.withDescription("The image has " + receivedBytes + " bytes but " + size + " were declared.").asException();
+
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+
+        for (byte b : hash)
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return builder.toString();
+    }
+
+    public void commit() throws IOException
+    {
+        boolean aggregated = buffer != null;
+
+        if (aggregated) {
+            storageServices.storeImage(blobInfo, buffer, (int) receivedBytes);
+            abort();
+        } else
+            chunkingServices.closeChannel();
+
+        long elapsedNanos = Math.max(1L, System.nanoTime() - startedAt);
+
+        uploadedBytes.add(receivedBytes);
+        (aggregated ? aggregatedUploadTime : streamedUploadTime).record(elapsedNanos);
+        long bytesPerSecond = receivedBytes * 1_000_000_000L / elapsedNanos;
+
+        logger.info("Uploaded " + receivedBytes + " bytes of " + blobInfo.getName() + " (" + (aggregated ? "aggregated" : "streamed") + ") in " + elapsedNanos / 1_000_000 + " ms, " + bytesPerSecond + " bytes/s.");
+    }
+
+    // A streamed upload that is never closed is never committed, so only the buffer needs to be given back.
+    public synchronized void abort()
+    {
+        if (buffer != null) {
+            storageServices.releaseBuffer(buffer);
+            buffer = null;
+        }
+    }
+
+    public BlobInfo getBlobInfo() {
+        return blobInfo;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+// What the autoscaling controller resizes, so it can run against a local fake as well as Compute Engine.
+public interface InstanceGroups
+{
+    interface Resize
+    {
+        // Polls the resize, true once it's over, whether it worked or not.
+        boolean isDone() throws Exception;
+
+        boolean hasFailed();
+    }
+
+    int getSize(String instanceGroupId) throws Exception;
+
+    // Starts a resize and returns right away, it's followed through the Resize returned.
+    Resize startResize(String instanceGroupId, int newSize) throws Exception;
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+import com.google.cloud.storage.BlobInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Keeps every image as <root>/<bucket>/<name>, for running without Google Cloud Storage.
+public class LocalBlobStore implements BlobStore
+{
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final Path root;
+
+    public LocalBlobStore(String root) throws IOException {
+        this.root = Files.createDirectories(Paths.get(root)).toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void storeImage(BlobInfo imageInfo, byte[] image, int length) throws IOException
+    {
+        try (WritableByteChannel channel = openWriter(imageInfo, length)) {
+            ByteBuffer buffer = ByteBuffer.wrap(image, 0, length);
+
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    // Images are written next to their final name and moved there on close, so readers never see half an image.
+    @Override
+    public WritableByteChannel openWriter(BlobInfo imageInfo, int chunkSize) throws IOException
+    {
+        Path target = getPath(imageInfo);
+        Path partial = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+
+        Files.createDirectories(target.getParent());
+
+        FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!channel.isOpen())
+                    return;
+
+                channel.close();
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        };
+    }
+
+    private Path getPath(BlobInfo imageInfo) throws IOException
+    {
+        Path path = root.resolve(imageInfo.getBucket()).resolve(imageInfo.getName()).normalize();
+
+        if (!path.startsWith(root))
+            throw new IOException(imageInfo.getName() + " is outside of the blob store.");
+
+        return path;
+    }
+}
\ No newline at end of file
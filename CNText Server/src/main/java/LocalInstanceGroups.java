@@ -0,0 +1,49 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Stands in for Compute Engine when the workers run in this process. There are no instances behind a group, a resize is
+// only recorded and done at once, so what the controller decides can be followed without a project to scale.
+public class LocalInstanceGroups implements InstanceGroups
+{
+    private static final Logger logger = LogManager.getLogger(LocalInstanceGroups.class);
+
+    private static final Resize DONE = new Resize() {
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public boolean hasFailed() {
+            return false;
+        }
+    };
+
+    private final int initialSize;
+    private final ConcurrentHashMap<String, Integer> sizes = new ConcurrentHashMap<>();
+
+    public LocalInstanceGroups(int initialSize) {
+        this.initialSize = Math.max(0, initialSize);
+    }
+
+    @Override
+    public int getSize(String instanceGroupId) {
+        return sizes.getOrDefault(instanceGroupId, initialSize);
+    }
+
+    @Override
+    public Resize startResize(String instanceGroupId, int newSize)
+    {
+        sizes.put(instanceGroupId, newSize);
+        logger.info("Instance group " + instanceGroupId + " resized to " + newSize + " instances.");
+
+        return DONE;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalInstanceGroups" + sizes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Reads the load of the workers in this process from their in-memory topics, standing for the subscriptions of the
+// worker groups the controller knows.
+public class LocalScalingMetricsSource implements ScalingMetricsSource
+{
+    private static final String PREMIUM_TRANSLATE_TOPIC_ID = "premium-translate";
+
+    private final InMemoryTopics topics;
+    private final SubmissionStore submissionStore;
+
+    private final Map<String, String> topicIds = new HashMap<>();
+
+    public LocalScalingMetricsSource(InMemoryTopics topics, SubmissionStore submissionStore)
+    {
+        this.topics = topics;
+        this.submissionStore = submissionStore;
+
+        topicIds.put(AutoscalingController.PREMIUM_OCR_SUBSCRIPTION_ID, PublisherServices.PREMIUM_OCR_TOPIC_ID);
+        topicIds.put(AutoscalingController.PREMIUM_TRANSLATION_SUBSCRIPTION_ID, PREMIUM_TRANSLATE_TOPIC_ID);
+    }
+
+    @Override
+    public long getBacklog(String subscriptionId) {
+        return topics.getBacklog(getTopicId(subscriptionId));
+    }
+
+    @Override
+    public long getOldestUnackedAgeSeconds(String subscriptionId) {
+        return TimeUnit.MILLISECONDS.toSeconds(topics.getOldestMessageAgeMillis(getTopicId(subscriptionId)));
+    }
+
+    @Override
+    public long getInFlightSubmissions(String state) throws Exception {
+        return submissionStore.countSubmissions(state, "premium");
+    }
+
+    private String getTopicId(String subscriptionId)
+    {
+        String topicId = topicIds.get(subscriptionId);
+
+        if (topicId == null)
+            throw new IllegalArgumentException("There is no topic for the subscription " + subscriptionId + ".");
+
+        return topicId;
+    }
+}
\ No newline at end of file
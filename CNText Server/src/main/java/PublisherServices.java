@@ -1,37 +1,120 @@
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.batching.BatchingSettings;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.TopicName;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.threeten.bp.Duration;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class PublisherServices
 {
-    final private Publisher publisher;
+    public final static String FREE_OCR_TOPIC_ID = "free-ocr";
+    public final static String PREMIUM_OCR_TOPIC_ID = "premium-ocr";
 
-    public PublisherServices(TopicName topicName) throws IOException {
-        publisher = Publisher
-            .newBuilder(topicName)
+    public final static long DEFAULT_BATCH_ELEMENT_COUNT = 100L;
+    public final static long DEFAULT_BATCH_REQUEST_BYTES = 1_000L;
+    public final static long DEFAULT_BATCH_DELAY_MILLIS = 10L;
+
+    private static final Logger logger = LogManager.getLogger(PublisherServices.class);
+
+    private final String projectId;
+    private final BatchingSettings batchingSettings;
+
+    // Set when every module runs in this process, messages then go to in-memory queues instead of Pub/Sub.
+    private final InMemoryTopics topics;
+
+    // One long-lived publisher per topic, shared by every submission for the lifetime of the process.
+    private final ConcurrentHashMap<String, Publisher> publishers = new ConcurrentHashMap<>();
+
+    public PublisherServices(String projectId, long elementCount, long requestBytes, long delayMillis)
+    {
+        this.projectId = projectId;
+        this.batchingSettings = BatchingSettings
+            .newBuilder()
+            .setElementCountThreshold(elementCount)
+            .setRequestByteThreshold(requestBytes)
+            .setDelayThreshold(Duration.ofMillis(delayMillis))
             .build();
+        this.topics = null;
     }
 
-    public void publish(String message, Map<String, String> attributes) throws InterruptedException, ExecutionException {
+    public PublisherServices(InMemoryTopics topics)
+    {
+        this.projectId = null;
+        this.batchingSettings = null;
+        this.topics = topics;
+    }
+
+    public void start(String... topicIds) throws IOException
+    {
+        if (topics != null)
+            return;
+
+        for (String topicId : topicIds)
+            getPublisher(topicId);
+    }
+
+    public ApiFuture<String> publish(String topicId, String message, Map<String, String> attributes) throws IOException
+    {
+        ByteString data = ByteString.copyFromUtf8(message);
+
+        PubsubMessage pubsubMessage = PubsubMessage
+            .newBuilder()
+            .setData(data)
+            .putAllAttributes(attributes)
+            .build();
+
+        if (topics != null)
+            return topics.publish(topicId, pubsubMessage);
+
+        return getPublisher(topicId).publish(pubsubMessage);
+    }
+
+    public void shutdown()
+    {
+        for (Map.Entry<String, Publisher> entry : publishers.entrySet()) {
+            try {
+                // Shutting down sends every outstanding batch before the publisher terminates.
+                entry.getValue().shutdown();
+                entry.getValue().awaitTermination(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                logger.error("Couldn't shut down the publisher of topic " + entry.getKey() + ". " + e.getMessage());
+            }
+        }
+
+        publishers.clear();
+    }
+
+    private Publisher getPublisher(String topicId) throws IOException
+    {
         try {
-            ByteString data = ByteString.copyFromUtf8(message);
-
-            PubsubMessage pubsubMessage = PubsubMessage
-                .newBuilder()
-                .setData(data)
-                .putAllAttributes(attributes)
-                .build();
-
-            publisher.publish(pubsubMessage).get();
-        } finally {
-            publisher.shutdown();
-            publisher.awaitTermination(5, TimeUnit.SECONDS);
+            return publishers.computeIfAbsent(topicId, id -> {
+                TopicName topicName = TopicName
+                    .newBuilder()
+                    .setProject(projectId)
+                    .setTopic(id)
+                    .build();
+
+                try {
+                    return Publisher
+                        .newBuilder(topicName)
+                        .setBatchingSettings(batchingSettings)
+                        .build();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+import io.grpc.Status;
+import io.grpc.StatusException;
+import ipl.isel.cn.group2.contract.Submission;
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.Gauge;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Uploads given an id by their client are kept here until they're committed. When the stream of one breaks, it's kept
+// for a while longer, so a new stream with the same id goes on from the bytes already stored instead of byte zero and
+// a new submission. They're only kept in this process, a client that reaches another server starts over.
+public class ResumableUploads
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+    public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 600L;
+
+    private static final String DROPPED_UPLOAD_ERROR = "The upload of the image broke and wasn't resumed.";
+
+    private static final Logger logger = LogManager.getLogger(ResumableUploads.class);
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter resumed = metrics.counter("cntext_resumable_uploads_resumed_total", "Broken uploads a new stream went on with.");
+    private static final Counter expired = metrics.counter("cntext_resumable_uploads_expired_total", "Broken uploads dropped without being resumed.");
+    private static final Counter refused = metrics.counter("cntext_resumable_uploads_refused_total", "Uploads with an id that went on without being resumable.");
+    private static final Gauge keptUploads = metrics.gauge("cntext_resumable_uploads_size", "Uploads kept to be resumed, whether or not a stream is writing to them.");
+
+    public static class PendingUpload
+    {
+        private final Submission submission;
+        private final String topicId;
+        private final ImageUpload upload;
+        private final long uploadStartedAt;
+
+        // Whether a stream is writing to the upload, and since when nobody is.
+        private boolean attached = true;
+        private long detachedAt;
+
+        public PendingUpload(Submission submission, String topicId, ImageUpload upload, long uploadStartedAt) {
+            this.submission = submission;
+            this.topicId = topicId;
+            this.upload = upload;
+            this.uploadStartedAt = uploadStartedAt;
+        }
+
+        public Submission getSubmission() {
+            return submission;
+        }
+
+        public String getTopicId() {
+            return topicId;
+        }
+
+        public ImageUpload getUpload() {
+            return upload;
+        }
+
+        public long getUploadStartedAt() {
+            return uploadStartedAt;
+        }
+    }
+
+    private final SubmissionStore submissionStore;
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+
+    private final Map<String, PendingUpload> uploads = new HashMap<>();
+
+    public ResumableUploads(SubmissionStore submissionStore, int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        this.submissionStore = submissionStore;
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    // Uploads are kept per session, so one client can't reach another's by guessing its id. When the id is taken or
+    // there are too many uploads kept, false is returned and the upload goes on without being resumable.
+    public synchronized boolean register(String sessionId, String uploadId, PendingUpload upload)
+    {
+        String key = key(sessionId, uploadId);
+
+        if (uploads.containsKey(key) || uploads.size() >= maximumSize) {
+            refused.increment();
+            return false;
+        }
+
+        uploads.put(key, upload);
+        keptUploads.set(uploads.size());
+
+        return true;
+    }
+
+    // Hands a broken upload to the new stream going on with it, null when there is none to go on with.
+    public synchronized PendingUpload attach(String sessionId, String uploadId, long size) throws StatusException
+    {
+        PendingUpload upload = uploads.get(key(sessionId, uploadId));
+
+        if (upload == null)
+            return null;
+
+        if (upload.attached)
+            throw Status.ABORTED.withDescription("The upload whose id is " + uploadId + " is still being received.").asException();
+
+        if (upload.upload.getSize() != size)
+            throw Status.FAILED_PRECONDITION.withDescription("The upload whose id is " + uploadId + " was started with " + upload.upload.getSize() + " bytes, not " + size + ".").asException();
+
+        upload.attached = true;
+        resumed.increment();
+
+        return upload;
+    }
+
+    // The stream of the upload broke before it was committed. It's dropped unless it can be resumed.
+    public void detach(String sessionId, String uploadId)
+    {
+        PendingUpload upload;
+
+        synchronized (this) {
+            upload = uploads.get(key(sessionId, uploadId));
+
+            if (upload == null)
+                return;
+
+            if (upload.upload.isResumable()) {
+                upload.attached = false;
+                upload.detachedAt = System.nanoTime();
+
+                logger.info("Upload " + uploadId + " broke after " + upload.upload.getStatus().getCommittedBytes() + " of " + upload.upload.getSize() + " bytes, it's kept to be resumed.");
+                return;
+            }
+
+            uploads.remove(key(sessionId, uploadId));
+            keptUploads.set(uploads.size());
+        }
+
+        drop(upload);
+    }
+
+    // Once an upload is being committed there's nothing left to resume.
+    public synchronized void remove(String sessionId, String uploadId) {
+        uploads.remove(key(sessionId, uploadId));
+        keptUploads.set(uploads.size());
+    }
+
+    public synchronized PendingUpload get(String sessionId, String uploadId) {
+        return uploads.get(key(sessionId, uploadId));
+    }
+
+    // Streamed uploads that were never closed are never committed to storage, only the buffers need to be given back
+    // and the submissions failed.
+    public void evictExpired()
+    {
+        final long now = System.nanoTime();
+        List<PendingUpload> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            Iterator<PendingUpload> iterator = uploads.values().iterator();
+
+            while (iterator.hasNext()) {
+                PendingUpload upload = iterator.next();
+
+                if (upload.attached || now - upload.detachedAt < timeToLiveNanos)
+                    continue;
+
+                iterator.remove();
+                evicted.add(upload);
+                expired.increment();
+            }
+
+            keptUploads.set(uploads.size());
+        }
+
+        for (PendingUpload upload : evicted)
+            drop(upload);
+    }
+
+    public synchronized int size() {
+        return uploads.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ResumableUploads{size=" + size() + ", resumed=" + resumed.get() + ", expired=" + expired.get() + ", refused=" + refused.get() + "}";
+    }
+
+    // The submission was stored as soon as the metadata came, with nothing left to move it on its watchers would wait for
+    // it until it expires. So it's failed along with the upload, unless a worker already has it.
+    private void drop(PendingUpload upload)
+    {
+        upload.upload.abort();
+
+        try {
+            submissionStore.failSubmission(upload.submission.getId(), "uploading", DROPPED_UPLOAD_ERROR);
+        } catch (Exception e) {
+            logger.error("Couldn't fail submission " + upload.submission.getId() + " of a dropped upload. " + e.getMessage());
+        }
+    }
+
+    private static String key(String sessionId, String uploadId) {
+        return sessionId + "/" + uploadId;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,12 @@
+// Where the autoscaling controller reads the load of a worker group from, so it can run against a local fake.
+public interface ScalingMetricsSource
+{
+    // Messages published to the subscription and not yet acknowledged.
+    long getBacklog(String subscriptionId) throws Exception;
+
+    // Age of the oldest unacknowledged message, how long the stage is currently making work wait.
+    long getOldestUnackedAgeSeconds(String subscriptionId) throws Exception;
+
+    // Premium submissions waiting on the stage, across every server.
+    long getInFlightSubmissions(String state) throws Exception;
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// How the server accepts connections and runs calls. Calls run on gRPC's cached pool, or each on its own virtual thread
+// when asked for and the JVM has them, so handlers blocked on Firestore or Cloud Storage don't hold a platform thread.
+public class ServerTransport
+{
+    private static final Logger logger = LogManager.getLogger(ServerTransport.class);
+
+    public static final int DEFAULT_BOSS_THREADS = 1;
+    // Netty picks twice the available processors.
+    public static final int DEFAULT_WORKER_THREADS = 0;
+    public static final int DEFAULT_FLOW_CONTROL_WINDOW = NettyServerBuilder.DEFAULT_FLOW_CONTROL_WINDOW;
+    public static final int DEFAULT_MAX_INBOUND_MESSAGE_SIZE = 4 * 1024 * 1024;
+    // Zero keeps Netty's own keepalive settings.
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 0L;
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS = 0L;
+    public static final long DEFAULT_PERMIT_KEEP_ALIVE_SECONDS = 0L;
+
+    private final boolean virtualThreads;
+    private final boolean epoll;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int flowControlWindow;
+    private final int maxInboundMessageSize;
+    private final long keepAliveSeconds;
+    private final long keepAliveTimeoutSeconds;
+    private final long permitKeepAliveSeconds;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private ExecutorService callExecutor;
+
+    public ServerTransport(
+        boolean virtualThreads,
+        boolean epoll,
+        int bossThreads,
+        int workerThreads,
+        int flowControlWindow,
+        int maxInboundMessageSize,
+        long keepAliveSeconds,
+        long keepAliveTimeoutSeconds,
+        long permitKeepAliveSeconds
+    ) {
+        // Both fall back when they aren't there, a server that starts slower beats one that doesn't start.
+        this.virtualThreads = virtualThreads && hasVirtualThreads();
+        this.epoll = epoll && Epoll.isAvailable();
+        this.bossThreads = Math.max(1, bossThreads);
+        this.workerThreads = Math.max(0, workerThreads);
+        this.flowControlWindow = flowControlWindow;
+        this.maxInboundMessageSize = maxInboundMessageSize;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+        this.permitKeepAliveSeconds = permitKeepAliveSeconds;
+
+        if(virtualThreads && !this.virtualThreads)
+            logger.warn("This JVM can't run virtual threads, calls run on the default executor.");
+
+        if(epoll && !this.epoll)
+            logger.warn("Epoll isn't available, connections are handled with NIO. " + Epoll.unavailabilityCause());
+    }
+
+    public ServerBuilder<?> newServerBuilder(int port)
+    {
+        Class<? extends ServerChannel> channelType;
+
+        if(epoll) {
+            bossGroup = new EpollEventLoopGroup(bossThreads, new DefaultThreadFactory("grpc-boss", true));
+            workerGroup = new EpollEventLoopGroup(workerThreads, new DefaultThreadFactory("grpc-worker", true));
+            channelType = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(bossThreads, new DefaultThreadFactory("grpc-boss", true));
+            workerGroup = new NioEventLoopGroup(workerThreads, new DefaultThreadFactory("grpc-worker", true));
+            channelType = NioServerSocketChannel.class;
+        }
+
+        NettyServerBuilder builder = NettyServerBuilder
+            .forPort(port)
+            .channelType(channelType)
+            .bossEventLoopGroup(bossGroup)
+            .workerEventLoopGroup(workerGroup)
+            .flowControlWindow(flowControlWindow)
+            .maxInboundMessageSize(maxInboundMessageSize);
+
+        if(keepAliveSeconds > 0)
+            builder.keepAliveTime(keepAliveSeconds, TimeUnit.SECONDS);
+
+        if(keepAliveTimeoutSeconds > 0)
+            builder.keepAliveTimeout(keepAliveTimeoutSeconds, TimeUnit.SECONDS);
+
+        // Clients pinging more often than this are sent away, so it must not be above their own keepalive time.
+        if(permitKeepAliveSeconds > 0)
+            builder.permitKeepAliveTime(permitKeepAliveSeconds, TimeUnit.SECONDS);
+
+        if(virtualThreads) {
+            callExecutor = newVirtualThreadExecutor();
+
+            if(callExecutor != null)
+                builder.executor(callExecutor);
+        }
+
+        return builder;
+    }
+
+    // Blocking work handed off by the handlers, bounded by threads unless every task gets a virtual thread of its own.
+    public ExecutorService newExecutor(int threads)
+    {
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+
+        return executor != null ? executor : Executors.newFixedThreadPool(threads);
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void shutdown()
+    {
+        if(callExecutor != null)
+            callExecutor.shutdown();
+
+        if(bossGroup != null)
+            bossGroup.shutdownGracefully();
+
+        if(workerGroup != null)
+            workerGroup.shutdownGracefully();
+    }
+
+    @Override
+    public String toString() {
+        return "ServerTransport{" + (epoll ? "epoll" : "nio") + ", bossThreads=" + bossThreads + ", workerThreads=" + (workerThreads == 0 ? "default" : String.valueOf(workerThreads)) + ", flowControlWindow=" + flowControlWindow + ", maxInboundMessageSize=" + maxInboundMessageSize + ", calls=" + (virtualThreads ? "virtual threads" : "default executor") + "}";
+    }
+
+    // The build targets Java 8, so the factory only newer JVMs have is looked up when running. JDK 19 and 20 have it as
+    // a preview that throws unless --enable-preview was given, so it's only there when it gives an executor back.
+    private static boolean hasVirtualThreads()
+    {
+        ExecutorService executor = newVirtualThreadExecutor();
+
+        if(executor == null)
+            return false;
+
+        executor.shutdown();
+        return true;
+    }
+
+    // Null when virtual threads can't be had, the caller falls back to platform threads.
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.warn("Virtual threads can't be created, falling back to platform threads. " + cause);
+            return null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,210 @@
+import io.grpc.StatusException;
+import ipl.isel.cn.group2.metrics.Counter;
+import ipl.isel.cn.group2.metrics.Gauge;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+    public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 300L;
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    // Counted for the whole process, which only has the one cache.
+    private static final Counter hits = metrics.counter("cntext_session_cache_hits_total", "Sessions resolved from the cache.");
+    private static final Counter misses = metrics.counter("cntext_session_cache_misses_total", "Sessions loaded from the datastore because they weren't cached.");
+    private static final Counter evictions = metrics.counter("cntext_session_cache_evictions_total", "Sessions dropped from the cache for its size or their age.");
+    private static final Gauge cachedSessions = metrics.gauge("cntext_session_cache_size", "Sessions in the cache.");
+
+    // Once full, the cache is trimmed to this share of its maximum size, so the scan is paid once every many loads.
+    private static final double TRIMMED_SIZE_RATIO = 0.9;
+
+    private static class Entry
+    {
+        private final SubmissionStore.SessionInfo sessionInfo;
+        private final long expiresAt;
+
+        // Only approximate, it's read to pick the entries evicted for the size of the cache.
+        private volatile long accessedAt;
+
+        private Entry(SubmissionStore.SessionInfo sessionInfo, long expiresAt, long accessedAt) {
+            this.sessionInfo = sessionInfo;
+            this.expiresAt = expiresAt;
+            this.accessedAt = accessedAt;
+        }
+    }
+
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+
+    // Hits take no lock, the least recently used entries are found by a scan when the cache grows past its size.
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+    // Counts invalidations so a session loaded while one happened isn't cached again after it.
+    private final AtomicLong generation = new AtomicLong();
+
+    public SessionCache(int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    public SubmissionStore.SessionInfo get(String sessionId, SessionResolver loader) throws StatusException, ExecutionException, InterruptedException
+    {
+        SubmissionStore.SessionInfo sessionInfo = getIfPresent(sessionId);
+
+        if (sessionInfo != null) {
+            hits.increment();
+            return sessionInfo;
+        }
+
+        misses.increment();
+
+        long loadedAt = generation.get();
+
+        // Loaded outside any lock, concurrent misses on the same session may both hit the datastore. When a session was
+        // invalidated during the load, what was loaded may be a session that's just been closed, so it isn't kept.
+        sessionInfo = loader.resolve(sessionId);
+        put(sessionInfo, loadedAt);
+
+        return sessionInfo;
+    }
+
+    public void put(SubmissionStore.SessionInfo sessionInfo) {
+        put(sessionInfo, generation.get());
+    }
+
+    // Sessions are closed in the store before they're invalidated, so a load started afterwards can't find them open.
+    public void invalidate(String sessionId)
+    {
+        generation.incrementAndGet();
+        entries.remove(sessionId);
+
+        cachedSessions.set(entries.size());
+    }
+
+    private void put(SubmissionStore.SessionInfo sessionInfo, long loadedAt)
+    {
+        if (loadedAt != generation.get())
+            return;
+
+        long now = System.nanoTime();
+        Entry entry = new Entry(sessionInfo, now + timeToLiveNanos, now);
+
+        entries.put(sessionInfo.getId(), entry);
+
+        // The generation is bumped before invalidate removes, so an invalidation this put raced with either removes
+        // the entry afterwards or is seen here.
+        if (loadedAt != generation.get())
+            entries.remove(sessionInfo.getId(), entry);
+
+        if (entries.size() > maximumSize)
+            trim();
+
+        cachedSessions.set(entries.size());
+    }
+
+    // Evicts the least recently used entries down to the trimmed size, one thread at a time while the others go on.
+    private void trim()
+    {
+        if (!trimming.compareAndSet(false, true))
+            return;
+
+        try {
+            int excess = entries.size() - (int) (maximumSize * TRIMMED_SIZE_RATIO);
+
+            if (excess <= 0)
+                return;
+
+            List<Map.Entry<String, Entry>> eldest = new ArrayList<>(entries.entrySet());
+            eldest.sort(Comparator.comparingLong(e -> e.getValue().accessedAt));
+
+            int evicted = 0;
+
+            for (Map.Entry<String, Entry> e : eldest.subList(0, Math.min(excess, eldest.size()))) {
+                if (entries.remove(e.getKey(), e.getValue()))
+                    ++evicted;
+            }
+
+            evictions.add(evicted);
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    public int evictExpired()
+    {
+        long now = System.nanoTime();
+        int expired = 0;
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (now - e.getValue().expiresAt >= 0 && entries.remove(e.getKey(), e.getValue()))
+                ++expired;
+        }
+
+        cachedSessions.set(entries.size());
+        evictions.add(expired);
+
+        return expired;
+    }
+
+    // Never loads, a session not cached is null.
+    public SubmissionStore.SessionInfo getIfPresent(String sessionId)
+    {
+        Entry entry = entries.get(sessionId);
+
+        if (entry == null)
+            return null;
+
+        long now = System.nanoTime();
+
+        if (now - entry.expiresAt >= 0) {
+            if (entries.remove(sessionId, entry)) {
+                evictions.increment();
+                cachedSessions.set(entries.size());
+            }
+
+            return null;
+        }
+
+        entry.accessedAt = now;
+
+        return entry.sessionInfo;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionCache{size=" + size() + "/" + maximumSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "}";
+    }
+}
\ No newline at end of file
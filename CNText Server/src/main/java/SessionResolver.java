@@ -0,0 +1,8 @@
+import io.grpc.StatusException;
+
+import java.util.concurrent.ExecutionException;
+
+public interface SessionResolver
+{
+    SubmissionStore.SessionInfo resolve(String sessionId) throws StatusException, ExecutionException, InterruptedException;
+}
\ No newline at end of file
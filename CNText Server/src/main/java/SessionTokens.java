@@ -0,0 +1,141 @@
+import io.grpc.StatusException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class SessionTokens implements SessionResolver
+{
+    public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 12 * 60 * 60L;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long timeToLiveSeconds;
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> macs;
+
+    // Revoked token nonces mapped to the token expiry, in epoch seconds. Entries are only kept until the token would expire anyway.
+    private final ConcurrentHashMap<Long, Long> denylist = new ConcurrentHashMap<>();
+
+    public SessionTokens(String secret, long timeToLive, TimeUnit unit)
+    {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.timeToLiveSeconds = unit.toSeconds(timeToLive);
+
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    // Token layout is base64url(expiresAt|nonce|serviceLevel|username) + "." + base64url(hmac).
+    public SubmissionStore.SessionInfo issue(String username, String serviceLevel)
+    {
+        long expiresAt = System.currentTimeMillis() / 1000 + timeToLiveSeconds;
+        String payload = expiresAt + "|" + random.nextLong() + "|" + serviceLevel + "|" + username;
+
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        String token = encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(sign(payloadBytes));
+
+        return new SubmissionStore.SessionInfo(token, username, serviceLevel);
+    }
+
+    @Override
+    public SubmissionStore.SessionInfo resolve(String token) throws StatusException
+    {
+        String[] fields = parse(token);
+
+        if (denylist.containsKey(Long.parseLong(fields[1])))
+            throw new SubmissionStore.SessionException("closed");
+
+        return new SubmissionStore.SessionInfo(token, fields[3], fields[2]);
+    }
+
+    public void revoke(String token) throws StatusException
+    {
+        String[] fields = parse(token);
+
+        if (denylist.putIfAbsent(Long.parseLong(fields[1]), Long.parseLong(fields[0])) != null)
+            throw new SubmissionStore.SessionException("closed");
+    }
+
+    public int purgeDenylist()
+    {
+        long now = System.currentTimeMillis() / 1000;
+        int purged = 0;
+
+        Iterator<Map.Entry<Long, Long>> iterator = denylist.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() < now) {
+                iterator.remove();
+                ++purged;
+            }
+        }
+
+        return purged;
+    }
+
+    public int getDenylistSize() {
+        return denylist.size();
+    }
+
+    private String[] parse(String token) throws StatusException
+    {
+        if (token == null)
+            throw new SubmissionStore.SessionException("empty");
+
+        if (token.isEmpty())
+            throw new SubmissionStore.SessionException("missing");
+
+        int separator = token.indexOf('.');
+
+        if (separator < 0)
+            throw new SubmissionStore.SessionException("invalid");
+
+        byte[] payloadBytes;
+        byte[] signature;
+
+        try {
+            payloadBytes = decoder.decode(token.substring(0, separator));
+            signature = decoder.decode(token.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            throw new SubmissionStore.SessionException("invalid");
+        }
+
+        if (!MessageDigest.isEqual(sign(payloadBytes), signature))
+            throw new SubmissionStore.SessionException("invalid");
+
+        String[] fields = new String(payloadBytes, StandardCharsets.UTF_8).split("\\|", 4);
+
+        if (fields.length != 4)
+            throw new SubmissionStore.SessionException("invalid");
+
+        if (Long.parseLong(fields[0]) < System.currentTimeMillis() / 1000)
+            throw new SubmissionStore.SessionException("expired");
+
+        return fields;
+    }
+
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+}
\ No newline at end of file
@@ -1,35 +1,78 @@
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StorageServices
 {
     public static final String DEFAULT_BUCKET_ID = "ipl_isel_cn_group_2_final_project_images";
 
+    public static final int DEFAULT_AGGREGATION_THRESHOLD_BYTES = 1_000_000;
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE_BYTES = 2 * 1024 * 1024;
+
+    // Resumable uploads only accept chunk sizes that are multiples of 256 KiB.
+    private static final int UPLOAD_CHUNK_SIZE_GRANULARITY = 256 * 1024;
+    private static final int MAXIMUM_POOLED_BUFFERS = 64;
+
     private final String projectId;
-    private final Storage storage;
+    private final BlobStore blobStore;
+
+    private final int aggregationThreshold;
+    private final int uploadChunkSize;
+
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
 
     public StorageServices(String projectId, GoogleCredentials credentials) {
+        this(projectId, credentials, DEFAULT_AGGREGATION_THRESHOLD_BYTES, DEFAULT_UPLOAD_CHUNK_SIZE_BYTES);
+    }
+
+    public StorageServices(String projectId, GoogleCredentials credentials, int aggregationThreshold, int uploadChunkSize) {
+        this(projectId, new GcsBlobStore(projectId, credentials), aggregationThreshold, uploadChunkSize);
+    }
+
+    public StorageServices(String projectId, BlobStore blobStore, int aggregationThreshold, int uploadChunkSize) {
         this.projectId = projectId;
-        this.storage = StorageOptions
-            .newBuilder()
-            .setProjectId(projectId)
-            .setCredentials(credentials)
-            .build()
-            .getService();
+        this.blobStore = blobStore;
+        this.aggregationThreshold = aggregationThreshold;
+        this.uploadChunkSize = Math.max(1, (uploadChunkSize + UPLOAD_CHUNK_SIZE_GRANULARITY - 1) / UPLOAD_CHUNK_SIZE_GRANULARITY) * UPLOAD_CHUNK_SIZE_GRANULARITY;
     }
 
-    public void storeImage(BlobInfo imageInfo, ByteString image) {
-        storage.create(imageInfo, image.toByteArray());
+    public void storeImage(BlobInfo imageInfo, byte[] image, int length) throws IOException {
+        blobStore.storeImage(imageInfo, image, length);
     }
 
-    public ChunkingServices getChunkingServices(BlobInfo imageInfo) {
-        return new ChunkingServices(storage.writer(imageInfo));
+    public ChunkingServices getChunkingServices(BlobInfo imageInfo) throws IOException {
+        return new ChunkingServices(blobStore.openWriter(imageInfo, uploadChunkSize));
+    }
+
+    // Buffers are aggregationThreshold bytes long and are reused across uploads of small images.
+    public byte[] acquireBuffer()
+    {
+        byte[] buffer = buffers.poll();
+
+        if (buffer == null)
+            return new byte[aggregationThreshold];
+
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    public void releaseBuffer(byte[] buffer)
+    {
+        if (pooledBuffers.incrementAndGet() <= MAXIMUM_POOLED_BUFFERS)
+            buffers.offer(buffer);
+        else
+            pooledBuffers.decrementAndGet();
+    }
+
+    public int getAggregationThreshold() {
+        return aggregationThreshold;
     }
 
     public String getProjectId() {
@@ -38,14 +81,34 @@ public class StorageServices
 
     public static class ChunkingServices
     {
-        private final WriteChannel channel;
+        private final WritableByteChannel channel;
 
-        private ChunkingServices(WriteChannel channel) {
+        // After a write that failed partway nobody knows how many bytes the channel kept, so nothing more can be written
+        // and the upload can't be resumed from there.
+        private volatile boolean failed = false;
+
+        private ChunkingServices(WritableByteChannel channel) {
             this.channel = channel;
         }
 
-        public void storeImageChunk(ByteString chunk) throws IOException {
-            channel.write(chunk.asReadOnlyByteBuffer());
+        public void storeImageChunk(ByteString chunk) throws IOException
+        {
+            if (failed)
+                throw new IOException("An earlier write to the upload channel failed.");
+
+            ByteBuffer buffer = chunk.asReadOnlyByteBuffer();
+
+            try {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        public boolean isWritable() {
+            return !failed && channel.isOpen();
         }
 
         public void closeChannel() throws IOException {
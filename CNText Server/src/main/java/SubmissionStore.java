@@ -0,0 +1,195 @@
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Sessions, users and submissions, kept in Firestore or in an embedded store.
+public interface SubmissionStore
+{
+    String DEDUPLICATION_COLLECTION_NAME = "deduplication";
+
+    long DEFAULT_SESSION_TIME_TO_LIVE_SECONDS = 24 * 60 * 60L;
+    long DEFAULT_SUBMISSION_TIME_TO_LIVE_SECONDS = 24 * 60 * 60L;
+
+    class AccountNotFoundException extends StatusException {
+        public AccountNotFoundException(String username) {
+            super(Status.NOT_FOUND.withDescription("Account whose username is " + username + " doesn't seem to exist."));
+        }
+    }
+
+    class UsernameException extends StatusException {
+        public UsernameException(String status) {
+            super(Status.INVALID_ARGUMENT.withDescription("The username sent is " + status + "."));
+        }
+    }
+
+    class SessionNotFoundException extends StatusException {
+        public SessionNotFoundException(String sessionId) {
+            super(Status.NOT_FOUND.withDescription("There is no session whose id is " + sessionId));
+        }
+    }
+
+    class SessionException extends StatusException {
+        public SessionException(String status) {
+            super(Status.INVALID_ARGUMENT.withDescription("The session id sent is " + status + "."));
+        }
+    }
+
+    class SubmissionNotFoundException extends StatusException {
+        public SubmissionNotFoundException(String submissionId) {
+            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
+        }
+    }
+
+    class SubmissionException extends StatusException {
+        public SubmissionException(String status) {
+            super(Status.INVALID_ARGUMENT.withDescription("The submission id sent is " + status + "."));
+        }
+    }
+
+    class SessionInfo
+    {
+        private final String id;
+        private final String username;
+        private final String serviceLevel;
+
+        public SessionInfo(String id, String username, String serviceLevel) {
+            this.id = id;
+            this.username = username;
+            this.serviceLevel = serviceLevel;
+        }
+
+        public String getId() { return id; }
+
+        public String getUsername() { return username; }
+
+        public String getServiceLevel() { return serviceLevel; }
+    }
+
+    class SubmissionInfo
+    {
+        private String sessionId;
+        private String serviceLevel;
+        private String state;
+        private String error;
+        private String text;
+        private String textTranslated;
+        private String translatedFrom;
+        private String translatedTo;
+        private Map<String, Long> timings;
+
+        public SubmissionInfo() { }
+
+        public SubmissionInfo(
+            String sessionId,
+            String serviceLevel,
+            String state,
+            String error,
+            String text,
+            String textTranslated,
+            String translatedFrom,
+            String translatedTo
+        ) {
+            this.sessionId = sessionId;
+            this.serviceLevel = serviceLevel;
+            this.state = state;
+            this.error = error;
+            this.text = text;
+            this.textTranslated = textTranslated;
+            this.translatedFrom = translatedFrom;
+            this.translatedTo = translatedTo;
+        }
+
+        public SubmissionInfo(
+            String sessionId,
+            String serviceLevel,
+            String state,
+            String error,
+            String text,
+            String textTranslated,
+            String translatedFrom,
+            String translatedTo,
+            Map<String, Long> timings
+        ) {
+            this(sessionId, serviceLevel, state, error, text, textTranslated, translatedFrom, translatedTo);
+            this.timings = timings;
+        }
+
+        public String getSessionId() { return sessionId; }
+
+        public String getServiceLevel() { return serviceLevel; }
+
+        public String getTranslatedTo() {
+            return translatedTo;
+        }
+
+        public String getTranslatedFrom() {
+            return translatedFrom;
+        }
+
+        public String getTextTranslated() {
+            return textTranslated;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getError() { return error; }
+
+        public Map<String, Long> getTimings() { return timings; }
+    }
+
+    interface SubmissionListener {
+        void onSubmissionInfo(SubmissionInfo submissionInfo);
+        void onError(Exception e);
+    }
+
+    interface Registration {
+        void remove();
+    }
+
+    SessionInfo storeSession(String username) throws StatusException, ExecutionException, InterruptedException;
+
+    String getServiceLevel(String username) throws StatusException, ExecutionException, InterruptedException;
+
+    // Creates or replaces the account of username, only used to seed stores that don't share Firestore's users.
+    void storeUser(String username, String serviceLevel) throws ExecutionException, InterruptedException;
+
+    // Stored as uploading, a submission is only in progress, and counted as work for the workers, once it's enqueued.
+    String storeSubmission(SessionInfo sessionInfo) throws ExecutionException, InterruptedException;
+
+    // Moves a submission still uploading to in progress, false when it's no longer uploading.
+    boolean enqueueSubmission(String submissionId) throws ExecutionException, InterruptedException;
+
+    String newSubmissionId();
+
+    // Creates every submission at once, keyed by ids taken from newSubmissionId.
+    void storeSubmissions(Map<String, SubmissionInfo> submissions) throws ExecutionException, InterruptedException;
+
+    SubmissionInfo getSubmissionInfo(SessionInfo sessionInfo, String submissionId) throws StatusException, ExecutionException, InterruptedException;
+
+    SubmissionInfo getDeduplicatedResult(String key) throws ExecutionException, InterruptedException;
+
+    // Only completes a submission still uploading, a duplicate's result is known before it would be enqueued.
+    void completeSubmission(String submissionId, SubmissionInfo result) throws ExecutionException, InterruptedException;
+
+    // Only fails a submission still in state, one a worker already moved on is left to it.
+    void failSubmission(String submissionId, String state, String error) throws ExecutionException, InterruptedException;
+
+    Registration listenSubmission(String submissionId, SubmissionListener listener);
+
+    int countSubmissions(String state, String serviceLevel) throws ExecutionException, InterruptedException;
+
+    void closeSession(String sessionId) throws StatusException, ExecutionException, InterruptedException;
+
+    // Deletes up to limit documents of collectionName whose expiresAt already passed, returning how many were found.
+    int deleteExpired(String collectionName, int limit, int batchSize, int parallelBatches) throws ExecutionException, InterruptedException;
+
+    SessionInfo validateSession(String sessionId) throws StatusException, ExecutionException, InterruptedException;
+}
\ No newline at end of file
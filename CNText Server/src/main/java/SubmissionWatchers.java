@@ -0,0 +1,213 @@
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import ipl.isel.cn.group2.contract.ImageTextTranslated;
+import ipl.isel.cn.group2.contract.SubmissionState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SubmissionWatchers
+{
+    private static final Logger logger = LogManager.getLogger(SubmissionWatchers.class);
+
+    private static class Watcher
+    {
+        private final String sessionId;
+        private final StreamObserver<SubmissionState> observer;
+
+        private Watcher(String sessionId, StreamObserver<SubmissionState> observer) {
+            this.sessionId = sessionId;
+            this.observer = observer;
+        }
+    }
+
+    // A single store listener per submission, whose snapshots are fanned out to every watcher of that submission.
+    private class Watch implements SubmissionStore.SubmissionListener
+    {
+        private final String submissionId;
+        private final List<Watcher> watchers = new ArrayList<>();
+
+        private SubmissionStore.Registration registration;
+        private SubmissionStore.SubmissionInfo submissionInfo;
+        private boolean closed = false;
+
+        private Watch(String submissionId) {
+            this.submissionId = submissionId;
+        }
+
+        private synchronized boolean add(Watcher watcher)
+        {
+            if (closed)
+                return false;
+
+            if (submissionInfo == null || deliver(watcher, submissionInfo))
+                watchers.add(watcher);
+            else if (watchers.isEmpty())
+                close();
+
+            return true;
+        }
+
+        private synchronized void remove(Watcher watcher)
+        {
+            watchers.remove(watcher);
+
+            if (watchers.isEmpty())
+                close();
+        }
+
+        @Override
+        public synchronized void onSubmissionInfo(SubmissionStore.SubmissionInfo submissionInfo)
+        {
+            if (closed)
+                return;
+
+            if (submissionInfo == null) {
+                for (Watcher watcher : watchers)
+                    watcher.observer.onError(new SubmissionStore.SubmissionNotFoundException(submissionId));
+
+                watchers.clear();
+                close();
+                return;
+            }
+
+            if (this.submissionInfo != null && this.submissionInfo.getState().equals(submissionInfo.getState()))
+                return;
+
+            this.submissionInfo = submissionInfo;
+
+            Iterator<Watcher> iterator = watchers.iterator();
+
+            while (iterator.hasNext()) {
+                if (!deliver(iterator.next(), submissionInfo))
+                    iterator.remove();
+            }
+
+            if (watchers.isEmpty())
+                close();
+        }
+
+        @Override
+        public synchronized void onError(Exception e)
+        {
+            logger.error(e.getMessage());
+
+            for (Watcher watcher : watchers)
+                watcher.observer.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asException());
+
+            watchers.clear();
+            close();
+        }
+
+        // Returns whether the watcher should keep receiving updates.
+        private boolean deliver(Watcher watcher, SubmissionStore.SubmissionInfo submissionInfo)
+        {
+            if (!watcher.sessionId.equals(submissionInfo.getSessionId())) {
+                watcher.observer.onError(new SubmissionStore.SubmissionNotFoundException(submissionId));
+                return false;
+            }
+
+            try {
+                watcher.observer.onNext(toSubmissionState(submissionInfo));
+
+                if (isFinal(submissionInfo.getState())) {
+                    watcher.observer.onCompleted();
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                // The call was cancelled meanwhile.
+                return false;
+            }
+
+            return true;
+        }
+
+        private void close()
+        {
+            if (closed)
+                return;
+
+            closed = true;
+            watches.remove(submissionId, this);
+
+            if (registration != null)
+                registration.remove();
+        }
+    }
+
+    private final SubmissionStore submissionStore;
+    private final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<>();
+
+    public SubmissionWatchers(SubmissionStore submissionStore) {
+        this.submissionStore = submissionStore;
+    }
+
+    public void watch(SubmissionStore.SessionInfo sessionInfo, String submissionId, StreamObserver<SubmissionState> observer) throws SubmissionStore.SubmissionException
+    {
+        if (submissionId == null)
+            throw new SubmissionStore.SubmissionException("empty");
+
+        if (submissionId.isEmpty())
+            throw new SubmissionStore.SubmissionException("missing");
+
+        Watcher watcher = new Watcher(sessionInfo.getId(), observer);
+
+        while (true) {
+            Watch watch = watches.computeIfAbsent(submissionId, Watch::new);
+
+            synchronized (watch) {
+                if (!watch.add(watcher))
+                    continue;
+
+                if (watch.registration == null) {
+                    watch.registration = submissionStore.listenSubmission(submissionId, watch);
+
+                    // The listener may have already delivered a final snapshot on this thread.
+                    if (watch.closed)
+                        watch.registration.remove();
+                }
+            }
+
+            if (observer instanceof ServerCallStreamObserver)
+                ((ServerCallStreamObserver<SubmissionState>) observer).setOnCancelHandler(() -> watch.remove(watcher));
+
+            return;
+        }
+    }
+
+    public int size() {
+        return watches.size();
+    }
+
+    private static boolean isFinal(String state) {
+        return state.compareToIgnoreCase("completed") == 0 || state.compareToIgnoreCase("error") == 0;
+    }
+
+    private static SubmissionState toSubmissionState(SubmissionStore.SubmissionInfo submissionInfo)
+    {
+        SubmissionState.Builder builder = SubmissionState
+            .newBuilder()
+            .setState(submissionInfo.getState());
+
+        if (submissionInfo.getError() != null)
+            builder.setError(submissionInfo.getError());
+
+        if (submissionInfo.getState().compareToIgnoreCase("completed") == 0) {
+            ImageTextTranslated imageTextTranslated = ImageTextTranslated
+                .newBuilder()
+                .setTranslatedText(submissionInfo.getTextTranslated())
+                .setTranslatedFrom(submissionInfo.getTranslatedFrom())
+                .setTranslatedTo(submissionInfo.getTranslatedTo())
+                .build();
+
+            builder.setResult(imageTextTranslated);
+        }
+
+        return builder.build();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,514 @@
+package ipl.isel.cn.group2.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Collections of string documents held in memory. Every change is applied under the lock of its key only,
+// so writes to different documents never wait on each other, and appended to a log replayed on open.
+public class KeyValueStore implements Closeable
+{
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10L;
+
+    private static final String LOG_FILE_NAME = "store.log";
+    private static final String COMPACTED_LOG_FILE_NAME = "store.log.compacted";
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    // The log is rewritten once it holds this many records more than there are documents.
+    private static final long MINIMUM_COMPACTION_RECORDS = 100_000L;
+
+    public interface Listener {
+        // Receives null once the document doesn't exist.
+        void onDocument(Map<String, String> document);
+    }
+
+    public interface Registration {
+        void remove();
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Map<String, String>>> collections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<ListenerRegistration>> listeners = new ConcurrentHashMap<>();
+
+    // Listeners are called on a single thread, in the order the changes were applied, and never under a key lock.
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final Object logLock = new Object();
+    // Held for reading by a change from its record until its document is in the map, and for writing by compaction,
+    // so the map compaction copies never misses a change whose record is in the log it replaces.
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService syncer;
+    private FileChannel channel;
+    private DataOutputStream log;
+    private boolean dirty = false;
+    private long records = 0L;
+    private boolean closed = false;
+
+    private KeyValueStore(Path directory) {
+        this.directory = directory;
+    }
+
+    // Nothing is written to disk, everything is lost once the process ends.
+    public static KeyValueStore inMemory() {
+        return new KeyValueStore(null);
+    }
+
+    public static KeyValueStore open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    // Writes are forced to disk together every syncIntervalMillis, or one by one when it's 0.
+    public static KeyValueStore open(Path directory, long syncIntervalMillis) throws IOException
+    {
+        KeyValueStore store = new KeyValueStore(directory);
+
+        Files.createDirectories(directory);
+        store.replay();
+        store.compact();
+
+        if (syncIntervalMillis > 0) {
+            store.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "store-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            store.syncer.scheduleWithFixedDelay(store::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return store;
+    }
+
+    public Map<String, String> get(String collection, String key) {
+        return documents(collection).get(key);
+    }
+
+    public void put(String collection, String key, Map<String, String> document) throws IOException {
+        mutate(collection, key, current -> freeze(new HashMap<>(document)));
+    }
+
+    public boolean putIfAbsent(String collection, String key, Map<String, String> document) throws IOException {
+        return mutate(collection, key, current -> current != null ? current : freeze(new HashMap<>(document)));
+    }
+
+    // Merges the changes into an existing document, a null value removes its field.
+    public boolean update(String collection, String key, Map<String, String> changes) throws IOException {
+        return mutate(collection, key, current -> current == null ? null : merge(current, changes));
+    }
+
+    // Merges the changes only while field still holds the expected value, a null expected value meaning it's absent.
+    public boolean compareAndSet(String collection, String key, String field, String expected, Map<String, String> changes) throws IOException
+    {
+        return mutate(collection, key, current -> {
+            if (current == null || !Objects.equals(current.get(field), expected))
+                return current;
+
+            return merge(current, changes);
+        });
+    }
+
+    public boolean delete(String collection, String key) throws IOException {
+        return deleteIf(collection, key, document -> true);
+    }
+
+    public boolean deleteIf(String collection, String key, Predicate<Map<String, String>> condition) throws IOException {
+        return mutate(collection, key, current -> current != null && condition.test(current) ? null : current);
+    }
+
+    // Weakly consistent, documents changed while scanning may be seen either way.
+    public void forEach(String collection, BiConsumer<String, Map<String, String>> consumer) {
+        documents(collection).forEach(consumer);
+    }
+
+    public int size(String collection) {
+        return documents(collection).size();
+    }
+
+    // The listener first receives the document as it is now, then every change after it.
+    public Registration listen(String collection, String key, Listener listener)
+    {
+        ListenerRegistration registration = new ListenerRegistration(listenerKey(collection, key), listener);
+
+        documents(collection).compute(key, (id, current) -> {
+            listeners.computeIfAbsent(registration.key, k -> new CopyOnWriteArrayList<>()).add(registration);
+            notifier.execute(() -> registration.deliver(current));
+            return current;
+        });
+
+        return registration;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        notifier.shutdown();
+
+        if (syncer != null)
+            syncer.shutdown();
+
+        synchronized (logLock) {
+            if (closed)
+                return;
+
+            closed = true;
+
+            if (log != null) {
+                log.flush();
+                channel.force(false);
+                log.close();
+            }
+        }
+    }
+
+    private ConcurrentHashMap<String, Map<String, String>> documents(String collection) {
+        return collections.computeIfAbsent(collection, name -> new ConcurrentHashMap<>());
+    }
+
+    // The change returns the document that replaces the current one, the same one to leave it as is, or null to delete it.
+    private boolean mutate(String collection, String key, Function<Map<String, String>, Map<String, String>> change) throws IOException
+    {
+        boolean[] changed = { false };
+
+        compactionLock.readLock().lock();
+
+        try {
+            documents(collection).compute(key, (id, current) -> {
+                Map<String, String> next = change.apply(current);
+
+                if (next == current)
+                    return current;
+
+                try {
+                    append(collection, key, next);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                notify(listenerKey(collection, key), next);
+                changed[0] = true;
+
+                return next;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+
+        return changed[0];
+    }
+
+    private void notify(String listenerKey, Map<String, String> document)
+    {
+        CopyOnWriteArrayList<ListenerRegistration> registrations = listeners.get(listenerKey);
+
+        if (registrations == null || registrations.isEmpty())
+            return;
+
+        for (ListenerRegistration registration : registrations)
+            notifier.execute(() -> registration.deliver(document));
+    }
+
+    private static Map<String, String> merge(Map<String, String> current, Map<String, String> changes)
+    {
+        HashMap<String, String> next = new HashMap<>(current);
+
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null)
+                next.remove(change.getKey());
+            else
+                next.put(change.getKey(), change.getValue());
+        }
+
+        return freeze(next);
+    }
+
+    private static Map<String, String> freeze(HashMap<String, String> document)
+    {
+        document.values().removeIf(Objects::isNull);
+
+        return Collections.unmodifiableMap(document);
+    }
+
+    private static String listenerKey(String collection, String key) {
+        return collection + '/' + key;
+    }
+
+    // Records are whole documents, so replaying one twice is harmless.
+    private void append(String collection, String key, Map<String, String> document) throws IOException
+    {
+        if (directory == null)
+            return;
+
+        byte[] record = encode(collection, key, document);
+
+        synchronized (logLock) {
+            if (closed)
+                throw new IOException("The store is closed.");
+
+            writeRecord(log, record);
+            records++;
+
+            if (syncer == null) {
+                log.flush();
+                channel.force(false);
+            } else
+                dirty = true;
+        }
+    }
+
+    private void sync()
+    {
+        try {
+            synchronized (logLock) {
+                if (closed || !dirty)
+                    return;
+
+                log.flush();
+                dirty = false;
+            }
+
+            channel.force(false);
+
+            if (records > MINIMUM_COMPACTION_RECORDS + 2L * documentCount())
+                compact();
+        } catch (IOException e) {
+            // The next sync tries again, the records are still buffered or already written.
+        }
+    }
+
+    private long documentCount()
+    {
+        long count = 0L;
+
+        for (ConcurrentHashMap<String, Map<String, String>> documents : collections.values())
+            count += documents.size();
+
+        return count;
+    }
+
+    // Rewrites the log with one record per document and swaps it in place of the current one.
+    private void compact() throws IOException
+    {
+        Path logFile = directory.resolve(LOG_FILE_NAME);
+        Path compactedFile = directory.resolve(COMPACTED_LOG_FILE_NAME);
+
+        compactionLock.writeLock().lock();
+
+        try {
+            synchronized (logLock) {
+                compactLog(logFile, compactedFile);
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    private void compactLog(Path logFile, Path compactedFile) throws IOException
+    {
+        if (closed)
+            return;
+
+        if (log != null)
+            log.flush();
+
+        long count = 0L;
+
+        try (FileOutputStream output = new FileOutputStream(compactedFile.toFile())) {
+            DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+
+            for (Map.Entry<String, ConcurrentHashMap<String, Map<String, String>>> collection : collections.entrySet()) {
+                for (Map.Entry<String, Map<String, String>> document : collection.getValue().entrySet()) {
+                    writeRecord(compacted, encode(collection.getKey(), document.getKey(), document.getValue()));
+                    count++;
+                }
+            }
+
+            compacted.flush();
+            output.getChannel().force(false);
+        }
+
+        Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (log != null)
+            log.close();
+
+        channel = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        records = count;
+        dirty = false;
+    }
+
+    // A record cut short by a crash ends the replay, and everything after it is dropped when the log is compacted.
+    private void replay() throws IOException
+    {
+        Path logFile = directory.resolve(LOG_FILE_NAME);
+
+        if (!Files.exists(logFile))
+            return;
+
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(logFile), 1 << 16)) {
+            DataInputStream in = new DataInputStream(input);
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                byte[] record;
+                long checksum;
+
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException | NegativeArraySizeException | OutOfMemoryError e) {
+                    return;
+                }
+
+                crc.reset();
+                crc.update(record, 0, record.length);
+
+                if (crc.getValue() != checksum)
+                    return;
+
+                apply(record);
+            }
+        }
+    }
+
+    private void apply(byte[] record) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        byte type = in.readByte();
+        String collection = readString(in);
+        String key = readString(in);
+
+        if (type == DELETE) {
+            documents(collection).remove(key);
+            return;
+        }
+
+        int fields = in.readInt();
+        HashMap<String, String> document = new HashMap<>(fields * 2);
+
+        for (int i = 0; i < fields; i++)
+            document.put(readString(in), readString(in));
+
+        documents(collection).put(key, Collections.unmodifiableMap(document));
+    }
+
+    private static byte[] encode(String collection, String key, Map<String, String> document) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(document == null ? DELETE : PUT);
+        writeString(out, collection);
+        writeString(out, key);
+
+        if (document != null) {
+            out.writeInt(document.size());
+
+            for (Map.Entry<String, String> field : document.entrySet()) {
+                writeString(out, field.getKey());
+                writeString(out, field.getValue());
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    // Texts can be longer than the 64 KiB writeUTF allows.
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private class ListenerRegistration implements Registration
+    {
+        private final String key;
+        private final Listener listener;
+        private volatile boolean removed = false;
+
+        private ListenerRegistration(String key, Listener listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        private void deliver(Map<String, String> document)
+        {
+            if (!removed)
+                listener.onDocument(document);
+        }
+
+        @Override
+        public void remove()
+        {
+            removed = true;
+
+            listeners.computeIfPresent(key, (k, registrations) -> {
+                registrations.remove(this);
+                return registrations.isEmpty() ? null : registrations;
+            });
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,260 @@
+package ipl.isel.cn.group2.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueStoreTest
+{
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("cntext-store");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void recoversFromTornTail() throws IOException
+    {
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            store.put("submissions", "a", document("state", "uploading"));
+            store.put("submissions", "b", document("state", "in progress"));
+        }
+
+        // A crash in the middle of a record leaves its length and only part of its bytes.
+        try (RandomAccessFile log = new RandomAccessFile(directory.resolve("store.log").toFile(), "rw")) {
+            log.seek(log.length());
+            log.writeInt(1000);
+            log.writeInt(0);
+            log.write(new byte[] { 1, 0, 0 });
+        }
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            assertEquals("uploading", store.get("submissions", "a").get("state"));
+            assertEquals("in progress", store.get("submissions", "b").get("state"));
+
+            store.put("submissions", "c", document("state", "detected"));
+        }
+
+        // Records written after the recovery aren't hidden behind the torn one.
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            assertEquals(3, store.size("submissions"));
+            assertEquals("detected", store.get("submissions", "c").get("state"));
+        }
+    }
+
+    @Test
+    public void recoversFromCorruptTail() throws IOException
+    {
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            store.put("submissions", "a", document("state", "uploading"));
+        }
+
+        long length = Files.size(directory.resolve("store.log"));
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            store.update("submissions", "a", document("state", "in progress"));
+        }
+
+        // The last record is whole but one of its bytes was flipped, so its checksum no longer matches.
+        try (RandomAccessFile log = new RandomAccessFile(directory.resolve("store.log").toFile(), "rw")) {
+            log.seek(log.length() - 1);
+            byte last = log.readByte();
+            log.seek(log.length() - 1);
+            log.writeByte(last ^ 0xFF);
+        }
+
+        assertTrue(Files.size(directory.resolve("store.log")) > length);
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            assertEquals("uploading", store.get("submissions", "a").get("state"));
+
+            store.update("submissions", "a", document("state", "error"));
+        }
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            assertEquals("error", store.get("submissions", "a").get("state"));
+        }
+    }
+
+    @Test
+    public void keepsChangesMadeWhileCompacting() throws Exception
+    {
+        int writers = 4;
+        int changes = 2000;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 1L)) {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int w = 0; w < writers; w++) {
+                String key = "writer-" + w;
+
+                futures.add(executor.submit(() -> {
+                    store.put("counters", key, document("count", "0"));
+
+                    for (int i = 0; i < changes; i++) {
+                        String count = store.get("counters", key).get("count");
+
+                        assertTrue(store.compareAndSet("counters", key, "count", count, document("count", String.valueOf(Integer.parseInt(count) + 1))));
+                        store.update("counters", key, document("last", String.valueOf(i)));
+                        store.put("documents", key + "-" + i, document("writer", key));
+                    }
+
+                    return null;
+                }));
+            }
+
+            Method compact = KeyValueStore.class.getDeclaredMethod("compact");
+            compact.setAccessible(true);
+
+            Thread compactor = new Thread(() -> {
+                while (writing.get()) {
+                    try {
+                        compact.invoke(store);
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+
+            compactor.start();
+
+            try {
+                for (Future<?> future : futures)
+                    future.get(60, TimeUnit.SECONDS);
+            } finally {
+                writing.set(false);
+                compactor.join();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (KeyValueStore store = KeyValueStore.open(directory, 0L)) {
+            for (int w = 0; w < writers; w++) {
+                assertEquals(String.valueOf(changes), store.get("counters", "writer-" + w).get("count"));
+                assertEquals(String.valueOf(changes - 1), store.get("counters", "writer-" + w).get("last"));
+            }
+
+            assertEquals(writers * changes, store.size("documents"));
+        }
+    }
+
+    @Test
+    public void notifiesListenersInOrder() throws Exception
+    {
+        int writers = 4;
+        int changes = 500;
+        List<String> counts = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch deleted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+        try (KeyValueStore store = KeyValueStore.inMemory()) {
+            store.put("counters", "shared", document("count", "0"));
+
+            KeyValueStore.Registration registration = store.listen("counters", "shared", document -> {
+                if (document == null)
+                    deleted.countDown();
+                else
+                    counts.add(document.get("count"));
+            });
+
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int w = 0; w < writers; w++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < changes; i++) {
+                        while (true) {
+                            String count = store.get("counters", "shared").get("count");
+
+                            if (store.compareAndSet("counters", "shared", "count", count, document("count", String.valueOf(Integer.parseInt(count) + 1))))
+                                break;
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get(60, TimeUnit.SECONDS);
+
+            store.delete("counters", "shared");
+
+            assertTrue(deleted.await(10, TimeUnit.SECONDS));
+
+            registration.remove();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The current document first, then every change in the order it was applied.
+        assertEquals(writers * changes + 1, counts.size());
+
+        for (int i = 0; i < counts.size(); i++)
+            assertEquals(String.valueOf(i), counts.get(i));
+    }
+
+    @Test
+    public void notifiesMissingDocumentAsNull() throws Exception
+    {
+        CountDownLatch notified = new CountDownLatch(2);
+        List<Map<String, String>> documents = Collections.synchronizedList(new ArrayList<>());
+
+        try (KeyValueStore store = KeyValueStore.inMemory()) {
+            store.listen("submissions", "missing", document -> {
+                documents.add(document);
+                notified.countDown();
+            });
+
+            store.put("submissions", "missing", document("state", "uploading"));
+
+            assertTrue(notified.await(10, TimeUnit.SECONDS));
+        }
+
+        assertNull(documents.get(0));
+        assertEquals("uploading", documents.get(1).get("state"));
+    }
+
+    private static Map<String, String> document(String field, String value)
+    {
+        Map<String, String> document = new HashMap<>();
+        document.put(field, value);
+
+        return document;
+    }
+}
\ No newline at end of file
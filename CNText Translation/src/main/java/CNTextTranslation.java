@@ -6,6 +6,13 @@ import com.google.cloud.pubsub.v1.MessageReceiver;
 import com.google.common.base.Charsets;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.PubsubMessage;
+import ipl.isel.cn.group2.metrics.Histogram;
+import ipl.isel.cn.group2.metrics.MetricsRegistry;
+import ipl.isel.cn.group2.metrics.MetricsServer;
+import ipl.isel.cn.group2.metrics.StageTimings;
+import ipl.isel.cn.group2.queue.InMemoryTopics;
+import ipl.isel.cn.group2.queue.TierScheduler;
+import ipl.isel.cn.group2.store.KeyValueStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -13,6 +20,8 @@ import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,75 +34,228 @@ public class CNTextTranslation
     private final static String DEFAULT_PROJECT_ID = "g02-leirt61d-v1920";
     private final static String DEFAULT_SERVICE_LEVEL = "free";
 
+    // Threads of a worker scheduling both levels, as many as the subscriber of its own level used to have.
+    private final static int DEFAULT_PREMIUM_THREADS = 5;
+    private final static int DEFAULT_FREE_THREADS = 1;
+    private final static long STATS_PERIOD_MINUTES = 1L;
+
+    private final static MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final static String STAGE_METRIC_NAME = "cntext_stage_seconds";
+    private final static String STAGE_METRIC_HELP = "Time spent in each stage of processing a submission.";
+
+    private final static Histogram detectTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "detect");
+    private final static Histogram translateTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "translate");
+    private final static Histogram firestoreTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "firestore");
+    private final static Histogram messageTime = metrics.histogram(STAGE_METRIC_NAME, STAGE_METRIC_HELP, "stage", "total");
+
+    private final static Histogram queueWaitTime = StageTimings.queueWait(metrics, "translation");
+    private final static Histogram serviceTime = StageTimings.serviceTime(metrics, "translation");
+
     private static void processMessage (
-        FirestoreServices firestoreServices,
+        SubmissionStore submissionStore,
         TranslateServices translateServices,
         PubsubMessage bytes,
         AckReplyConsumer acknowledge
     ) {
+        long receivedAt = System.nanoTime();
+        long dequeuedAt = System.currentTimeMillis();
+
         Map<String, String> attributes = bytes.getAttributesMap();
         String textToTranslate = bytes.getData().toString(Charsets.UTF_8);
 
         String submissionId = attributes.get("submissionId");
 
+        // Every stage's timestamps are persisted together with the result.
+        Map<String, Long> timings = StageTimings.fromAttributes(attributes);
+        timings.put(StageTimings.TRANSLATION_DEQUEUED_AT, dequeuedAt);
+
+        if (timings.containsKey(StageTimings.TRANSLATION_ENQUEUED_AT))
+            StageTimings.recordInterval(queueWaitTime, timings.get(StageTimings.TRANSLATION_ENQUEUED_AT), dequeuedAt);
+
         try {
+            long startedAt = System.nanoTime();
             String from = translateServices.detectLanguage(textToTranslate);
+            detectTime.recordSince(startedAt);
+
             String to = attributes.get("to");
+
+            startedAt = System.nanoTime();
             String translatedText = translateServices.translateText(textToTranslate, from, to);
-            firestoreServices.storeTextTranslationResult(submissionId, translatedText, from, to);
+            translateTime.recordSince(startedAt);
+
+            long finishedAt = System.currentTimeMillis();
+            timings.put(StageTimings.TRANSLATION_FINISHED_AT, finishedAt);
+            StageTimings.recordInterval(serviceTime, dequeuedAt, finishedAt);
+
+            startedAt = System.nanoTime();
+            submissionStore.storeTextTranslationResult(submissionId, textToTranslate, attributes.get("hash"), translatedText, from, to, timings);
+            firestoreTime.recordSince(startedAt);
+
+            messageTime.recordSince(receivedAt);
             acknowledge.ack();
         } catch (Exception ex) {
             logger.error(ex.getMessage());
-            setSubmissionErrorState(firestoreServices, submissionId, "CNTextTranslation module: " + ex.getMessage());
+            setSubmissionErrorState(submissionStore, submissionId, "CNTextTranslation module: " + ex.getMessage());
             acknowledge.ack();
         }
     }
 
-    private static void setSubmissionErrorState(FirestoreServices firestoreServices, String submissionId, String details) {
+    private static void setSubmissionErrorState(SubmissionStore submissionStore, String submissionId, String details) {
         try {
-            firestoreServices.setSubmissionErrorState(submissionId, details);
-        } catch (ExecutionException | InterruptedException | FirestoreServices.SubmissionNotFoundException ex) {
+            submissionStore.setSubmissionErrorState(submissionId, details);
+        } catch (ExecutionException | InterruptedException | SubmissionStore.SubmissionNotFoundException ex) {
             logger.error(ex.getMessage());
         }
     }
 
-    public static void main(String... args)
+    private static ProjectSubscriptionName getSubscriptionName(String projectId, String subscriptionId) {
+        return ProjectSubscriptionName
+            .newBuilder()
+            .setProject(projectId)
+            .setSubscription(subscriptionId)
+            .build();
+    }
+
+    public static void main(String... args) {
+        launch(null, null, args);
+    }
+
+    // Topics and store are given when the server runs in this same process, otherwise both are null.
+    public static void launch(InMemoryTopics topics, KeyValueStore keyValueStore, String... args)
     {
         String serviceLevel = DEFAULT_SERVICE_LEVEL;
         String projectId = DEFAULT_PROJECT_ID;
+        int metricsPort = MetricsServer.DEFAULT_PORT;
+        boolean tierScheduling = false;
+        int schedulerThreads = 0;
+        int premiumWeight = TierScheduler.DEFAULT_PREMIUM_WEIGHT;
+        int freeWeight = TierScheduler.DEFAULT_FREE_WEIGHT;
+        long latencyGoalMillis = TierScheduler.DEFAULT_LATENCY_GOAL_MILLIS;
 
         Pattern premiumLevelPattern = Pattern.compile("^-p$");
         Pattern projectIdPattern = Pattern.compile("^-i=(\\b[\\w-]+\\b)$");
+        Pattern metricsPortPattern = Pattern.compile("^-mp=([\\d]+)$");
+        Pattern tierSchedulingPattern = Pattern.compile("^-ts$");
+        Pattern schedulerThreadsPattern = Pattern.compile("^-tc=([\\d]+)$");
+        Pattern tierWeightsPattern = Pattern.compile("^-tw=([\\d]+):([\\d]+)$");
+        Pattern latencyGoalPattern = Pattern.compile("^-tg=([\\d]+)$");
 
         for (String arg : args)
         {
             Matcher premiumLevelMatcher = premiumLevelPattern.matcher(arg);
             Matcher projectIdMatcher = projectIdPattern.matcher(arg);
+            Matcher metricsPortMatcher = metricsPortPattern.matcher(arg);
+            Matcher tierSchedulingMatcher = tierSchedulingPattern.matcher(arg);
+            Matcher schedulerThreadsMatcher = schedulerThreadsPattern.matcher(arg);
+            Matcher tierWeightsMatcher = tierWeightsPattern.matcher(arg);
+            Matcher latencyGoalMatcher = latencyGoalPattern.matcher(arg);
 
             if(premiumLevelMatcher.matches())
                 serviceLevel = "premium";
 
             else if(projectIdMatcher.matches())
                 projectId = projectIdMatcher.group(1);
+
+            else if(metricsPortMatcher.matches())
+                metricsPort = Integer.parseInt(metricsPortMatcher.group(1));
+
+            else if(tierSchedulingMatcher.matches())
+                tierScheduling = true;
+
+            else if(schedulerThreadsMatcher.matches())
+                schedulerThreads = Integer.parseInt(schedulerThreadsMatcher.group(1));
+
+            else if(tierWeightsMatcher.matches()) {
+                premiumWeight = Integer.parseInt(tierWeightsMatcher.group(1));
+                freeWeight = Integer.parseInt(tierWeightsMatcher.group(2));
+            }
+
+            else if(latencyGoalMatcher.matches())
+                latencyGoalMillis = Long.parseLong(latencyGoalMatcher.group(1));
         }
 
         try {
+            // Metrics are scraped from /metrics on their own port, 0 turns the endpoint off.
+            if(metricsPort != 0)
+                new MetricsServer(metricsPort, metrics).start();
+
             GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
 
-            FirestoreServices firestoreServices = new FirestoreServices(projectId, credentials, FirestoreServices.DEFAULT_IMAGES_TEXT_TRANSLATION_RESULTS_COLLECTION_NAME);
+            SubmissionStore submissionStore;
+
+            if(keyValueStore != null)
+                submissionStore = new EmbeddedSubmissionStore(keyValueStore);
+            else
+                submissionStore = new FirestoreServices(projectId, credentials, FirestoreServices.DEFAULT_IMAGES_TEXT_TRANSLATION_RESULTS_COLLECTION_NAME);
+
             TranslateServices translateServices = new TranslateServices();
 
             ProjectSubscriptionName projectSubscriptionName;
-            MessageReceiver receiver = (bytes, acknowledge) -> processMessage(firestoreServices, translateServices, bytes, acknowledge);
+            MessageReceiver receiver = (bytes, acknowledge) -> processMessage(submissionStore, translateServices, bytes, acknowledge);
             ExecutorProvider executorProvider = null;
+            boolean premium = serviceLevel.compareToIgnoreCase("premium") == 0;
 
-            if(serviceLevel.compareToIgnoreCase("premium") == 0)
+            // Both levels are read and share this worker's threads. Premium gets the larger share, free work gets what
+            // premium leaves idle, and none at all while premium messages wait longer than their goal.
+            if(tierScheduling)
             {
-                projectSubscriptionName = ProjectSubscriptionName
+                int threads = schedulerThreads > 0 ? schedulerThreads : premium ? DEFAULT_PREMIUM_THREADS : DEFAULT_FREE_THREADS;
+                TierScheduler scheduler = new TierScheduler("translation", threads, latencyGoalMillis, TimeUnit.MILLISECONDS);
+
+                MessageReceiver premiumReceiver = scheduler.addTier("premium", premiumWeight, latencyGoalMillis, TimeUnit.MILLISECONDS, receiver);
+                MessageReceiver freeReceiver = scheduler.addTier("free", freeWeight, 0L, TimeUnit.MILLISECONDS, receiver);
+
+                scheduler.start();
+
+                ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "translation-scheduler-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+                stats.scheduleAtFixedRate(() -> logger.info(scheduler.toString()), STATS_PERIOD_MINUTES, STATS_PERIOD_MINUTES, TimeUnit.MINUTES);
+
+                if(topics != null)
+                {
+                    topics.subscribe(SubscriberServices.PREMIUM_TRANSLATE_TOPIC_ID, premiumReceiver);
+                    topics.subscribe(SubscriberServices.FREE_TRANSLATE_TOPIC_ID, freeReceiver);
+
+                    System.out.println("Receiving from the " + SubscriberServices.PREMIUM_TRANSLATE_TOPIC_ID + " and " + SubscriberServices.FREE_TRANSLATE_TOPIC_ID + " queues on " + threads + " threads");
+                    return;
+                }
+
+                // The subscribers only queue messages for the scheduler, a thread each is plenty for that. What they
+                // hold is capped, so a busy worker leaves the rest of the backlog to the others.
+                executorProvider = InstantiatingExecutorProvider
                     .newBuilder()
-                    .setProject(projectId)
-                    .setSubscription(SubscriberServices.PREMIUM_TRANSLATION_WORKERS_SUBSCRIPTION_ID)
+                    .setExecutorThreadCount(1)
                     .build();
+
+                SubscriberServices premiumSubscriber = new SubscriberServices(getSubscriptionName(projectId, SubscriberServices.PREMIUM_TRANSLATION_WORKERS_SUBSCRIPTION_ID), executorProvider, 2L * threads, premiumReceiver);
+                SubscriberServices freeSubscriber = new SubscriberServices(getSubscriptionName(projectId, SubscriberServices.FREE_TRANSLATION_WORKER_SUBSCRIPTION_ID), executorProvider, 2L * threads, freeReceiver);
+
+                premiumSubscriber.start();
+                freeSubscriber.start();
+
+                System.out.println("Subscribed to " + SubscriberServices.PREMIUM_TRANSLATION_WORKERS_SUBSCRIPTION_ID + " and " + SubscriberServices.FREE_TRANSLATION_WORKER_SUBSCRIPTION_ID + " subscriptions on " + threads + " threads");
+
+                premiumSubscriber.awaitTerminated();
+                return;
+            }
+
+            // In process, the queue of the level is read directly and its concurrency was set when it was created.
+            if(topics != null)
+            {
+                String queueId = premium ? SubscriberServices.PREMIUM_TRANSLATE_TOPIC_ID : SubscriberServices.FREE_TRANSLATE_TOPIC_ID;
+                topics.subscribe(queueId, receiver);
+
+                System.out.println("Receiving from the " + queueId + " queue");
+                return;
+            }
+
+            if(premium)
+            {
+                projectSubscriptionName = getSubscriptionName(projectId, SubscriberServices.PREMIUM_TRANSLATION_WORKERS_SUBSCRIPTION_ID);
             }
 
             else
@@ -103,11 +265,7 @@ public class CNTextTranslation
                     .setExecutorThreadCount(1)
                     .build();
 
-                projectSubscriptionName = ProjectSubscriptionName
-                    .newBuilder()
-                    .setProject(projectId)
-                    .setSubscription(SubscriberServices.FREE_TRANSLATION_WORKER_SUBSCRIPTION_ID)
-                    .build();
+                projectSubscriptionName = getSubscriptionName(projectId, SubscriberServices.FREE_TRANSLATION_WORKER_SUBSCRIPTION_ID);
             }
 
             System.out.println("Subscribed to " + projectSubscriptionName.getSubscription() + " subscription");
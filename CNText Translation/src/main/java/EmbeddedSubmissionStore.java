@@ -0,0 +1,66 @@
+import ipl.isel.cn.group2.store.KeyValueStore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Writes to the key value store the server keeps its submissions in, when both run in the same process.
+public class EmbeddedSubmissionStore implements SubmissionStore
+{
+    private final KeyValueStore store;
+
+    public EmbeddedSubmissionStore(KeyValueStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, SubmissionNotFoundException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "error");
+        update.put("error", details);
+
+        try {
+            if (!store.update("submissions", submissionId, update))
+                throw new SubmissionNotFoundException(submissionId);
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    // Only a detected submission is completed, so a redelivered message can't undo a later state.
+    @Override
+    public void storeTextTranslationResult(String submissionId, String text, String imageHash, String result, String from, String to, Map<String, Long> timings) throws ExecutionException
+    {
+        Map<String, String> update = new HashMap<>();
+        update.put("textTranslated", result);
+        update.put("translatedFrom", from);
+        update.put("translatedTo", to);
+        update.put("state", "completed");
+
+        for (Map.Entry<String, Long> timing : timings.entrySet())
+            update.put("timings." + timing.getKey(), String.valueOf(timing.getValue()));
+
+        try {
+            if (!store.compareAndSet("submissions", submissionId, "state", "detected", update) || imageHash == null)
+                return;
+
+            Map<String, String> create = new HashMap<>();
+            create.put("text", text);
+            create.put("textTranslated", result);
+            create.put("translatedFrom", from);
+            create.put("translatedTo", to);
+
+            // Expires with the submission it came from, so the sweeper deletes it like any submission.
+            Map<String, String> submission = store.get("submissions", submissionId);
+
+            if (submission != null && submission.get("expiresAt") != null)
+                create.put("expiresAt", submission.get("expiresAt"));
+
+            store.put(FirestoreServices.DEDUPLICATION_COLLECTION_NAME, imageHash + ":" + to, create);
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        }
+    }
+}
\ No newline at end of file
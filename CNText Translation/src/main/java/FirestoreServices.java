@@ -1,27 +1,21 @@
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import io.grpc.Status;
-import io.grpc.StatusException;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
-public class FirestoreServices
+public class FirestoreServices implements SubmissionStore
 {
     public final static String DEFAULT_IMAGES_TEXT_TRANSLATION_RESULTS_COLLECTION_NAME = "submissions";
+    public final static String DEDUPLICATION_COLLECTION_NAME = "deduplication";
 
     private final Firestore firestore;
     private final String collectionName;
 
-    public static class SubmissionNotFoundException extends StatusException {
-        public SubmissionNotFoundException(String submissionId) {
-            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
-        }
-    }
-
     public FirestoreServices(String projectId, GoogleCredentials credentials, String collectionName) {
         firestore = FirestoreOptions
             .newBuilder()
@@ -33,9 +27,10 @@ public class FirestoreServices
         this.collectionName = collectionName;
     }
 
+    @Override
     public void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, InterruptedException, SubmissionNotFoundException
     {
-        final DocumentReference submissionDocRef = firestore.collection("submissions").document(submissionId);
+        final DocumentReference submissionDocRef = firestore.collection(collectionName).document(submissionId);
 
         SubmissionNotFoundException result = firestore.runTransaction(transaction ->
             {
@@ -56,20 +51,45 @@ public class FirestoreServices
             throw result;
     }
 
-    public void storeTextTranslationResult(String submissionId, String result, String from, String to) throws ExecutionException, InterruptedException
+    // Only a detected submission is completed, so a redelivered message can't undo a later state.
+    @Override
+    public void storeTextTranslationResult(String submissionId, String text, String imageHash, String result, String from, String to, Map<String, Long> timings) throws ExecutionException, InterruptedException
     {
         DocumentReference docRef = firestore.collection(collectionName).document(submissionId);
 
         firestore.runTransaction(transaction ->
             {
+                DocumentSnapshot docSnap = transaction.get(docRef).get();
+
+                if (!docSnap.exists() || !"detected".equals(docSnap.get("state", String.class)))
+                    return null;
+
                 Map<String, Object> update = new HashMap<>();
                 update.put("textTranslated", result);
                 update.put("translatedFrom", from);
                 update.put("translatedTo", to);
                 update.put("state", "completed");
 
+                for (Map.Entry<String, Long> timing : timings.entrySet())
+                    update.put("timings." + timing.getKey(), timing.getValue());
+
                 transaction.update(docRef, update);
 
+                // Lets the server satisfy later submissions of the same image and language without redoing the work.
+                if(imageHash != null) {
+                    DocumentReference deduplicationDocRef = firestore.collection(DEDUPLICATION_COLLECTION_NAME).document(imageHash + ":" + to);
+
+                    Map<String, Object> create = new HashMap<>();
+                    create.put("text", text);
+                    create.put("textTranslated", result);
+                    create.put("translatedFrom", from);
+                    create.put("translatedTo", to);
+                    // Expires with the submission it came from, so the sweeper deletes it like any submission.
+                    create.put("expiresAt", docSnap.getTimestamp("expiresAt"));
+
+                    transaction.set(deduplicationDocRef, create);
+                }
+
                 return null;
             }
         ).get();
@@ -0,0 +1,20 @@
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Where text translation results are written, Firestore or an embedded store.
+public interface SubmissionStore
+{
+    class SubmissionNotFoundException extends StatusException {
+        public SubmissionNotFoundException(String submissionId) {
+            super(Status.NOT_FOUND.withDescription("There is no submission whose id is " + submissionId));
+        }
+    }
+
+    void setSubmissionErrorState(String submissionId, String details) throws ExecutionException, InterruptedException, SubmissionNotFoundException;
+
+    // Also keeps the result under imageHash and to, when there is an image hash, for the server to deduplicate with.
+    void storeTextTranslationResult(String submissionId, String text, String imageHash, String result, String from, String to, Map<String, Long> timings) throws ExecutionException, InterruptedException;
+}
\ No newline at end of file